@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uma.wdi.fusion.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+/* Benchmark input: clusterSize source files with entities videogames each, in the shape of the videogames datasets
+ * Entity i of every source belongs to cluster i, so the merged dataset has entities clusters of clusterSize nodes;
+ * correspondences are written as matched-1-k.txt files
+ * 
+ *  @author Volha
+ * */
+public class BenchmarkData 
+{
+	public static final String ROOT = "data";
+	public static final String ID_DATA_PATH = "//videogame/id";
+	public static final String ID_PROV_PATH = "//provenance/id";
+	
+	private static final String[] PLATFORMS = {"pc", "sony playstation 3", "microsoft xbox 360", "mac os", "nintendo ds", "nintendo wii"};
+	private static final String[] GENRES = {"action", "role-playing video game", "first-person shooter", "puzzle", "racing video game"};
+	
+	private final File dir;
+	private final int entities;
+	private final int clusterSize;
+	private final Set<String> filesData = new LinkedHashSet<String>();
+	private final Set<String> filesDuplicates = new LinkedHashSet<String>();
+
+	public BenchmarkData(File dir, int entities, int clusterSize)
+	{
+		this.dir = dir;
+		this.entities = entities;
+		this.clusterSize = clusterSize;
+	}
+	
+	// Getters
+	public Set<String> getFilesData()
+	{
+		return filesData;
+	}
+	public Set<String> getFilesDuplicates()
+	{
+		return filesDuplicates;
+	}
+	public int getEntities()
+	{
+		return entities;
+	}
+	public int getClusterSize()
+	{
+		return clusterSize;
+	}
+	
+	// Write all files (deterministic for a given seed)
+	public BenchmarkData write(long seed) throws IOException
+	{
+		dir.mkdirs();
+		Random random = new Random(seed);
+		for (int s = 1; s <= clusterSize; s++)
+		{
+			File f = new File(dir, "source" + s + ".xml");
+			writeSource(f, s, random);
+			filesData.add(f.getPath());
+			if (s > 1)
+			{
+				File m = new File(dir, "matched-1-" + s + ".txt");
+				writeCorrespondences(m, s);
+				filesDuplicates.add(m.getPath());
+			}
+		}
+		return this;
+	}
+	
+	// Delete all written files
+	public void delete()
+	{
+		Set<String> all = new HashSet<String>(filesData);
+		all.addAll(filesDuplicates);
+		for (String fn : all) new File(fn).delete();
+		dir.delete();
+	}
+	
+	private void writeSource(File f, int s, Random random) throws IOException
+	{
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+		try
+		{
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<" + ROOT + ">\n");
+			out.write("\t<provenance>\n\t\t<id>prov" + s + "</id>\n\t\t<source>source" + s + ".xml</source>\n");
+			out.write("\t\t<date>" + (10+s) + " Nov 2014 00:00:00 +0100</date>\n\t</provenance>\n");
+			for (int i = 0; i < entities; i++)
+			{
+				out.write("\t<videogame>\n");
+				element(out, "id", id(s, i));
+				// about a third of the titles, scores and release dates conflict with the other sources
+				element(out, "title", "game " + i + (random.nextInt(3) == 0 ? " edition " + s : ""));
+				element(out, "release", (1990 + i%25) + "-0" + (1 + random.nextInt(9)) + "-1" + random.nextInt(10));
+				element(out, "score", String.valueOf(random.nextInt(3) == 0 ? random.nextInt(100) : i%100));
+				element(out, "genre", GENRES[(i + (random.nextInt(3) == 0 ? s : 0)) % GENRES.length]);
+				int platforms = 1 + random.nextInt(3);
+				for (int p = 0; p < platforms; p++) element(out, "platform", PLATFORMS[(i+p) % PLATFORMS.length]);
+				StringBuilder description = new StringBuilder("game " + i + " is a video game");
+				int words = random.nextInt(40);
+				for (int w = 0; w < words; w++) description.append(" word").append(random.nextInt(1000));
+				element(out, "description", description.toString());
+				out.write("\t</videogame>\n");
+			}
+			out.write("</" + ROOT + ">\n");
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	private void writeCorrespondences(File f, int s) throws IOException
+	{
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+		try
+		{
+			for (int i = 0; i < entities; i++) out.write(id(1, i) + "," + id(s, i) + "\n");
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	private static void element(Writer out, String name, String value) throws IOException
+	{
+		out.write("\t\t<" + name + ">" + value + "</" + name + ">\n");
+	}
+	
+	private static String id(int s, int i)
+	{
+		return "s" + s + "e" + i;
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uma.wdi.fusion.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.w3c.dom.Node;
+
+import uma.wdi.fusion.DataUnion;
+import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.input.Duplicates;
+
+/* Input of the benchmarks: the files of a BenchmarkData, the loaded input datasets and correspondences, and the merged dataset
+ * (created once per JMH trial, see FusionBenchmarks and ResolutionBenchmarks)
+ * 
+ *  @author Volha
+ * */
+class BenchmarkInput 
+{
+	final BenchmarkData data;
+	final Set<Dataset> datasets = new HashSet<Dataset>();
+	final Duplicates dupl = new Duplicates();
+	final DataUnion du = new DataUnion();
+	final Dataset unionDs;
+	final List<Node> unionNodes = new ArrayList<Node>();
+	
+	BenchmarkInput(int entities, int clusterSize) throws IOException
+	{
+		File dir = new File(System.getProperty("java.io.tmpdir"), "wdi-fusion-bench-" + entities + "x" + clusterSize + "-" + System.nanoTime());
+		data = new BenchmarkData(dir, entities, clusterSize).write(42);
+		for (String fn : data.getFilesData())
+		{
+			Dataset ds = new Dataset();
+			ds.loadFromFile(fn, BenchmarkData.ID_DATA_PATH, BenchmarkData.ID_PROV_PATH, true, false);
+			datasets.add(ds);
+		}
+		dupl.read(data.getFilesDuplicates());
+		du.createUnion(datasets, dupl, BenchmarkData.ROOT);
+		unionDs = du.getUnionDataset();
+		for (Map.Entry<String, Node> e : unionDs.getData().getEntrySet()) unionNodes.add(e.getValue());
+	}
+	
+	void delete()
+	{
+		data.delete();
+	}
+}
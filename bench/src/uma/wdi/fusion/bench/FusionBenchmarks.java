@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uma.wdi.fusion.bench;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import uma.wdi.fusion.DataUnion;
+import uma.wdi.fusion.input.Duplicates;
+import uma.wdi.fusion.utils.NodeMap;
+import uma.wdi.fusion.utils.XMLUtils;
+
+/* JMH benchmarks of reading and merging, parameterized by entity count (per source) and cluster size (number of sources)
+ * Each call goes through a whole input (all entities of a source, or all merged entities); the time is per call
+ * 
+ * Run: java -jar target/benchmarks.jar FusionBenchmarks [-p entities=1000 -p clusterSize=2] (see pom.xml)
+ * 
+ *  @author Volha
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FusionBenchmarks 
+{
+	@Param({"1000", "10000"})
+	public int entities;
+	
+	@Param({"2", "4"})
+	public int clusterSize;
+	
+	private BenchmarkInput input;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		input = new BenchmarkInput(entities, clusterSize);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		input.delete();
+	}
+	
+	// XMLUtils.getValue of a simple path (served without xpath)
+	@Benchmark
+	public void getValueFast(Blackhole bh)
+	{
+		for (Node node : input.unionNodes) bh.consume(XMLUtils.getValue(node, "title/value"));
+	}
+	
+	// The same values through xpath
+	@Benchmark
+	public void getNodeListXPath(Blackhole bh)
+	{
+		for (Node node : input.unionNodes) 
+		{
+			NodeList list = XMLUtils.getNodeList(node, "title/value");
+			for (int i = 0; i < list.getLength(); i++) bh.consume(list.item(i).getTextContent());
+		}
+	}
+	
+	@Benchmark
+	public NodeMap loadFromFile()
+	{
+		NodeMap map = new NodeMap();
+		map.loadFromFile(input.data.getFilesData().iterator().next(), BenchmarkData.ID_DATA_PATH);
+		return map;
+	}
+	
+	@Benchmark
+	public Duplicates readDuplicates()
+	{
+		Duplicates dupl = new Duplicates();
+		dupl.read(input.data.getFilesDuplicates());
+		return dupl;
+	}
+	
+	@Benchmark
+	public Node createUnion()
+	{
+		return new DataUnion().createUnion(input.datasets, input.dupl, BenchmarkData.ROOT);
+	}
+	
+	@Benchmark
+	public Object updateProfile()
+	{
+		return input.unionDs.updateProfile();
+	}
+	
+	@Benchmark
+	public Map<String, Double> calculateDatasetConsistency()
+	{
+		return input.unionDs.calculateDatasetConsistency(input.du.getNonListAttributes(), clusterSize);
+	}
+}
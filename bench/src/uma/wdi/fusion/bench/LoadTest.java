@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uma.wdi.fusion.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uma.wdi.fusion.DataFusion;
+import uma.wdi.fusion.resolution.AbstractResolutionFunction;
+import uma.wdi.fusion.resolution.MostRecent;
+import uma.wdi.fusion.resolution.MostTrusted;
+import uma.wdi.fusion.resolution.PassItOn;
+import uma.wdi.fusion.resolution.Vote;
+import uma.wdi.fusion.utils.Metrics;
+
+/* Generates a synthetic input (see SyntheticDataGenerator) and runs the whole DataFusion pipeline on it
+ * 
+ * Usage: LoadTest dir=out [generator options] [threads=1] [batch=false] [state=] [snapshot=false] [shards=0] [budget=0] [cache=0] [pipeline=false] [intern=true] [keep=false]
+ * Writes merged.xml, fused.xml, fusion-report.txt and metrics (metrics.json, metrics.prom) into dir; the generated inputs are deleted unless keep=true
+ * With state=stateDir, the pipeline runs incrementally (DataFusion.runIncrementalFusion); as the same settings generate the same inputs,
+ * a second run with the same state measures a run without changes
+ * With snapshot=true, the union is also written as a snapshot (merged.snapshot), which is reopened for the fusion
+ * With shards=N, the pipeline runs in N worker processes (DataFusion.runShardedFusion, work files in dir/shards)
+ * With budget=M, the pipeline runs out of core with a memory budget of M MB (DataFusion.runOutOfCoreFusion, spill files in dir/spill)
+ * With cache=N, the context-free functions cache the results of up to N groups of values (see ResolutionCache)
+ * With pipeline=true, union, resolution, output and evaluation run as a pipeline of stages (DataFusion.runPipelinedFusion)
+ * With intern=false, the values of the attributes with small vocabularies are not interned (see DataFusion.VIDEOGAME_INTERNED_ATTRIBUTES)
+ * 
+ *  @author Volha
+ * */
+public class LoadTest 
+{
+	public static void main(String[] args) throws Exception
+	{
+		int threads = 1;
+		boolean keep = false;
+		boolean batch = false;
+		String state = null;
+		boolean snapshot = false;
+		int shards = 0;
+		long budget = 0;
+		int cache = 0;
+		boolean pipeline = false;
+		boolean intern = true;
+		String dir = ".";
+		List<String> generatorArgs = new ArrayList<String>();
+		for (String arg : args)
+		{
+			if (arg.startsWith("threads=")) threads = Integer.parseInt(arg.substring(8));
+			else if (arg.startsWith("batch=")) batch = Boolean.parseBoolean(arg.substring(6));
+			else if (arg.startsWith("keep=")) keep = Boolean.parseBoolean(arg.substring(5));
+			else if (arg.startsWith("state=")) state = arg.substring(6);
+			else if (arg.startsWith("snapshot=")) snapshot = Boolean.parseBoolean(arg.substring(9));
+			else if (arg.startsWith("shards=")) shards = Integer.parseInt(arg.substring(7));
+			else if (arg.startsWith("budget=")) budget = Long.parseLong(arg.substring(7));
+			else if (arg.startsWith("cache=")) cache = Integer.parseInt(arg.substring(6));
+			else if (arg.startsWith("pipeline=")) pipeline = Boolean.parseBoolean(arg.substring(9));
+			else if (arg.startsWith("intern=")) intern = Boolean.parseBoolean(arg.substring(7));
+			else 
+			{
+				if (arg.startsWith("dir=")) dir = arg.substring(4);
+				generatorArgs.add(arg);
+			}
+		}
+		
+		SyntheticDataGenerator g = new SyntheticDataGenerator();
+		if (!g.configure(generatorArgs.toArray(new String[0]))) return;
+		long start = System.currentTimeMillis();
+		g.generate();
+		long generated = System.currentTimeMillis();
+		System.out.println("generate : " + (generated-start) + " ms");
+		
+		String unionFn = new File(dir, "merged.xml").getPath();
+		String fnOutput = new File(dir, "fused.xml").getPath();
+		String fnFusionReport = new File(dir, "fusion-report.txt").getPath();
+		String fnSnapshot = new File(dir, "merged.snapshot").getPath();
+		Map<String, AbstractResolutionFunction> rf = new HashMap<String, AbstractResolutionFunction>();
+		rf.put("title", new Vote());
+		rf.put("release", new MostRecent());
+		rf.put("platform", new PassItOn());
+		rf.put("developer", new PassItOn());
+		rf.put("publisher", new PassItOn());
+		rf.put("description", new MostTrusted(g.getTrust(), true));
+		rf.put("mode", new MostTrusted(g.getTrust(), true));
+		rf.put("computingmedia", new MostTrusted(g.getTrust(), true));
+		rf.put("genre", new MostTrusted(g.getTrust(), true));
+		if (cache > 0)
+		{
+			for (AbstractResolutionFunction f : rf.values()) 
+			{
+				if (f.isContextFree()) f.setCacheSize(cache);
+			}
+		}
+		DataFusion.setParallelism(threads);
+		DataFusion.setBatchMode(batch);
+		if (intern) DataFusion.setInternedAttributes(DataFusion.VIDEOGAME_INTERNED_ATTRIBUTES);
+		if (snapshot) DataFusion.setUnionSnapshot(fnSnapshot);
+		
+		long union = generated;
+		if (shards > 0)
+		{
+			if (!DataFusion.runShardedFusion(new File(dir, "shards").getPath(), shards, new ArrayList<String>(), SyntheticDataGenerator.ROOT, 
+					SyntheticDataGenerator.ID_DATA_PATH, SyntheticDataGenerator.ID_PROV_PATH, g.getFilesDuplicates(), g.getFilesData(), rf, 
+					g.getFileGold(), unionFn, fnOutput, fnFusionReport)) return;
+		}
+		else if (budget > 0)
+		{
+			if (!DataFusion.runOutOfCoreFusion(new File(dir, "spill").getPath(), budget << 20, SyntheticDataGenerator.ROOT, 
+					SyntheticDataGenerator.ID_DATA_PATH, SyntheticDataGenerator.ID_PROV_PATH, g.getFilesDuplicates(), g.getFilesData(), rf, 
+					g.getFileGold(), unionFn, fnOutput, fnFusionReport)) return;
+		}
+		else if (pipeline)
+		{
+			if (!DataFusion.runPipelinedFusion(SyntheticDataGenerator.ROOT, SyntheticDataGenerator.ID_DATA_PATH, SyntheticDataGenerator.ID_PROV_PATH, 
+					g.getFilesDuplicates(), g.getFilesData(), rf, g.getFileGold(), unionFn, fnOutput, fnFusionReport)) return;
+		}
+		else if (state != null)
+		{
+			if (!DataFusion.runIncrementalFusion(state, SyntheticDataGenerator.ROOT, SyntheticDataGenerator.ID_DATA_PATH, SyntheticDataGenerator.ID_PROV_PATH, 
+					g.getFilesDuplicates(), g.getFilesData(), rf, g.getFileGold(), unionFn, fnOutput, fnFusionReport)) return;
+		}
+		else
+		{
+			if (!DataFusion.runDataUnion(SyntheticDataGenerator.ROOT, SyntheticDataGenerator.ID_DATA_PATH, SyntheticDataGenerator.ID_PROV_PATH, 
+					g.getFilesDuplicates(), g.getFilesData(), unionFn, fnFusionReport)) return;
+			union = System.currentTimeMillis();
+			System.out.println("union : " + (union-generated) + " ms");
+			if (snapshot)
+			{
+				if (!DataFusion.loadUnionSnapshot(fnSnapshot)) return;
+				System.out.println("snapshot open : " + (System.currentTimeMillis()-union) + " ms");
+			}
+			DataFusion.runDataFusion(rf, SyntheticDataGenerator.ID_DATA_PATH, g.getFileGold(), fnOutput, fnFusionReport);
+		}
+		long fusion = System.currentTimeMillis();
+		System.out.println("fusion : " + (fusion-union) + " ms");
+		System.out.println("total : " + (fusion-start) + " ms");
+		Metrics.writeJson(new File(dir, "metrics.json").getPath());
+		Metrics.writePrometheus(new File(dir, "metrics.prom").getPath());
+		
+		if (!keep)
+		{
+			for (String fn : g.getFilesData()) new File(fn).delete();
+			for (String fn : g.getFilesDuplicates()) new File(fn).delete();
+			new File(g.getFileGold()).delete();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uma.wdi.fusion.bench;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Node;
+
+import uma.wdi.fusion.resolution.AbstractResolutionFunction;
+import uma.wdi.fusion.resolution.Average;
+import uma.wdi.fusion.resolution.Maximum;
+import uma.wdi.fusion.resolution.MostRecent;
+import uma.wdi.fusion.resolution.MostTrusted;
+import uma.wdi.fusion.resolution.Vote;
+import uma.wdi.fusion.utils.AttributeColumn;
+import uma.wdi.fusion.utils.ResolvedColumn;
+
+/* JMH benchmarks of the resolution functions over all merged entities, node by node and column at a time (batch mode)
+ * (the merged dataset is not changed); parameterized as FusionBenchmarks, and by function
+ * 
+ * Run: java -jar target/benchmarks.jar ResolutionBenchmarks [-p function=Vote] (see pom.xml)
+ * 
+ *  @author Volha
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResolutionBenchmarks 
+{
+	@Param({"1000", "10000"})
+	public int entities;
+	
+	@Param({"2", "4"})
+	public int clusterSize;
+	
+	@Param({"Vote", "MostTrusted", "MostRecent", "Average", "Maximum"})
+	public String function;
+	
+	private BenchmarkInput input;
+	private AbstractResolutionFunction rf;
+	private String path;
+	private AttributeColumn column;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		input = new BenchmarkInput(entities, clusterSize);
+		Map<String, Double> trust = new HashMap<String, Double>();
+		for (int s = 1; s <= clusterSize; s++) trust.put("source" + s + ".xml", (double) s);
+		if (function.equals("Vote")) { rf = new Vote(); path = "title"; }
+		else if (function.equals("MostTrusted")) { rf = new MostTrusted(trust); path = "description"; }
+		else if (function.equals("MostRecent")) { rf = new MostRecent(); path = "release"; }
+		else if (function.equals("Average")) { rf = new Average(); path = "score"; }
+		else if (function.equals("Maximum")) { rf = new Maximum(); path = "score"; }
+		else throw new IllegalArgumentException("unknown function " + function);
+		// (reading the column is not measured)
+		column = AttributeColumn.read(input.unionNodes, path);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		input.delete();
+	}
+	
+	// applyStrategy per merged node
+	@Benchmark
+	public void resolveNodes(Blackhole bh)
+	{
+		for (Node node : input.unionNodes) bh.consume(rf.applyStrategy(input.unionDs, node, path));
+	}
+	
+	// applyStrategy for the whole column
+	@Benchmark
+	public ResolvedColumn resolveColumn()
+	{
+		return rf.applyStrategy(input.unionDs, column);
+	}
+}
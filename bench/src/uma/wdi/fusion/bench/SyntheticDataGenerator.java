@@ -0,0 +1,432 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uma.wdi.fusion.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/* Generator of synthetic, provenance-tagged videogame datasets for load testing
+ * Writes (in one streaming pass, without keeping entities in memory):
+ * - sources xml files (source1.xml ...) in the shape of thegamesdb.xml, with one <provenance> element each
+ * - correspondence files matched-x-y.txt (pairs of IDs of the same real-world entity in sources x and y)
+ * - gold.xml in the merged layout (composite <id> of all IDs of an entity, true values with provenance prov00)
+ * 
+ * Every real-world entity is written to a random subset of the sources; the subset size follows clusterSizes,
+ * e.g. "1:0.3,2:0.5,3:0.2" (entities of size 1 have no correspondences). Each source value differs from the
+ * true value with probability conflictRate. The output is the same for the same seed and settings.
+ * 
+ * Usage: SyntheticDataGenerator dir=out [entities=5000] [scale=1] [sources=3] [clusterSizes=1:0.2,2:0.5,3:0.3]
+ *        [platforms=3] [conflictRate=0.3] [descriptionWords=60] [goldFraction=0.05] [seed=1]
+ * 
+ *  @author Volha
+ * */
+public class SyntheticDataGenerator 
+{
+	public static final String ROOT = "data";
+	public static final String ID_DATA_PATH = "//videogame/id";
+	public static final String ID_PROV_PATH = "//provenance/id";
+	
+	private static final String[] PLATFORMS = {"pc", "sony playstation 2", "sony playstation 3", "sony playstation 4", 
+		"microsoft xbox", "microsoft xbox 360", "microsoft xbox one", "mac os", "linux", "nintendo ds", "nintendo wii", 
+		"nintendo gamecube", "sega dreamcast", "android", "ios"};
+	private static final String[] GENRES = {"action game", "action-adventure game", "role-playing video game", 
+		"first-person shooter", "puzzle video game", "racing video game", "sports game", "strategy video game", "platform game"};
+	private static final String[] MODES = {"single-player video game", "multiplayer video game", "cooperative gameplay"};
+	private static final String[] MEDIA = {"optical disc", "digital distribution", "rom cartridge", "dvd", "blu-ray disc"};
+	private static final String[] COMPANIES = {"electronic arts", "ubisoft", "activision", "nintendo", "sega", "capcom", 
+		"konami", "square enix", "bandai namco", "take-two interactive", "bethesda softworks", "valve corporation"};
+	private static final String[] WORDS = {"game", "player", "world", "series", "released", "developed", "published", 
+		"story", "character", "level", "mode", "version", "console", "sequel", "original", "critical", "reception"};
+	private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+	
+	private File dir = new File(".");
+	private long entities = 5000;
+	private int sources = 3;
+	private double[] clusterSizeWeights = {0.0, 0.2, 0.5, 0.3}; // index = cluster size
+	private int platforms = 3;
+	private double conflictRate = 0.3;
+	private int descriptionWords = 60;
+	private double goldFraction = 0.05;
+	private long seed = 1;
+	
+	private final Set<String> filesData = new LinkedHashSet<String>();
+	private final Set<String> filesDuplicates = new LinkedHashSet<String>();
+	private final Map<String, Double> trust = new HashMap<String, Double>();
+	private String fileGold = null;
+	
+	public static void main(String[] args) throws Exception
+	{
+		SyntheticDataGenerator g = new SyntheticDataGenerator();
+		if (!g.configure(args)) return;
+		long start = System.currentTimeMillis();
+		g.generate();
+		System.out.println("generated " + g.entities + " entities in " + g.sources + " sources into " + g.dir 
+				+ " (" + (System.currentTimeMillis()-start) + " ms)");
+	}
+	
+	// Set options from key=value arguments; returns false (and prints a message) on unknown or invalid options
+	public boolean configure(String[] args)
+	{
+		long scale = 1;
+		for (String arg : args)
+		{
+			String[] kv = arg.split("=", 2);
+			if (kv.length != 2)
+			{
+				System.out.println("ERROR: expected key=value, got " + arg);
+				return false;
+			}
+			String k = kv[0];
+			String v = kv[1];
+			if (k.equals("dir")) dir = new File(v);
+			else if (k.equals("entities")) entities = Long.parseLong(v);
+			else if (k.equals("scale")) scale = Long.parseLong(v);
+			else if (k.equals("sources")) sources = Integer.parseInt(v);
+			else if (k.equals("clusterSizes")) clusterSizeWeights = parseWeights(v);
+			else if (k.equals("platforms")) platforms = Integer.parseInt(v);
+			else if (k.equals("conflictRate")) conflictRate = Double.parseDouble(v);
+			else if (k.equals("descriptionWords")) descriptionWords = Integer.parseInt(v);
+			else if (k.equals("goldFraction")) goldFraction = Double.parseDouble(v);
+			else if (k.equals("seed")) seed = Long.parseLong(v);
+			else 
+			{
+				System.out.println("ERROR: unknown option " + k);
+				return false;
+			}
+		}
+		entities = entities*scale;
+		if (clusterSizeWeights.length-1 > sources)
+		{
+			System.out.println("ERROR: cluster size " + (clusterSizeWeights.length-1) + " is greater than the number of sources " + sources);
+			return false;
+		}
+		return true;
+	}
+	
+	// Getters (filled by generate())
+	public Set<String> getFilesData()
+	{
+		return filesData;
+	}
+	public Set<String> getFilesDuplicates()
+	{
+		return filesDuplicates;
+	}
+	public String getFileGold()
+	{
+		return fileGold;
+	}
+	// Trust values of the sources for MostTrusted (source1.xml is the most trusted)
+	public Map<String, Double> getTrust()
+	{
+		return trust;
+	}
+	
+	// Write all files
+	public void generate() throws IOException, XMLStreamException
+	{
+		dir.mkdirs();
+		Random random = new Random(seed);
+		XMLOutputFactory factory = XMLOutputFactory.newInstance();
+		
+		// open all outputs
+		List<OutputStream> streams = new ArrayList<OutputStream>();
+		XMLStreamWriter[] src = new XMLStreamWriter[sources+1];
+		for (int s = 1; s <= sources; s++)
+		{
+			File f = new File(dir, "source" + s + ".xml");
+			filesData.add(f.getPath());
+			trust.put(f.getName(), (double) (sources-s+1));
+			src[s] = open(factory, f, streams);
+			startDocument(src[s]);
+			writeProvenance(src[s], s);
+		}
+		File goldFile = new File(dir, "gold.xml");
+		fileGold = goldFile.getPath();
+		XMLStreamWriter gold = open(factory, goldFile, streams);
+		startDocument(gold);
+		Map<String, Writer> matched = new HashMap<String, Writer>();
+		
+		for (long e = 0; e < entities; e++)
+		{
+			Entity truth = new Entity(e, random);
+			
+			// choose the sources of the entity
+			int size = drawClusterSize(random);
+			List<Integer> members = new ArrayList<Integer>();
+			while (members.size() < size)
+			{
+				int s = 1 + random.nextInt(sources);
+				if (!members.contains(s)) members.add(s);
+			}
+			java.util.Collections.sort(members);
+			List<String> ids = new ArrayList<String>();
+			for (int s : members)
+			{
+				String id = "s" + s + "e" + e;
+				ids.add(id);
+				writeEntity(src[s], id, truth.variant(random), random);
+			}
+			// correspondences: the first member with each of the others
+			for (int i = 1; i < members.size(); i++)
+			{
+				String key = members.get(0) + "-" + members.get(i);
+				Writer w = matched.get(key);
+				if (w == null)
+				{
+					File f = new File(dir, "matched-" + key + ".txt");
+					filesDuplicates.add(f.getPath());
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16);
+					streams.add(out);
+					w = new OutputStreamWriter(out, "UTF-8");
+					matched.put(key, w);
+				}
+				w.write(ids.get(0) + "," + ids.get(i) + "\n");
+			}
+			if (size > 1 && random.nextDouble() < goldFraction) writeGold(gold, ids, members, truth);
+		}
+		
+		for (int s = 1; s <= sources; s++) endDocument(src[s]);
+		endDocument(gold);
+		for (Writer w : matched.values()) w.flush();
+		for (OutputStream out : streams) out.close();
+	}
+	
+	private int drawClusterSize(Random random)
+	{
+		double total = 0.0;
+		for (double w : clusterSizeWeights) total += w;
+		double r = random.nextDouble()*total;
+		for (int size = 1; size < clusterSizeWeights.length; size++)
+		{
+			r -= clusterSizeWeights[size];
+			if (r < 0) return size;
+		}
+		return clusterSizeWeights.length-1;
+	}
+	
+	// Parse "size:weight,size:weight" into an array indexed by size
+	private static double[] parseWeights(String spec)
+	{
+		Map<Integer, Double> weights = new HashMap<Integer, Double>();
+		int max = 1;
+		for (String part : spec.split(","))
+		{
+			String[] sw = part.split(":");
+			int size = Integer.parseInt(sw[0].trim());
+			if (size < 1) throw new IllegalArgumentException("cluster size must be at least 1: " + part);
+			weights.put(size, sw.length > 1 ? Double.parseDouble(sw[1].trim()) : 1.0);
+			max = Math.max(max, size);
+		}
+		double[] result = new double[max+1];
+		for (Map.Entry<Integer, Double> w : weights.entrySet()) result[w.getKey()] = w.getValue();
+		return result;
+	}
+	
+	private XMLStreamWriter open(XMLOutputFactory factory, File f, List<OutputStream> streams) throws IOException, XMLStreamException
+	{
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 20);
+		streams.add(out);
+		return factory.createXMLStreamWriter(out, "UTF-8");
+	}
+	
+	private static void startDocument(XMLStreamWriter w) throws XMLStreamException
+	{
+		w.writeStartDocument("UTF-8", "1.0");
+		w.writeCharacters("\n");
+		w.writeStartElement(ROOT);
+		w.writeCharacters("\n");
+	}
+	
+	private static void endDocument(XMLStreamWriter w) throws XMLStreamException
+	{
+		w.writeEndElement();
+		w.writeCharacters("\n");
+		w.writeEndDocument();
+		w.flush();
+	}
+	
+	private void writeProvenance(XMLStreamWriter w, int s) throws XMLStreamException
+	{
+		w.writeCharacters("\t");
+		w.writeStartElement("provenance");
+		w.writeCharacters("\n");
+		element(w, 2, "id", provenanceID(s));
+		element(w, 2, "source", "source" + s + ".xml");
+		// later sources are more recent
+		element(w, 2, "date", (1 + s%28) + " " + MONTHS[(s/28)%12] + " " + (2014 + s/336) + " 00:00:00 +0100");
+		w.writeCharacters("\t");
+		w.writeEndElement();
+		w.writeCharacters("\n");
+	}
+	
+	private static String provenanceID(int s)
+	{
+		return s < 10 ? "prov0" + s : "prov" + s;
+	}
+	
+	private void writeEntity(XMLStreamWriter w, String id, Entity v, Random random) throws XMLStreamException
+	{
+		w.writeCharacters("\t");
+		w.writeStartElement("videogame");
+		w.writeCharacters("\n");
+		element(w, 2, "id", id);
+		element(w, 2, "title", v.title);
+		if (v.release != null) element(w, 2, "release", v.release);
+		for (String p : v.platforms) element(w, 2, "platform", p);
+		if (v.developer != null) element(w, 2, "developer", v.developer);
+		if (v.publisher != null) element(w, 2, "publisher", v.publisher);
+		if (v.genre != null) element(w, 2, "genre", v.genre);
+		if (v.mode != null) element(w, 2, "mode", v.mode);
+		if (v.computingmedia != null) element(w, 2, "computingmedia", v.computingmedia);
+		if (v.description != null) element(w, 2, "description", v.description);
+		w.writeCharacters("\t");
+		w.writeEndElement();
+		w.writeCharacters("\n");
+	}
+	
+	// Gold standard entity in the merged layout: composite id and true values
+	private void writeGold(XMLStreamWriter w, List<String> ids, List<Integer> members, Entity truth) throws XMLStreamException
+	{
+		w.writeCharacters("  ");
+		w.writeStartElement("videogame");
+		w.writeCharacters("\n    ");
+		w.writeStartElement("id");
+		for (int i = 0; i < ids.size(); i++) goldValue(w, provenanceID(members.get(i)), ids.get(i));
+		w.writeCharacters("\n    ");
+		w.writeEndElement();
+		goldAttribute(w, "title", truth.title);
+		goldAttribute(w, "release", truth.release);
+		goldAttribute(w, "genre", truth.genre);
+		goldAttribute(w, "mode", truth.mode);
+		goldAttribute(w, "computingmedia", truth.computingmedia);
+		goldAttribute(w, "description", truth.description);
+		w.writeCharacters("\n  ");
+		w.writeEndElement();
+		w.writeCharacters("\n");
+	}
+	
+	private static void goldAttribute(XMLStreamWriter w, String name, String value) throws XMLStreamException
+	{
+		w.writeCharacters("\n    ");
+		w.writeStartElement(name);
+		goldValue(w, "prov00", value);
+		w.writeCharacters("\n    ");
+		w.writeEndElement();
+	}
+	
+	private static void goldValue(XMLStreamWriter w, String provenance, String value) throws XMLStreamException
+	{
+		w.writeCharacters("\n      ");
+		w.writeStartElement("value");
+		w.writeAttribute("provenance", provenance);
+		w.writeCharacters(value);
+		w.writeEndElement();
+	}
+	
+	private static void element(XMLStreamWriter w, int indent, String name, String value) throws XMLStreamException
+	{
+		for (int i = 0; i < indent; i++) w.writeCharacters("\t");
+		w.writeStartElement(name);
+		w.writeCharacters(value);
+		w.writeEndElement();
+		w.writeCharacters("\n");
+	}
+	
+	private static String pick(String[] values, Random random)
+	{
+		return values[random.nextInt(values.length)];
+	}
+	
+	// Values of one real-world entity; variant() gives the values a source has (with conflicts and missing values)
+	private class Entity
+	{
+		String title;
+		String release;
+		List<String> platforms = new ArrayList<String>();
+		String developer;
+		String publisher;
+		String genre;
+		String mode;
+		String computingmedia;
+		String description;
+		
+		Entity()
+		{
+		}
+		
+		Entity(long e, Random random)
+		{
+			title = "game " + Long.toString(e, 36) + " " + pick(WORDS, random);
+			release = (1980 + random.nextInt(35)) + "-" + twoDigits(1 + random.nextInt(12)) + "-" + twoDigits(1 + random.nextInt(28));
+			int n = SyntheticDataGenerator.this.platforms == 0 ? 0 : 1 + random.nextInt(SyntheticDataGenerator.this.platforms);
+			for (int i = 0; i < n; i++) platforms.add(pick(PLATFORMS, random));
+			developer = pick(COMPANIES, random);
+			publisher = pick(COMPANIES, random);
+			genre = pick(GENRES, random);
+			mode = pick(MODES, random);
+			computingmedia = pick(MEDIA, random);
+			StringBuilder sb = new StringBuilder(title + " is a " + genre);
+			for (int i = 0; i < descriptionWords; i++) sb.append(' ').append(pick(WORDS, random));
+			description = sb.toString();
+		}
+		
+		Entity variant(Random random)
+		{
+			Entity v = new Entity();
+			v.title = conflict(random) ? title + " " + pick(WORDS, random) : title;
+			v.release = missing(random) ? null : conflict(random) ? (Integer.parseInt(release.substring(0, 4)) + 1) + release.substring(4) : release;
+			for (String p : platforms) if (!conflict(random)) v.platforms.add(p);
+			if (conflict(random)) v.platforms.add(pick(PLATFORMS, random));
+			v.developer = missing(random) ? null : conflict(random) ? pick(COMPANIES, random) : developer;
+			v.publisher = missing(random) ? null : conflict(random) ? pick(COMPANIES, random) : publisher;
+			v.genre = missing(random) ? null : conflict(random) ? pick(GENRES, random) : genre;
+			v.mode = missing(random) ? null : conflict(random) ? pick(MODES, random) : mode;
+			v.computingmedia = missing(random) ? null : conflict(random) ? pick(MEDIA, random) : computingmedia;
+			v.description = missing(random) ? null : conflict(random) ? description.substring(0, description.length()/2) : description;
+			return v;
+		}
+		
+		private boolean conflict(Random random)
+		{
+			return random.nextDouble() < conflictRate;
+		}
+		
+		private boolean missing(Random random)
+		{
+			return random.nextDouble() < 0.1;
+		}
+	}
+	
+	private static String twoDigits(int i)
+	{
+		return i < 10 ? "0" + i : String.valueOf(i);
+	}
+}
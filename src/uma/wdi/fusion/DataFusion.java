@@ -17,11 +17,21 @@ package uma.wdi.fusion;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import uma.wdi.fusion.input.Dataset;
 import uma.wdi.fusion.input.Duplicates;
@@ -32,7 +42,9 @@ import uma.wdi.fusion.resolution.MostRecent;
 import uma.wdi.fusion.resolution.MostTrusted;
 import uma.wdi.fusion.resolution.PassItOn;
 import uma.wdi.fusion.resolution.Vote;
-import uma.wdi.fusion.utils.XMLUtils;
+import uma.wdi.fusion.utils.Metrics;
+import uma.wdi.fusion.utils.ProvenanceRegistry;
+import uma.wdi.fusion.utils.ValueDictionary;
 
 
 /* Main class of the Data Fusion WDI project
@@ -44,20 +56,80 @@ public class DataFusion
 {
 	private static Dataset unionDs = new Dataset();
 	private static DataUnion du = new DataUnion();
+	private static Future<Boolean> unionWrite = null;
+	private static int parallelism = 1;
+	private static int loadThreads = Runtime.getRuntime().availableProcessors();
+	private static boolean batchMode = false;
+	private static String unionSnapshot = null;
+	private static Set<String> internedAttributes = new HashSet<String>();
+	
+	// Timer per pipeline phase (label "phase"), see Metrics
+	static final String PHASE_METRIC = "wdi_fusion_phase_seconds";
+
+	// Number of threads used for conflict resolution in runDataFusion (1 = sequential)
+	public static void setParallelism(int threads)
+	{
+		parallelism = threads;
+	}
+	
+	// Number of files loaded at once in runDataUnion (input datasets and the correspondence files)
+	public static void setLoadThreads(int threads)
+	{
+		loadThreads = Math.max(1, threads);
+	}
+	
+	// Resolve pair-based functions column by column in runDataFusion (see Evaluator.setBatchMode)
+	public static void setBatchMode(boolean batch)
+	{
+		batchMode = batch;
+	}
+
+	// Attributes of the videogame datasets (see main) with small vocabularies
+	public static final Set<String> VIDEOGAME_INTERNED_ATTRIBUTES = Collections.unmodifiableSet(new HashSet<String>(
+			Arrays.asList("platform", "developer", "publisher", "mode", "computingmedia", "genre")));
+	
+	// Attributes (element names) with small vocabularies, whose repeated values share one String (none by default);
+	// each run (runDataUnion or loadUnionSnapshot with runDataFusion, run...Fusion) creates a new ValueDictionary for them 
+	// and passes it to its loaders (the merged dataset keeps it for the gold standard, see Dataset.getValueDictionary())
+	public static void setInternedAttributes(Set<String> attributes)
+	{
+		internedAttributes = new HashSet<String>(attributes);
+	}
+
+	// Also write the merged dataset as a binary snapshot to file fn in runDataUnion (null: no snapshot), 
+	// so that it can be fused again later without parsing xml (see loadUnionSnapshot)
+	public static void setUnionSnapshot(String fn)
+	{
+		unionSnapshot = fn;
+	}
+	
+	// Open a merged dataset written as a snapshot by an earlier runDataUnion, to be fused by runDataFusion without running the union again
+	// (the data nodes are read from the snapshot chunk by chunk during the fusion)
+	public static boolean loadUnionSnapshot(String fn)
+	{
+		long start = Metrics.Timer.start();
+		ProvenanceRegistry.reset();
+		Dataset ds = new Dataset();
+		ds.setValueDictionary(new ValueDictionary(internedAttributes));
+		if (!ds.loadFromSnapshot(fn)) return false;
+		du = new DataUnion();
+		du.readAttributes(ds.getSnapshot());
+		unionDs = ds;
+		Metrics.timer(PHASE_METRIC, "phase", "snapshot_open").stop(start);
+		return true;
+	}
 
 	// Read duplicate pairs, create clusters
 	// Create merged representation
 	// Calculate density for input datasets
 	// Calculate density and consistency for merged dataset
 	// Create the first part of fusion report
-	public static  boolean runDataUnion(String rootElementName, String idDataPath, String idProvPath, 
-			Set<String> filesDuplicates, Set<String> filesData, 
+	// The merged dataset is passed on in memory; it is written to unionFn in the background (not written if unionFn is null)
+	// The correspondence files and the input datasets are loaded at the same time, by up to loadThreads threads (see setLoadThreads)
+	public static  boolean runDataUnion(String rootElementName, final String idDataPath, final String idProvPath, 
+			final Set<String> filesDuplicates, Set<String> filesData, 
 			String unionFn, String fnFusionReport)
 	{
-		// read duplicate clusters
-		Duplicates dupl = new Duplicates();
-		dupl.read(filesDuplicates);
-		
 		PrintStream out = System.out;
 		if (fnFusionReport != null)
 		try 
@@ -69,31 +141,44 @@ public class DataFusion
 			e.printStackTrace();
 		}
 
-		// read input datasets, calculate dataset-centric measures (slide 56)
-		Set<Dataset> datasets = new HashSet<Dataset>();
-		for(String fn : filesData) 
-		{
-			Dataset ds = new Dataset();
-			if (!ds.loadFromFile(fn, idDataPath, idProvPath, true, false)) return false;
-			datasets.add(ds);
-		}
+		// read duplicate clusters and input datasets concurrently, calculate dataset-centric measures (slide 56)
+		ProvenanceRegistry.reset();
+		ValueDictionary dictionary = new ValueDictionary(internedAttributes);
+		Duplicates dupl = new Duplicates();
+		Set<Dataset> datasets = loadInputs(dupl, filesDuplicates, filesData, idDataPath, idProvPath, dictionary);
+		if (datasets == null) return false;
 		
 		// create a merged representation, calculate consistency (slide 57)
 		// DataUnion du = new DataUnion();
+		long start = Metrics.Timer.start();
 		if (du.createUnion(datasets, dupl, rootElementName) == null)
 		{
 			System.out.println("Error: merged dataset could not be created correctly");
 			return false;
 		}
-		du.writeUnionToFile(unionFn);
+		if (unionFn != null) unionWrite = du.writeUnionToFileAsync(unionFn);
+		Metrics.timer(PHASE_METRIC, "phase", "union").stop(start);
+		if (unionSnapshot != null)
+		{
+			start = Metrics.Timer.start();
+			if (!du.writeSnapshot(unionSnapshot)) System.out.println("Error: snapshot " + unionSnapshot + " of the merged dataset could not be written");
+			Metrics.timer(PHASE_METRIC, "phase", "union_snapshot").stop(start);
+		}
 		
-		unionDs.loadFromFile(unionFn, idDataPath, idProvPath, false, true);
+		// (input datasets are profiled in createUnion)
+		start = Metrics.Timer.start();
+		unionDs = du.getUnionDataset();
+		unionDs.setValueDictionary(dictionary);
 		unionDs.getDatasetDensityCounts();
+		Metrics.timer(PHASE_METRIC, "phase", "profile").stop(start);
 		
 		// calculate consistency
-		unionDs.calculateDatasetConsistency(du.getNonListAttributes(), datasets.size());
+		start = Metrics.Timer.start();
+		Map<String, Double> unionAttrC = unionDs.calculateDatasetConsistency(du.getNonListAttributes(), datasets.size());
+		Metrics.timer(PHASE_METRIC, "phase", "consistency").stop(start);
 	
 		// output the results:
+		start = Metrics.Timer.start();
 		out.println("FUSION REPORT");
 		out.println();
 		out.println("Number of node clusters : " + dupl.size());
@@ -125,7 +210,6 @@ public class DataFusion
 		out.println("average number of non-null attributes per object : " + unionD*attrCnt);	
 		out.println("dataset consistency : " + unionC);
 		out.println();
-		Map<String, Double> unionAttrC = unionDs.calculateDatasetConsistency(du.getNonListAttributes(), datasets.size());
 		for (String a : du.getAllAttributes())
 		{
 			out.println("density, attribute " + a + " : " + unionDs.getAttributetDensity(a));
@@ -135,9 +219,77 @@ public class DataFusion
 			else out.println("consistency, attribute " + a + " : " + cons);
 		}
 		// out.close();
+		Metrics.timer(PHASE_METRIC, "phase", "report").stop(start);
 		return true;
 	}
 
+	// Read the correspondence files into dupl and load the input datasets at the same time, by up to loadThreads threads,
+	// interning their values in dictionary
+	// Returns null if the correspondences or a dataset could not be read (the remaining loads are cancelled)
+	static Set<Dataset> loadInputs(final Duplicates dupl, final Set<String> filesDuplicates, Set<String> filesData, 
+			final String idDataPath, final String idProvPath, final ValueDictionary dictionary)
+	{
+		long start = Metrics.Timer.start();
+		ExecutorService loader = Executors.newFixedThreadPool(Math.min(loadThreads, filesData.size()+1));
+		CompletionService<Boolean> loads = new ExecutorCompletionService<Boolean>(loader);
+		loads.submit(new Callable<Boolean>()
+		{
+			@Override
+			public Boolean call()
+			{
+				long start = Metrics.Timer.start();
+				boolean ok = dupl.read(filesDuplicates);
+				Metrics.timer(PHASE_METRIC, "phase", "duplicates").stop(start);
+				return ok;
+			}
+		});
+		final Dataset[] loaded = new Dataset[filesData.size()];
+		int i = 0;
+		for (final String fn : filesData) 
+		{
+			final int index = i++;
+			loads.submit(new Callable<Boolean>()
+			{
+				@Override
+				public Boolean call()
+				{
+					Dataset ds = new Dataset();
+					ds.setValueDictionary(dictionary);
+					if (!ds.loadFromFile(fn, idDataPath, idProvPath, true, false)) return false;
+					loaded[index] = ds;
+					return true;
+				}
+			});
+		}
+		loader.shutdown();
+		try 
+		{
+			// (in the order the reads finish, so that a failed one aborts the run as soon as it is done)
+			for (int n = 0; n < loaded.length+1; n++)
+			{
+				if (!loads.take().get()) return null;
+			}
+		} 
+		catch (InterruptedException e) 
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} 
+		catch (ExecutionException e) 
+		{
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			// cancels the reads that are still running after a failure
+			loader.shutdownNow();
+		}
+		Set<Dataset> datasets = new HashSet<Dataset>(Arrays.asList(loaded));
+		Metrics.timer(PHASE_METRIC, "phase", "load").stop(start);
+		return datasets;
+	}
+	
 	// Apply conflict strategies, compare against gold standard, calculate accuracy, finish the fusion report
 	// (appends to the fusion report)
 	public static void runDataFusion(Map<String, AbstractResolutionFunction> rf, String idDataPath, String fnGold, String fnOutput, String fnFusionReport)
@@ -152,8 +304,16 @@ public class DataFusion
 		{
 			e.printStackTrace();
 		}
+		// the merged dataset is changed by the resolution, it has to be written to file before
+		long start = Metrics.Timer.start();
+		waitForUnionFile();
+		Metrics.timer(PHASE_METRIC, "phase", "wait_union_output").stop(start);
+		start = Metrics.Timer.start();
 		Evaluator evaluator = new Evaluator();
+		evaluator.setParallelism(parallelism);
+		evaluator.setBatchMode(batchMode);
 		evaluator.evaluate(rf, unionDs, idDataPath, du.getNonListAttributes(), fnGold, fnOutput);
+		Metrics.timer(PHASE_METRIC, "phase", "fusion").stop(start);
 		
 		out.println();
 		out.println("Fused dataset:");
@@ -167,6 +327,78 @@ public class DataFusion
 		out.close();
 	}
 	
+	// Union, fusion and evaluation as runDataUnion and runDataFusion, with the state kept in stateDir between runs,
+	// so that only clusters affected by changed datasets or correspondence files are recomputed (see IncrementalFusion)
+	public static boolean runIncrementalFusion(String stateDir, String rootElementName, String idDataPath, String idProvPath, 
+			Set<String> filesDuplicates, Set<String> filesData, Map<String, AbstractResolutionFunction> rf, 
+			String fnGold, String unionFn, String fnOutput, String fnFusionReport)
+	{
+		IncrementalFusion fusion = new IncrementalFusion(stateDir);
+		fusion.setParallelism(parallelism);
+		fusion.setBatchMode(batchMode);
+		fusion.setInternedAttributes(internedAttributes);
+		ProvenanceRegistry.reset();
+		return fusion.run(rootElementName, idDataPath, idProvPath, filesDuplicates, filesData, rf, fnGold, unionFn, fnOutput, fnFusionReport);
+	}
+	
+	// Union, fusion and evaluation as runDataUnion and runDataFusion, with the clusters split into shards, 
+	// each processed by a worker process of its own (see ShardedFusion), e.g. for data that does not fit into the memory of one process
+	// workerOptions : options of the worker JVMs (e.g. "-Xmx8g")
+	public static boolean runShardedFusion(String workDir, int shards, List<String> workerOptions, String rootElementName, 
+			String idDataPath, String idProvPath, Set<String> filesDuplicates, Set<String> filesData, Map<String, AbstractResolutionFunction> rf, 
+			String fnGold, String unionFn, String fnOutput, String fnFusionReport)
+	{
+		ShardedFusion fusion = new ShardedFusion(workDir, shards);
+		fusion.setParallelism(parallelism);
+		fusion.setBatchMode(batchMode);
+		fusion.setWorkerOptions(workerOptions);
+		fusion.setInternedAttributes(internedAttributes);
+		return fusion.run(rootElementName, idDataPath, idProvPath, filesDuplicates, filesData, rf, fnGold, unionFn, fnOutput, fnFusionReport);
+	}
+	
+	// Union, fusion and evaluation as runDataUnion and runDataFusion, with the objects spilled to files sorted by cluster 
+	// and processed chunk by chunk (see OutOfCoreFusion), so that the heap needed depends on memoryBudget (bytes) and the largest cluster
+	public static boolean runOutOfCoreFusion(String spillDir, long memoryBudget, String rootElementName, 
+			String idDataPath, String idProvPath, Set<String> filesDuplicates, Set<String> filesData, Map<String, AbstractResolutionFunction> rf, 
+			String fnGold, String unionFn, String fnOutput, String fnFusionReport)
+	{
+		OutOfCoreFusion fusion = new OutOfCoreFusion(spillDir, memoryBudget);
+		fusion.setParallelism(parallelism);
+		fusion.setBatchMode(batchMode);
+		fusion.setInternedAttributes(internedAttributes);
+		ProvenanceRegistry.reset();
+		return fusion.run(rootElementName, idDataPath, idProvPath, filesDuplicates, filesData, rf, fnGold, unionFn, fnOutput, fnFusionReport);
+	}
+	
+	// Union, fusion and evaluation as runDataUnion and runDataFusion, as a pipeline of stages (union, resolve, write, evaluate) 
+	// connected by bounded queues, through which the clusters flow chunk by chunk (see PipelinedFusion)
+	public static boolean runPipelinedFusion(String rootElementName, String idDataPath, String idProvPath, 
+			Set<String> filesDuplicates, Set<String> filesData, Map<String, AbstractResolutionFunction> rf, 
+			String fnGold, String unionFn, String fnOutput, String fnFusionReport)
+	{
+		PipelinedFusion fusion = new PipelinedFusion();
+		fusion.setParallelism(parallelism);
+		fusion.setBatchMode(batchMode);
+		fusion.setInternedAttributes(internedAttributes);
+		ProvenanceRegistry.reset();
+		return fusion.run(rootElementName, idDataPath, idProvPath, filesDuplicates, filesData, rf, fnGold, unionFn, fnOutput, fnFusionReport);
+	}
+	
+	// Wait until the merged dataset is written to file
+	private static void waitForUnionFile()
+	{
+		if (unionWrite == null) return;
+		try 
+		{
+			unionWrite.get();
+		} 
+		catch (InterruptedException | ExecutionException e) 
+		{
+			e.printStackTrace();
+		}
+		unionWrite = null;
+	}
+	
 	public static void main(String[] args) 
 	{
 		// Start logging time
@@ -202,9 +434,12 @@ public class DataFusion
 		String unionFn = "resources/videogames/merged.xml";
 		String fnFusionReport = "resources/videogames/fusion-report.txt";
 		String fnOutput = "resources/videogames/fused.xml";
+		String fnMetrics = "resources/videogames/metrics"; // .json and .prom
 
 		// *** Step 2 ***
-		// produce a "merged" dataset
+		// values of attributes with small vocabularies are kept once in memory
+		setInternedAttributes(VIDEOGAME_INTERNED_ATTRIBUTES);
+		// produce a "merged" dataset (with setUnionSnapshot("resources/videogames/merged.snapshot") also as a binary snapshot)
 //		boolean unionRes = runDataUnion(rootElementName, idDataPath, idProvPath, filesDuplicates, filesData, unionFn, fnFusionReport);
 		// if (!unionRes) return;
 
@@ -249,21 +484,36 @@ public class DataFusion
 		trust.put("giantbomb.xml", 2.0);
 		trust.put("thegamesdb.xml", 1.0);
 		rf.put("genre", new MostTrusted(trust,true));
+		// attributes with small vocabularies repeat the same groups of values, their results can be cached, e.g.:
+		// rf.get("genre").setCacheSize(10000);
 		
 		
 		
 
 		// *** Step 5 ***
-		// fuse and compare to gold standard
+		// fuse and compare to gold standard (resolution runs on all available cores)
+		// (to fuse a merged dataset written as a snapshot in an earlier run: loadUnionSnapshot("resources/videogames/merged.snapshot");)
+		setParallelism(Runtime.getRuntime().availableProcessors());
 		runDataFusion(rf, idDataPath, fnGold, fnOutput, fnFusionReport);
+		// or, instead of steps 2 and 5, recompute only what changed since the last run:
+		// runIncrementalFusion("resources/videogames/state", rootElementName, idDataPath, idProvPath, filesDuplicates, filesData, 
+		//		rf, fnGold, unionFn, fnOutput, fnFusionReport);
+		// or, for data too large for one process, in 4 worker processes:
+		// runShardedFusion("resources/videogames/shards", 4, Arrays.asList("-Xmx2g"), rootElementName, idDataPath, idProvPath, 
+		//		filesDuplicates, filesData, rf, fnGold, unionFn, fnOutput, fnFusionReport);
+		// or in one process with a memory budget, spilling the objects to disk:
+		// runOutOfCoreFusion("resources/videogames/spill", OutOfCoreFusion.DEFAULT_MEMORY_BUDGET, rootElementName, idDataPath, idProvPath, 
+		//		filesDuplicates, filesData, rf, fnGold, unionFn, fnOutput, fnFusionReport);
+		// or with union, resolution, output and evaluation running as stages of a pipeline:
+		// runPipelinedFusion(rootElementName, idDataPath, idProvPath, filesDuplicates, filesData, rf, fnGold, unionFn, fnOutput, fnFusionReport);
 		
 		System.out.println("Fusion successfully finished");
 		
 		// End logging time
         Long endTime = new Date().getTime();
         double runTime = endTime - startTime;
-		System.out.println("fast = " + XMLUtils.fastGetValue);
-		System.out.println("slow = " + XMLUtils.slowGetValue);
         System.out.println("runtime : " + runTime);
+        Metrics.writeJson(fnMetrics + ".json");
+        Metrics.writePrometheus(fnMetrics + ".prom");
 	}
 }
@@ -14,24 +14,37 @@
 
 package uma.wdi.fusion;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLStreamException;
 
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import uma.wdi.fusion.input.Dataset;
 import uma.wdi.fusion.input.Duplicates;
+import uma.wdi.fusion.input.UnionSnapshot;
+import uma.wdi.fusion.utils.Metrics;
+import uma.wdi.fusion.utils.NodeMap;
 import uma.wdi.fusion.utils.XMLUtils;
 
 /* Create a union of all attribute values from a list of datasets
  *	Uses <value provenance="prov02">...</value> format
  *	Keeps all provenance elements
  *	Fills attributes (with list attributes filtered) allAttributes and listNodes hash maps
+ *	Keeps the merged nodes by their composite IDs, so that the merged dataset can be used without writing and re-reading it
+ *	Objects of the clusters are looked up in an index ID -> (dataset, node), built in one pass over the datasets
+ *	The merged dataset can be written as xml or as a binary snapshot (see UnionSnapshot)
  *	
  * @author Volha
  * */
@@ -41,6 +54,8 @@ public class DataUnion
 	private Set<String> attributes = new HashSet<String>();
 	private Set<String> allAttributes = new HashSet<String>();
 	private Set<String> listNodes = new HashSet<String>();
+	private NodeMap unionData = null;
+	private NodeMap unionProvenance = null;
 
 	// Getters
 	public Set<String> getNonListAttributes()
@@ -56,6 +71,13 @@ public class DataUnion
 		return listNodes;
 	}
 	
+	// Get the result of the createUnion() method as a dataset (the same as loading it from file with listID=true)
+	public Dataset getUnionDataset()
+	{
+		if (root == null) return null;
+		return new Dataset(unionData, unionProvenance);
+	}
+	
 	/* Create a union of all attribute values from a list of datasets
 	* Uses <value provenance="prov02">...</value> format
 	* Keeps all provenance elements
@@ -68,20 +90,25 @@ public class DataUnion
 		String elementName = datasets.iterator().next().getDataElementName();
 				
 		// 1: getDatasetDensityCounts() for each dataset and merge them into "attributes"
-		String idAttr = null;
 		for(Dataset ds : datasets)
 		{
-			if (idAttr == null) idAttr = ds.getData().getIDAttribute();
-			Map<String, Integer> dsAttr = ds.getDatasetDensityCounts();
-			for (String a : dsAttr.keySet())
-			{
-				if (!allAttributes.contains(a)) allAttributes.add(a);				
-			}
-			for (String ln: ds.getListNodes().keySet())
-			{
-				if (!listNodes.contains(ln)) listNodes.add(ln);				
-			}
+			addAttributes(ds.getDatasetDensityCounts().keySet(), ds.getListNodes().keySet());
 		}
+		filterListNodes();
+		
+		return createUnion(datasets, dupl.getClusters().values(), elementName, rootPath);
+	}
+	
+	// Add the attribute paths and list nodes found in a dataset (see DatasetProfile) to allAttributes and listNodes
+	void addAttributes(Set<String> densityPaths, Set<String> datasetListNodes)
+	{
+		allAttributes.addAll(densityPaths);
+		listNodes.addAll(datasetListNodes);
+	}
+	
+	// Fill attributes: all attributes without list nodes and their children
+	void filterListNodes()
+	{
 		// if you want ID attribute to not be counted:
 		// allAttributes.remove(idAttr);
 		
@@ -104,46 +131,57 @@ public class DataUnion
 			// else System.out.println("filtered " + attr);
 		}
 		listNodes = newListNodes;
+	}
+	
+	// Create the merged nodes of the given clusters (in the order of clusters) from the objects in datasets, 
+	// with the attributes collected before (addAttributes(), filterListNodes())
+	// datasets only need to contain the clustered objects (see IncrementalFusion)
+	Node createUnion(Collection<Dataset> datasets, Collection<Set<String>> clusters, String elementName, String rootPath)
+	{
+		String idAttr = null;
+		for (Dataset ds : datasets)
+		{
+			if (idAttr == null) idAttr = ds.getData().getIDAttribute();
+		}
 		
-		// 2: prepare list of IDs from getIDtoClusterMap 
+		// 2: index IDs of all clustered objects: ID -> (dataset, node), looking at each dataset once
 		// 3: collect provenance nodes from all datasets
-		Map<String,Dataset> idToDataset = new HashMap<String,Dataset>();
+		Set<String> clusteredIDs = new HashSet<String>();
+		for (Set<String> clusterIDs : clusters) clusteredIDs.addAll(clusterIDs);
+		Map<String,Source> idToSource = new HashMap<String,Source>(clusteredIDs.size()*4/3+1);
 		Map<String,Node> provenance = new HashMap<String,Node>();
-		for (String id : dupl.getIDtoClusterMap().keySet())
+		String idProv = null;
+		for (Dataset ds : datasets)
 		{
-			for (Dataset ds : datasets)
+			if (idProv == null) idProv = ds.getProvenance().getIDAttribute();
+			// collect provenance
+			for (Entry<String,Node> prv : ds.getProvenance().getEntrySet())
 			{
-				// collect provenance
-				for (Entry<String,Node> prv : ds.getProvenance().getEntrySet())
-				{
-					provenance.put(prv.getKey(), prv.getValue());
-				}
-				// collect IDs
-				if (ds.getData().getNode(id) != null)
+				provenance.put(prv.getKey(), prv.getValue());
+			}
+			// collect IDs
+			String prv = ds.getProvenanceID();
+			for (Entry<String,Node> entry : ds.getData().getEntrySet())
+			{
+				String id = entry.getKey();
+				if (!clusteredIDs.contains(id)) continue;
+				if (idToSource.put(id, new Source(ds, entry.getValue(), prv)) != null)
 				{
-					if (idToDataset.containsKey(id))
-					{
-						// should not be the case!
-						System.out.println("Error: object with ID "+id+" is found in multiple datasets");
-					}
-					idToDataset.put(id, ds);
+					// should not be the case!
+					System.out.println("Error: object with ID "+id+" is found in multiple datasets");
 				}
 			}
 		}		 
 
 		// check your clusters
 		boolean clustersOK = true;
-		for (Entry<Integer, Set<String>> entry : dupl.getClusters().entrySet())
+		for (String id : clusteredIDs)
 		{
-			Set<String> clusterIDs = entry.getValue();
-			for (String id : clusterIDs) // for each cluster Node
+			if (!idToSource.containsKey(id)) 
 			{
-				if (idToDataset.get(id) == null) 
-				{
-					System.out.println("Error: element "+id+" from the duplicate clusters is not found in your data");
-					clustersOK = false;
-				}
-			}		
+				System.out.println("Error: element "+id+" from the duplicate clusters is not found in your data");
+				clustersOK = false;
+			}
 		}
 		if (!clustersOK) return null;
 
@@ -151,58 +189,90 @@ public class DataUnion
 		// 4: create new root node (TODO: path is 2 levels back from the id path)
 		// or just "dataUnion"->provenance, "dataUnion"-> data
 		root = XMLUtils.createDocument(rootPath);
+		unionData = new NodeMap();
+		unionData.setIDAttribute(idAttr);
+		unionProvenance = new NodeMap();
+		unionProvenance.setIDAttribute(idProv);
 	 
 		// 5: add provenance to the root node
 		for (Entry<String,Node> prv : provenance.entrySet())
 		{
-			root.appendChild(root.getOwnerDocument().adoptNode(prv.getValue().cloneNode(true)));
+			Node prvNode = root.appendChild(root.getOwnerDocument().adoptNode(prv.getValue().cloneNode(true)));
+			unionProvenance.addNode(prv.getKey(), prvNode);
 		}
 	
 		// for each cluster
-		for (Entry<Integer, Set<String>> entry : dupl.getClusters().entrySet())
+		for (Set<String> clusterIDs : clusters)
+		{
+			Node obj = appendCluster(root, clusterIDs, idToSource, elementName);
+			unionData.addNode(unionData.getCompositeID(clusterIDs), obj);
+		}		
+		return root;
+	}
+	
+	// Create the merged node of one cluster from its objects (by ID, with the provenance ID of each) and append it to parent,
+	// with the attributes collected before (addAttributes(), filterListNodes()); for clusters merged one by one (see OutOfCoreFusion)
+	// Returns null (with an error message) if an object of the cluster is missing
+	Node appendCluster(Node parent, Set<String> clusterIDs, Map<String,Node> objects, Map<String,String> provenanceIDs, String elementName)
+	{
+		Map<String,Source> idToSource = new HashMap<String,Source>();
+		boolean clusterOK = true;
+		for (String id : clusterIDs)
 		{
-			// create new object node (e.g. movie)
-			Set<String> clusterIDs = entry.getValue();
-			Node obj = XMLUtils.createAndAppendNode(root, elementName);			
-			// NONLIST: for each non-list attribute
-			for (String attr : attributes)
+			Node node = objects.get(id);
+			if (node == null)
 			{
-				// create new property node (e.g. title or a sequence of nodes director/name)
-				Node prop = XMLUtils.createAndAppendNode(obj, attr);	
-				for (String id : clusterIDs) // for each cluster Node
-				{
-					Collection<String> vals = XMLUtils.getValue(idToDataset.get(id).getData().getNode(id), attr);
-					String prv = idToDataset.get(id).getProvenanceID();
-					for (String v : vals) // for an attribute, add all its (value, provenance) pairs to the property node
-					{
-						if (!v.isEmpty())
-							XMLUtils.addNewElementWithAttribute(prop, XMLUtils.VALUE, v, XMLUtils.PROV, prv);
-					}
-				}				
+				System.out.println("Error: element "+id+" from the duplicate clusters is not found in your data");
+				clusterOK = false;
 			}
-			// LIST: for each list attribute
-			for (String ln : listNodes)
+			else idToSource.put(id, new Source(null, node, provenanceIDs.get(id)));
+		}
+		if (!clusterOK) return null;
+		return appendCluster(parent, clusterIDs, idToSource, elementName);
+	}
+
+	// Create the merged node of one cluster (e.g. movie) from the objects with clusterIDs and append it to parent (the root node)
+	private Node appendCluster(Node parent, Set<String> clusterIDs, Map<String,Source> idToSource, String elementName)
+	{
+		Node obj = XMLUtils.createAndAppendNode(parent, elementName);
+		// NONLIST: for each non-list attribute
+		for (String attr : attributes)
+		{
+			// create new property node (e.g. title or a sequence of nodes director/name)
+			Node prop = XMLUtils.createAndAppendNode(obj, attr);	
+			for (String id : clusterIDs) // for each cluster Node
 			{
-				// create new property node - go one level UPPER!)
-				Node prop = XMLUtils.createAndAppendNode(obj, XMLUtils.oneLevelUp(ln));
-				for (String id : clusterIDs) // for each cluster Node
+				Source src = idToSource.get(id);
+				Collection<String> vals = XMLUtils.getValue(src.node, attr);
+				for (String v : vals) // for an attribute, add all its (value, provenance) pairs to the property node
 				{
-					NodeList list = XMLUtils.getNodeList(idToDataset.get(id).getData().getNode(id), ln);
-					String prv = idToDataset.get(id).getProvenanceID();
-					for (int i = 0; i < list.getLength(); i++)
-					{
-						// wrap all list elements into "list element" node:
-						// Node valueNode = XMLUtils.createAndAppendNode(prop, "listelement");	
-						// XMLUtils.addAttribute(valueNode, "provenance", prv);
-						// Node newNode = valueNode.appendChild(root.getOwnerDocument().adoptNode(list.item(i).cloneNode(true)));
-						// or, alternatively:
-						XMLUtils.addAttribute(list.item(i), "provenance", prv);
-						prop.appendChild(root.getOwnerDocument().adoptNode(list.item(i).cloneNode(true)));
-					}
-				}				
+					if (!v.isEmpty())
+						XMLUtils.addNewElementWithAttribute(prop, XMLUtils.VALUE, v, XMLUtils.PROV, src.provenanceID);
+				}
 			}				
-		}		
-		return root;
+		}
+		// LIST: for each list attribute
+		for (String ln : listNodes)
+		{
+			// create new property node - go one level UPPER!)
+			Node prop = XMLUtils.createAndAppendNode(obj, XMLUtils.oneLevelUp(ln));
+			for (String id : clusterIDs) // for each cluster Node
+			{
+				Source src = idToSource.get(id);
+				NodeList list = XMLUtils.getNodeList(src.node, ln);
+				for (int i = 0; i < list.getLength(); i++)
+				{
+					// wrap all list elements into "list element" node:
+					// Node valueNode = XMLUtils.createAndAppendNode(prop, "listelement");	
+					// XMLUtils.addAttribute(valueNode, "provenance", prv);
+					// Node newNode = valueNode.appendChild(root.getOwnerDocument().adoptNode(list.item(i).cloneNode(true)));
+					// or, alternatively:
+					XMLUtils.addAttribute(list.item(i), "provenance", src.provenanceID);
+					prop.appendChild(parent.getOwnerDocument().adoptNode(list.item(i).cloneNode(true)));
+				}
+			}				
+		}
+		return obj;
 	}
 
 	// Write the result of the createUnion() method to file (or System.out if fn is null)
@@ -212,4 +282,66 @@ public class DataUnion
 		XMLUtils.printNode(root, fn);
 		return true;
 	}
+	
+	// Write the result of the createUnion() method to file in the background
+	// The merged document itself is written (no copy): it can be read by other threads in the meantime (e.g. to profile it),
+	// but must not be changed until the returned future is done (DataFusion.runDataFusion waits for it before resolving conflicts)
+	public Future<Boolean> writeUnionToFileAsync(final String fn)
+	{
+		if (root == null) return null;
+		final Node union = root;
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		Future<Boolean> result = writer.submit(new Callable<Boolean>()
+		{
+			@Override
+			public Boolean call()
+			{
+				long start = Metrics.Timer.start();
+				XMLUtils.printNode(union, fn);
+				Metrics.timer(DataFusion.PHASE_METRIC, "phase", "union_output").stop(start);
+				return true;
+			}
+		});
+		writer.shutdown();
+		return result;
+	}
+	
+	// Write the result of the createUnion() method as a binary snapshot (see UnionSnapshot), to be fused later without parsing xml
+	public boolean writeSnapshot(String fn)
+	{
+		if (root == null) return false;
+		try 
+		{
+			UnionSnapshot.write(fn, root, unionData, unionProvenance, allAttributes, attributes, listNodes);
+		} 
+		catch (IOException | XMLStreamException e) 
+		{
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+	
+	// Take the attributes and list nodes of a union written as a snapshot (instead of running createUnion() again)
+	void readAttributes(UnionSnapshot snapshot)
+	{
+		allAttributes = new HashSet<String>(snapshot.getAllAttributes());
+		attributes = new HashSet<String>(snapshot.getNonListAttributes());
+		listNodes = new HashSet<String>(snapshot.getListNodes());
+	}
+	
+	// Object of an input dataset, with the provenance ID of the dataset
+	private static class Source
+	{
+		final Dataset dataset;
+		final Node node;
+		final String provenanceID;
+		
+		Source(Dataset dataset, Node node, String provenanceID)
+		{
+			this.dataset = dataset;
+			this.node = node;
+			this.provenanceID = provenanceID;
+		}
+	}
 }
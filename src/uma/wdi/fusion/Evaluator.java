@@ -14,24 +14,49 @@
 
 package uma.wdi.fusion;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.stream.XMLStreamException;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
 import uma.wdi.fusion.resolution.AbstractResolutionFunction;
+import uma.wdi.fusion.utils.AttributeColumn;
+import uma.wdi.fusion.utils.Metrics;
 import uma.wdi.fusion.utils.NodeMap;
+import uma.wdi.fusion.utils.Pair;
+import uma.wdi.fusion.utils.ResolvedColumn;
+import uma.wdi.fusion.utils.ValueDictionary;
+import uma.wdi.fusion.utils.XMLStreamOutput;
 import uma.wdi.fusion.utils.XMLUtils;
 import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.input.UnionSnapshot;
 
 /* Applies a set of conflict resolution strategies for different properties to a merged dataset (produced from DataUnion)
 *  Evaluate the result with respect to the gold standard, calculates overall and per attribute accuracy	
-*  Writes the result to an input file 
+*  Writes the result to an input file, each node as soon as it is resolved
+*  The gold standard is loaded in the background while the nodes are resolved
+*  
+*  With parallelism > 1, functions that use only (value,provenance) pairs are applied to batches of nodes in a thread pool;
+*  all reading from and writing to the DOM stays on the calling thread, and the result is the same as in sequential mode
+*  In batch mode, pair-based functions resolve each attribute for all nodes at once (see resolveColumns)
 * 
 *  @author Volha
 * */
@@ -39,6 +64,33 @@ public class Evaluator
 {
 	private Map<String,Double> attrAcc = new HashMap<String,Double>();
 	private Double accuracy = 0.0;
+	private Double nodeCnt = 0.0;
+	private Double totalCnt = 0.0;
+	private int parallelism = 1;
+	private boolean batchMode = false;
+	private XMLStreamOutput output = null;
+	// time spent writing the output (calling thread only), not counted as resolution
+	private long outputNanos = 0;
+	
+	// Timer per attribute and resolution function (labels "attribute", "function"), see Metrics
+	static final String RESOLUTION_METRIC = "wdi_fusion_resolution_seconds";
+	
+	// number of nodes handed to a worker thread at once
+	private static final int BATCH_SIZE = 256;
+	// number of clusters read from a snapshot at once
+	private static final int SNAPSHOT_CHUNK_SIZE = 4096;
+
+	// Number of threads used for conflict resolution (1 = sequential)
+	public void setParallelism(int parallelism)
+	{
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	// Resolve pair-based functions column by column (see AbstractResolutionFunction.applyStrategy(Dataset, AttributeColumn))
+	public void setBatchMode(boolean batchMode)
+	{
+		this.batchMode = batchMode;
+	}
 
 	// Getters
 	public double GetAccuracy()
@@ -55,38 +107,149 @@ public class Evaluator
 	*  fp hash map: path-->resolution function) 
 	*  Writes the result to an input file
 	*  Evaluate the result with respect to the gold standard, calculates overall and per attribute accuracy
+	*  A dataset opened from a snapshot (see Dataset.loadFromSnapshot) is resolved and evaluated chunk by chunk
 	*  */
 	public boolean evaluate(Map<String, AbstractResolutionFunction> fp, Dataset ds, String idPath, Set<String> attributes, String fnGold, String fnOutput)
 	{
-		Document xmlDoc = null;
-		for (Entry<String, Node> entryDS : ds.getData().getEntrySet())
+		Future<GoldIndex> gold = loadGoldAsync(fnGold, idPath, attributes, ds.getValueDictionary());
+		UnionSnapshot snapshot = ds.getSnapshot();
+		if (snapshot != null) return evaluate(fp, ds, snapshot, gold, attributes, fnOutput);
+		
+		long start = Metrics.Timer.start();
+		outputNanos = 0;
+		startOutput(ds, fnOutput);
+		resolveNodes(fp, ds);
+		endOutput();
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "resolution").record(System.nanoTime()-start-outputNanos);
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "fused_output").record(outputNanos);
+
+		// compare to gold standard
+		start = Metrics.Timer.start();
+		GoldIndex goldIndex = get(gold);
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "wait_gold").stop(start);
+		start = Metrics.Timer.start();
+		startCounting(attributes);
+		countMatches(ds.getData(), goldIndex, attributes);
+		computeAccuracy(goldIndex, attributes);
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "evaluation").stop(start);
+		return true;
+	}
+	
+	// evaluate() for a dataset opened from a snapshot: the clusters are read, resolved, written and compared to the gold standard 
+	// in chunks, each chunk in a document of its own, so that the merged dataset is never in memory as a whole
+	private boolean evaluate(Map<String, AbstractResolutionFunction> fp, Dataset ds, UnionSnapshot snapshot, Future<GoldIndex> goldLoad, 
+			Set<String> attributes, String fnOutput)
+	{
+		GoldIndex gold = null;
+		startCounting(attributes);
+		long start = Metrics.Timer.start();
+		long readNanos = 0;
+		long evaluationNanos = 0;
+		outputNanos = 0;
+		List<Node> provenance = new ArrayList<Node>();
+		for (Entry<String, Node> entry : ds.getProvenance().getEntrySet()) provenance.add(entry.getValue());
+		startOutput(XMLUtils.createDocument(snapshot.getRootName()), provenance, fnOutput);
+		
+		int chunkSize = Math.max(SNAPSHOT_CHUNK_SIZE, 4*parallelism*BATCH_SIZE);
+		boolean ok = true;
+		for (int first = 0; first < snapshot.size() && ok; first += chunkSize)
 		{
-			Node node = entryDS.getValue();
-			xmlDoc = node.getOwnerDocument();
-			for (Entry<String, AbstractResolutionFunction> entryFP : fp.entrySet())
+			long t = System.nanoTime();
+			Node root = XMLUtils.createDocument(snapshot.getRootName());
+			NodeMap chunk = new NodeMap();
+			chunk.setIDAttribute(snapshot.getIDAttribute());
+			try 
+			{
+				for (int c = first; c < Math.min(first+chunkSize, snapshot.size()); c++)
+				{
+					chunk.addNode(snapshot.getKey(c), root.appendChild(snapshot.readNode(c, root.getOwnerDocument())));
+				}
+			} 
+			catch (XMLStreamException e) 
 			{
-				String path = entryFP.getKey();
-				AbstractResolutionFunction policy = entryFP.getValue();
-				policy.resolve(ds, node, path);
+				System.out.println("ERROR: snapshot file " + snapshot.getFileName() + " could not be read (" + e.getMessage() + ")");
+				ok = false;
 			}
+			readNanos += System.nanoTime()-t;
+			
+			resolveNodes(fp, new Dataset(chunk, ds.getProvenance()));
+			
+			t = System.nanoTime();
+			if (gold == null) 
+			{
+				gold = get(goldLoad);
+				Metrics.timer(DataFusion.PHASE_METRIC, "phase", "wait_gold").record(System.nanoTime()-t);
+				t = System.nanoTime();
+			}
+			countMatches(chunk, gold, attributes);
+			evaluationNanos += System.nanoTime()-t;
 		}
-		// print to file
-		XMLUtils.printNode(xmlDoc, fnOutput);
-
-		// compare to gold standard
-		NodeMap gold = new NodeMap();
-		gold.loadFromFile(fnGold, idPath, true);
-
+		endOutput();
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "snapshot_read").record(readNanos);
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "resolution").record(System.nanoTime()-start-readNanos-evaluationNanos-outputNanos);
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "fused_output").record(outputNanos);
+		
+		start = Metrics.Timer.start();
+		if (gold == null) gold = get(goldLoad);
+		computeAccuracy(gold, attributes);
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "evaluation").record(System.nanoTime()-start+evaluationNanos);
+		return ok;
+	}
+	
+	// Load and index the gold standard in the background, while the nodes are resolved
+	// (gold values are interned in the dictionary of the resolved dataset, so that equal values are the same String)
+	private static Future<GoldIndex> loadGoldAsync(final String fnGold, final String idPath, final Set<String> attributes, 
+			final ValueDictionary dictionary)
+	{
+		ExecutorService loader = Executors.newSingleThreadExecutor();
+		Future<GoldIndex> gold = loader.submit(new Callable<GoldIndex>()
+		{
+			@Override
+			public GoldIndex call()
+			{
+				long start = Metrics.Timer.start();
+				GoldIndex gold = GoldIndex.load(fnGold, idPath, attributes, dictionary);
+				Metrics.timer(DataFusion.PHASE_METRIC, "phase", "gold").stop(start);
+				return gold;
+			}
+		});
+		loader.shutdown();
+		return gold;
+	}
+	
+	private static GoldIndex get(Future<GoldIndex> gold)
+	{
+		try 
+		{
+			return gold.get();
+		} 
+		catch (InterruptedException e) 
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} 
+		catch (ExecutionException e) 
+		{
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	private void startCounting(Set<String> attributes)
+	{
+		nodeCnt = 0.0;
+		totalCnt = 0.0;
 		for (String attr : attributes) attrAcc.put(attr, 0.0);
-
-		Double nodeCnt = 0.0;
-		Double totalCnt = 0.0;
-		for (Entry<String, Node> entryDS : ds.getData().getEntrySet())
+	}
+	
+	// Count the fused nodes found in the gold standard and their attributes that match it
+	private void countMatches(NodeMap data, GoldIndex gold, Set<String> attributes)
+	{
+		for (Entry<String, Node> entryDS : data.getEntrySet())
 		{
 			String id = entryDS.getKey();
 			Node node = entryDS.getValue();
-			Node goldNode = gold.getNode(id);
-			if (goldNode != null)
+			if (gold.contains(id))
 			{
 				nodeCnt++;
 				for (String attr : attributes)
@@ -94,33 +257,7 @@ public class Evaluator
 					// ignore ID attribute
 					if (!attr.equals(gold.getIDAttribute()))
 					{
-						boolean eq = true;
-						Collection<String> vals = XMLUtils.getValueUnion(node, attr);
-						Collection<String> goldVals = XMLUtils.getValueUnion(goldNode, attr);
-						if (vals.size() != goldVals.size()) eq = false; // TODO: remove this condition if you want list intersection to be a match (e.g. if you want "London" and "UK" in your data and "London" in the gold standard to be considered a match) 
-						else
-						{
-							Collection<Double> goldValsNUM = new ArrayList<Double>(); // to compare numeric values
-							for (String gv : goldVals)
-							{
-								Double gvd = toNumber(gv);
-								if (goldValsNUM != null && gvd != null) 
-									goldValsNUM.add(gvd);
-								else
-								{
-									goldValsNUM.clear();
-									goldValsNUM = null;
-								}
-							}
-							for (String s : vals)
-							{
-								if (goldValsNUM != null)
-								{
-									if (!goldValsNUM.contains(toNumber(s))) eq = false;
-								}
-								else if (!goldVals.contains(s)) eq = false;
-							}
-						}
+						boolean eq = gold.matches(id, attr, node);
 						if (eq)
 						{
 							if (attrAcc.containsKey(attr)) attrAcc.put(attr, attrAcc.get(attr)+1.0);
@@ -132,7 +269,11 @@ public class Evaluator
 				}
 			}
 		}
+	}
 	
+	// Overall and per attribute accuracy from the counts of countMatches()
+	private void computeAccuracy(GoldIndex gold, Set<String> attributes)
+	{
 		System.out.println("Number of entities that were evaluated with respect to gold standard is " + nodeCnt.intValue() + 
 				".\nIf you think it should be higher - check IDs in your gold standard!\n");
 		
@@ -151,20 +292,319 @@ public class Evaluator
 				// System.out.println("accuracy for " + attr + " : " + attrAcc.get(attr));
 			}
 		}
-		return true;
 	}
 	
-	private static Double toNumber(String str)  
-	{  
-	  Double d = null;
-	  try  
-	  {  
-	    d = Double.parseDouble(str);  
-	  }  
-	  catch(NumberFormatException nfe)  
-	  {  
-	    return null;  
-	  }  
-	  return d;  
+	// Apply a set of conflict resolution strategies to all nodes of a merged dataset, without writing or evaluating them
+	// (e.g. to the changed clusters only, see IncrementalFusion)
+	public void resolve(Map<String, AbstractResolutionFunction> fp, Dataset ds)
+	{
+		resolveNodes(fp, ds);
+	}
+	
+	// Resolve all nodes (passing each node on to the output, if it is open) in the mode that is set
+	private void resolveNodes(Map<String, AbstractResolutionFunction> fp, Dataset ds)
+	{
+		if (batchMode) resolveColumns(fp, ds);
+		else if (parallelism > 1) resolveParallel(fp, ds);
+		else 
+		{
+			List<String> paths = new ArrayList<String>(fp.keySet());
+			Metrics.Timer[] timers = resolutionTimers(fp, paths);
+			for (Entry<String, Node> entryDS : ds.getData().getEntrySet())
+			{
+				Node node = entryDS.getValue();
+				for (int i = 0; i < paths.size(); i++)
+				{
+					long t = Metrics.Timer.start();
+					fp.get(paths.get(i)).resolve(ds, node, paths.get(i));
+					timers[i].stop(t);
+				}
+				writeOutput(node);
+			}
+		}
+	}
+	
+	// Timers for the resolution of each path (in the order of paths)
+	private static Metrics.Timer[] resolutionTimers(Map<String, AbstractResolutionFunction> fp, List<String> paths)
+	{
+		Metrics.Timer[] timers = new Metrics.Timer[paths.size()];
+		for (int i = 0; i < paths.size(); i++)
+			timers[i] = Metrics.timer(RESOLUTION_METRIC, "attribute", paths.get(i), "function", fp.get(paths.get(i)).getClass().getSimpleName());
+		return timers;
+	}
+	
+	// Start writing the fused document: root element and everything in it that is not a data node (i.e. provenance)
+	private void startOutput(Dataset ds, String fnOutput)
+	{
+		if (ds.getData().getKeySet().isEmpty()) return;
+		Document xmlDoc = ds.getData().getEntrySet().iterator().next().getValue().getOwnerDocument();
+		Node root = xmlDoc.getDocumentElement();
+		Set<Node> dataNodes = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+		for (Entry<String, Node> entryDS : ds.getData().getEntrySet()) dataNodes.add(entryDS.getValue());
+		List<Node> children = new ArrayList<Node>();
+		for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling())
+		{
+			if (child.getNodeType() == Node.ELEMENT_NODE && !dataNodes.contains(child)) children.add(child);
+		}
+		startOutput(root, children, fnOutput);
+	}
+	
+	// Start writing the fused document: root element and the given children of it (the data nodes follow)
+	private void startOutput(Node root, List<Node> children, String fnOutput)
+	{
+		long start = System.nanoTime();
+		try 
+		{
+			output = new XMLStreamOutput(fnOutput);
+			output.startDocument(root);
+			for (Node child : children) output.writeNode(child);
+		} 
+		catch (XMLStreamException | IOException e) 
+		{
+			e.printStackTrace();
+			output = null;
+		}
+		outputNanos += System.nanoTime()-start;
+	}
+	
+	// Write a resolved data node to the fused document
+	private void writeOutput(Node node)
+	{
+		if (output == null) return;
+		long start = System.nanoTime();
+		try 
+		{
+			output.writeNode(node);
+		} 
+		catch (XMLStreamException e) 
+		{
+			e.printStackTrace();
+			output = null;
+		}
+		outputNanos += System.nanoTime()-start;
+	}
+	
+	private void endOutput()
+	{
+		if (output == null) return;
+		long start = System.nanoTime();
+		try 
+		{
+			output.endDocument();
+			output.close();
+		} 
+		catch (XMLStreamException | IOException e) 
+		{
+			e.printStackTrace();
+		}
+		output = null;
+		outputNanos += System.nanoTime()-start;
+	}
+	
+	/* Parallel conflict resolution:
+	 * the calling thread reads the (value,provenance) pairs of a batch of nodes and submits the batch to the pool,
+	 * workers apply the pair-based functions, and the calling thread (the only one touching the DOM) writes the results back
+	 * in the original node order (and passes them on to the output); node-based functions are applied there as well, 
+	 * in the same order as in sequential mode
+	 */
+	private void resolveParallel(Map<String, AbstractResolutionFunction> fp, final Dataset ds)
+	{
+		final List<String> paths = new ArrayList<String>(fp.keySet());
+		final List<AbstractResolutionFunction> policies = new ArrayList<AbstractResolutionFunction>();
+		for (String path : paths) policies.add(fp.get(path));
+		
+		final Metrics.Timer[] timers = resolutionTimers(fp, paths);
+		ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+		Deque<Future<ResolutionBatch>> inFlight = new ArrayDeque<Future<ResolutionBatch>>();
+		try 
+		{
+			ResolutionBatch batch = new ResolutionBatch();
+			for (Entry<String, Node> entryDS : ds.getData().getEntrySet())
+			{
+				batch.add(entryDS.getValue(), paths, policies, timers);
+				if (batch.nodes.size() == BATCH_SIZE)
+				{
+					inFlight.add(pool.submit(batch.resolver(ds, paths, policies, timers)));
+					batch = new ResolutionBatch();
+					// keep a bounded number of batches in memory
+					if (inFlight.size() >= 2*parallelism) inFlight.poll().get().write(ds, paths, policies, timers);
+				}
+			}
+			if (!batch.nodes.isEmpty()) inFlight.add(pool.submit(batch.resolver(ds, paths, policies, timers)));
+			while (!inFlight.isEmpty()) inFlight.poll().get().write(ds, paths, policies, timers);
+		} 
+		catch (InterruptedException e) 
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} 
+		catch (ExecutionException e) 
+		{
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+	
+	/* Column-at-a-time conflict resolution:
+	 * the calling thread reads all (value,provenance) pairs of each path with a pair-based function into an AttributeColumn,
+	 * the columns are resolved at once (in the pool if parallelism > 1, one column per task), and the calling thread writes 
+	 * the results back node by node (and passes the nodes on to the output); node-based functions are applied there as well
+	 */
+	private void resolveColumns(Map<String, AbstractResolutionFunction> fp, final Dataset ds)
+	{
+		List<String> paths = new ArrayList<String>(fp.keySet());
+		final List<AbstractResolutionFunction> policies = new ArrayList<AbstractResolutionFunction>();
+		for (String path : paths) policies.add(fp.get(path));
+		final Metrics.Timer[] timers = resolutionTimers(fp, paths);
+		List<Node> nodes = new ArrayList<Node>(ds.getData().getKeySet().size());
+		for (Entry<String, Node> entryDS : ds.getData().getEntrySet()) nodes.add(entryDS.getValue());
+		
+		List<Future<ResolvedColumn>> columns = new ArrayList<Future<ResolvedColumn>>();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, paths.size()+1));
+		try 
+		{
+			for (int i = 0; i < paths.size(); i++)
+			{
+				if (!policies.get(i).usesPairsOnly()) 
+				{
+					columns.add(null);
+					continue;
+				}
+				final int p = i;
+				final AttributeColumn column = AttributeColumn.read(nodes, paths.get(i));
+				Callable<ResolvedColumn> resolver = new Callable<ResolvedColumn>()
+				{
+					@Override
+					public ResolvedColumn call()
+					{
+						long t = Metrics.Timer.start();
+						ResolvedColumn result = policies.get(p).applyStrategy(ds, column);
+						timers[p].stop(t);
+						return result;
+					}
+				};
+				if (parallelism > 1) columns.add(pool.submit(resolver));
+				else 
+				{
+					FutureTask<ResolvedColumn> task = new FutureTask<ResolvedColumn>(resolver);
+					task.run();
+					columns.add(task);
+				}
+			}
+			ResolvedColumn[] resolved = new ResolvedColumn[paths.size()];
+			for (int i = 0; i < paths.size(); i++)
+			{
+				if (columns.get(i) != null) resolved[i] = columns.get(i).get();
+			}
+			
+			for (int n = 0; n < nodes.size(); n++)
+			{
+				Node node = nodes.get(n);
+				for (int i = 0; i < paths.size(); i++)
+				{
+					if (resolved[i] != null) policies.get(i).replaceValues(node, paths.get(i), resolved[i].getPairs(n));
+					else 
+					{
+						long t = Metrics.Timer.start();
+						policies.get(i).resolve(ds, node, paths.get(i));
+						timers[i].stop(t);
+					}
+				}
+				writeOutput(node);
+			}
+		} 
+		catch (InterruptedException e) 
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} 
+		catch (ExecutionException e) 
+		{
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+	
+	// A batch of nodes with their (value,provenance) pairs per path, and the resolved pairs
+	// (null for paths resolved by node-based functions)
+	private class ResolutionBatch
+	{
+		final List<Node> nodes = new ArrayList<Node>();
+		final List<List<Set<Pair>>> values = new ArrayList<List<Set<Pair>>>();
+		
+		void add(Node node, List<String> paths, List<AbstractResolutionFunction> policies, Metrics.Timer[] timers)
+		{
+			List<Set<Pair>> nodeValues = new ArrayList<Set<Pair>>(paths.size());
+			for (int i = 0; i < paths.size(); i++)
+			{
+				AbstractResolutionFunction policy = policies.get(i);
+				if (policy.usesPairsOnly()) 
+				{
+					long t = Metrics.Timer.start();
+					nodeValues.add(policy.getValueProvenancePairs(node, paths.get(i)));
+					timers[i].addTime(System.nanoTime()-t);
+				}
+				else nodeValues.add(null);
+			}
+			nodes.add(node);
+			values.add(nodeValues);
+		}
+		
+		Callable<ResolutionBatch> resolver(final Dataset ds, final List<String> paths, final List<AbstractResolutionFunction> policies, 
+				final Metrics.Timer[] timers)
+		{
+			return new Callable<ResolutionBatch>()
+			{
+				@Override
+				public ResolutionBatch call()
+				{
+					for (List<Set<Pair>> nodeValues : values)
+					{
+						for (int i = 0; i < paths.size(); i++)
+						{
+							if (nodeValues.get(i) != null) 
+							{
+								long t = Metrics.Timer.start();
+								nodeValues.set(i, policies.get(i).applyCached(ds, nodeValues.get(i), paths.get(i)));
+								timers[i].stop(t);
+							}
+						}
+					}
+					return ResolutionBatch.this;
+				}
+			};
+		}
+		
+		// (time of the pair-based functions is recorded per node by the worker, the writing back is added to it)
+		void write(Dataset ds, List<String> paths, List<AbstractResolutionFunction> policies, Metrics.Timer[] timers)
+		{
+			for (int n = 0; n < nodes.size(); n++)
+			{
+				for (int i = 0; i < paths.size(); i++)
+				{
+					Set<Pair> newValue = values.get(n).get(i);
+					long t = Metrics.Timer.start();
+					if (newValue != null) 
+					{
+						policies.get(i).replaceValues(nodes.get(n), paths.get(i), newValue);
+						timers[i].addTime(System.nanoTime()-t);
+					}
+					else 
+					{
+						policies.get(i).resolve(ds, nodes.get(n), paths.get(i));
+						timers[i].stop(t);
+					}
+				}
+				writeOutput(nodes.get(n));
+			}
+		}
 	}
 }
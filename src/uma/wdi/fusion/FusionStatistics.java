@@ -0,0 +1,415 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uma.wdi.fusion;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.w3c.dom.Node;
+
+import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.input.DatasetProfile;
+import uma.wdi.fusion.utils.NodeMap;
+
+/* Counts behind the fusion report, kept as sums so that they can be added up and taken apart again:
+ * per input dataset (Source) and per merged node, i.e. cluster (Cluster: density, consistency and accuracy counts)
+ * A report can so be patched when some datasets or clusters change (see IncrementalFusion), or merged from parts computed separately
+ * Prints the report in the same format (and with the same formulas) as DataFusion.runDataUnion and runDataFusion
+ * 
+ *  @author Volha
+ * */
+public class FusionStatistics 
+{
+	private int clusters = 0;
+	private long clusterSizes = 0;
+	private long unionValues = 0;
+	private Map<String, Integer> unionNonEmpty = new HashMap<String, Integer>();
+	private Map<String, Integer> consistent = new HashMap<String, Integer>();
+	private int evaluated = 0;
+	private long accurateValues = 0;
+	private Map<String, Integer> accurate = new HashMap<String, Integer>();
+	private Map<String, Source> sources = new TreeMap<String, Source>(); // by provenance ID
+	
+	// Getters
+	public int getClusterCount()
+	{
+		return clusters;
+	}
+	public int getEvaluatedCount()
+	{
+		return evaluated;
+	}
+	
+	// Add (or replace) the counts of an input dataset
+	public void add(Source source)
+	{
+		sources.put(source.provenanceID, source);
+	}
+	public void remove(Source source)
+	{
+		sources.remove(source.provenanceID);
+	}
+	
+	public void add(Cluster cluster)
+	{
+		add(cluster, 1);
+	}
+	public void remove(Cluster cluster)
+	{
+		add(cluster, -1);
+	}
+	
+	// Add all counts of other (e.g. computed for another part of the clusters, see ShardedFusion);
+	// counts of the same input dataset (e.g. of different parts of its objects) are added up
+	public void merge(FusionStatistics other)
+	{
+		clusters += other.clusters;
+		clusterSizes += other.clusterSizes;
+		unionValues += other.unionValues;
+		evaluated += other.evaluated;
+		accurateValues += other.accurateValues;
+		for (Entry<String, Integer> e : other.unionNonEmpty.entrySet()) increment(unionNonEmpty, e.getKey(), e.getValue());
+		for (Entry<String, Integer> e : other.consistent.entrySet()) increment(consistent, e.getKey(), e.getValue());
+		for (Entry<String, Integer> e : other.accurate.entrySet()) increment(accurate, e.getKey(), e.getValue());
+		for (Source source : other.sources.values())
+		{
+			Source own = sources.get(source.provenanceID);
+			sources.put(source.provenanceID, (own == null) ? source : own.plus(source));
+		}
+	}
+	
+	private void add(Cluster cluster, int sign)
+	{
+		clusters += sign;
+		clusterSizes += sign*cluster.size;
+		unionValues += sign*cluster.values;
+		for (String a : cluster.nonEmpty) increment(unionNonEmpty, a, sign);
+		for (String a : cluster.consistent) increment(consistent, a, sign);
+		if (cluster.evaluated)
+		{
+			evaluated += sign;
+			accurateValues += sign*cluster.accurate.size();
+			for (String a : cluster.accurate) increment(accurate, a, sign);
+		}
+	}
+	
+	// First part of the report: clusters, input datasets and the merged dataset (see DataFusion.runDataUnion)
+	public void printUnionReport(PrintStream out, Set<String> allAttributes, Set<String> nonListAttributes)
+	{
+		out.println("FUSION REPORT");
+		out.println();
+		out.println("Number of node clusters : " + clusters);
+		out.println("Average cluster size : " + ((double) clusterSizes)/clusters);
+		out.println();
+		
+		double attrCnt = allAttributes.size()-1; // don't coun id
+		for (Source source : sources.values())
+		{
+			double datasetD = density(source.values, source.nodes, attrCnt);
+			out.println("dataset " + source.provenanceID + ":");
+			out.println("dataset density : " + datasetD);
+			out.println("average number of non-null attributes per object : " + datasetD*attrCnt);	
+			for (String a : allAttributes)
+			{
+				out.println("density, attribute " + a + " : " + ratio(source.nonEmpty, a, source.nodes));
+			}
+			out.println();
+		}
+		
+		out.println("Merged dataset:");
+		double unionD = density(unionValues, clusters, attrCnt);
+		double unionC = 0.0;
+		for (String a : nonListAttributes) unionC += count(consistent, a);
+		unionC = unionC/((nonListAttributes.size()-1)*clusters);
+		out.println("dataset density : " + unionD);
+		out.println("average number of non-null attributes per object : " + unionD*attrCnt);	
+		out.println("dataset consistency : " + unionC);
+		out.println();
+		for (String a : allAttributes)
+		{
+			out.println("density, attribute " + a + " : " + ratio(unionNonEmpty, a, clusters));
+			if (!nonListAttributes.contains(a)) out.println("consistency, attribute " + a + " : not defined for list attributes");
+			else out.println("consistency, attribute " + a + " : " + ratio(consistent, a, clusters));
+		}
+	}
+	
+	// Second part of the report: accuracy of the fused dataset (see DataFusion.runDataFusion)
+	public void printFusionReport(PrintStream out, Set<String> allAttributes, Set<String> nonListAttributes, String idAttribute)
+	{
+		double accuracy = 0.0;
+		if (accurateValues != 0 && evaluated != 0) accuracy = accurateValues/((nonListAttributes.size()-1)*(double) evaluated);
+		out.println();
+		out.println("Fused dataset:");
+		out.println("overall accuracy : " + accuracy);
+		for (String a : allAttributes)
+		{
+			if (!nonListAttributes.contains(a)) out.println("accuracy, attribute " + a + " : not defined for list attributes");
+			else if (a.equals(idAttribute)) out.println("accuracy, attribute " + a + " : " + 0.0);
+			else out.println("accuracy, attribute " + a + " : " + ratio(accurate, a, evaluated));
+		}
+	}
+	
+	// density of a dataset: % of non-null values for all attributes
+	private static double density(long values, int nodes, double attrCnt)
+	{
+		double total = nodes*attrCnt;
+		if (total == 0.0) return 0.0;
+		return values/total;
+	}
+	
+	private static double ratio(Map<String, Integer> counts, String key, int nodes)
+	{
+		int count = count(counts, key);
+		if (count == 0 || nodes == 0) return 0.0;
+		return ((double) count)/nodes;
+	}
+	
+	private static int count(Map<String, Integer> counts, String key)
+	{
+		Integer count = counts.get(key);
+		return count == null ? 0 : count;
+	}
+	
+	private static void increment(Map<String, Integer> counts, String key, int by)
+	{
+		Integer count = counts.get(key);
+		counts.put(key, count == null ? by : count+by);
+	}
+	
+	// Write all counts (one line per field, sources last)
+	public void write(PrintWriter out)
+	{
+		out.println("clusters\t" + clusters + "\t" + clusterSizes);
+		out.println("union\t" + unionValues + "\t" + join(unionNonEmpty) + "\t" + join(consistent));
+		out.println("evaluated\t" + evaluated + "\t" + accurateValues + "\t" + join(accurate));
+		for (Source source : sources.values()) out.println("source\t" + source);
+	}
+	
+	// Read the counts written with write()
+	public static FusionStatistics read(BufferedReader in) throws IOException
+	{
+		FusionStatistics stats = new FusionStatistics();
+		String line;
+		while ((line = in.readLine()) != null)
+		{
+			String[] f = line.split("\t", -1);
+			switch (f[0])
+			{
+				case "clusters":
+					stats.clusters = Integer.parseInt(f[1]);
+					stats.clusterSizes = Long.parseLong(f[2]);
+					break;
+				case "union":
+					stats.unionValues = Long.parseLong(f[1]);
+					stats.unionNonEmpty = parseCounts(f[2]);
+					stats.consistent = parseCounts(f[3]);
+					break;
+				case "evaluated":
+					stats.evaluated = Integer.parseInt(f[1]);
+					stats.accurateValues = Long.parseLong(f[2]);
+					stats.accurate = parseCounts(f[3]);
+					break;
+				case "source":
+					stats.add(Source.parse(line.substring(f[0].length()+1)));
+					break;
+				default:
+					throw new IOException("unknown statistics line: " + line);
+			}
+		}
+		return stats;
+	}
+	
+	static String join(Map<String, Integer> counts)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Entry<String, Integer> e : counts.entrySet())
+		{
+			if (sb.length() > 0) sb.append(',');
+			sb.append(e.getKey()).append('=').append(e.getValue());
+		}
+		return sb.toString();
+	}
+	
+	static String join(Set<String> values)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (String v : values)
+		{
+			if (sb.length() > 0) sb.append(',');
+			sb.append(v);
+		}
+		return sb.toString();
+	}
+	
+	static Map<String, Integer> parseCounts(String str)
+	{
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (String e : parseSet(str))
+		{
+			int eq = e.lastIndexOf('=');
+			counts.put(e.substring(0, eq), Integer.valueOf(e.substring(eq+1)));
+		}
+		return counts;
+	}
+	
+	static Set<String> parseSet(String str)
+	{
+		Set<String> values = new HashSet<String>();
+		for (String v : str.split(","))
+		{
+			if (!v.isEmpty()) values.add(v);
+		}
+		return values;
+	}
+	
+	
+	/* Counts of an input dataset: number of objects, of non-null (leaf) values without the ID, 
+	 * and of objects with a non-null value per attribute
+	 */
+	public static class Source
+	{
+		final String provenanceID;
+		final int nodes;
+		final long values;
+		final Map<String, Integer> nonEmpty;
+		
+		private Source(String provenanceID, int nodes, long values, Map<String, Integer> nonEmpty)
+		{
+			this.provenanceID = provenanceID;
+			this.nodes = nodes;
+			this.values = values;
+			this.nonEmpty = nonEmpty;
+		}
+		
+		// Counts of a loaded input dataset (from its profile)
+		public static Source of(Dataset ds)
+		{
+			return of(ds.getProvenanceID(), ds.getProfile(), ds.getData().getIDAttribute());
+		}
+		
+		// Counts of an input dataset from its profile, e.g. of a dataset that was streamed (see OutOfCoreFusion)
+		public static Source of(String provenanceID, DatasetProfile profile, String idStr)
+		{
+			long values = 0;
+			for (Entry<String, Integer> entry : profile.getDensityCounts().entrySet())
+			{
+				if (!entry.getKey().equals(idStr) && !entry.getKey().equals(idStr+"/value")) // don't count id
+					values += entry.getValue();
+			}
+			return new Source(provenanceID, profile.getNodeCount(), values, new HashMap<String, Integer>(profile.getNonEmptyCounts()));
+		}
+		
+		// Counts of this and other objects of the same dataset
+		Source plus(Source other)
+		{
+			Map<String, Integer> sum = new HashMap<String, Integer>(nonEmpty);
+			for (Entry<String, Integer> e : other.nonEmpty.entrySet()) increment(sum, e.getKey(), e.getValue());
+			return new Source(provenanceID, nodes+other.nodes, values+other.values, sum);
+		}
+
+		@Override
+		public String toString()
+		{
+			return provenanceID + "\t" + nodes + "\t" + values + "\t" + join(nonEmpty);
+		}
+		
+		// Parse the result of toString()
+		public static Source parse(String str)
+		{
+			String[] f = str.split("\t", -1);
+			return new Source(f[0], Integer.parseInt(f[1]), Long.parseLong(f[2]), parseCounts(f[3]));
+		}
+	}
+	
+	
+	/* Counts of a cluster, i.e. of one merged node and the node fused from it:
+	 * number of objects, of non-null (leaf) values without the ID, attributes with a non-null value, consistent attributes,
+	 * and, if the node was found in the gold standard, the attributes with correct fused values
+	 */
+	public static class Cluster
+	{
+		final int size;
+		long values = 0;
+		Set<String> nonEmpty = new HashSet<String>();
+		Set<String> consistent = new HashSet<String>();
+		boolean evaluated = false;
+		Set<String> accurate = new HashSet<String>();
+		
+		public Cluster(int size)
+		{
+			this.size = size;
+		}
+		
+		// Count values and consistency of a merged node (see Dataset.calculateDatasetConsistency)
+		public void addUnion(Node node, String idAttribute, Set<String> allAttributes, Set<String> nonListAttributes)
+		{
+			NodeMap data = new NodeMap();
+			data.setIDAttribute(idAttribute);
+			data.addNode(node.getNodeName(), node);
+			DatasetProfile profile = new DatasetProfile(data);
+			for (Entry<String, Integer> entry : profile.getDensityCounts().entrySet())
+			{
+				if (!entry.getKey().equals(idAttribute) && !entry.getKey().equals(idAttribute+"/value")) // don't count id
+					values += entry.getValue();
+			}
+			for (String a : allAttributes)
+			{
+				if (profile.getNonEmptyCount(a) > 0) nonEmpty.add(a);
+			}
+			for (String a : nonListAttributes)
+			{
+				if (Dataset.isConsistent(node, a, size)) consistent.add(a);
+			}
+		}
+		
+		// Compare a fused node to the gold standard of entity id (see Evaluator.evaluate)
+		public void addEvaluation(Node node, GoldIndex gold, String id, Set<String> nonListAttributes, String idAttribute)
+		{
+			evaluated = true;
+			for (String a : nonListAttributes)
+			{
+				// ignore ID attribute
+				if (!a.equals(idAttribute) && gold.matches(id, a, node)) accurate.add(a);
+			}
+		}
+		
+		@Override
+		public String toString()
+		{
+			return size + "\t" + values + "\t" + join(nonEmpty) + "\t" + join(consistent) + "\t" + evaluated + "\t" + join(accurate);
+		}
+		
+		// Parse the result of toString()
+		public static Cluster parse(String str)
+		{
+			String[] f = str.split("\t", -1);
+			Cluster cluster = new Cluster(Integer.parseInt(f[0]));
+			cluster.values = Long.parseLong(f[1]);
+			cluster.nonEmpty = parseSet(f[2]);
+			cluster.consistent = parseSet(f[3]);
+			cluster.evaluated = Boolean.parseBoolean(f[4]);
+			cluster.accurate = parseSet(f[5]);
+			return cluster;
+		}
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uma.wdi.fusion;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import uma.wdi.fusion.utils.NodeMap;
+import uma.wdi.fusion.utils.ValueDictionary;
+import uma.wdi.fusion.utils.XMLStreamLoader;
+import uma.wdi.fusion.utils.XMLUtils;
+
+/* Gold standard indexed for the comparisons of the Evaluator: entity ID -> attribute ordinal -> normalized gold values
+ * The values of an attribute are kept as a sorted double[] if all of them are numeric (and compared numerically), 
+ * otherwise as a String (a single value) or a set of strings; the gold document is not kept (nor built, for simple id paths)
+ * A fused attribute matches if it has as many values as the gold standard and each of them is one of the gold values
+ * 
+ *  @author Volha
+ * */
+public class GoldIndex 
+{
+	private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+	private final List<String> paths;
+	private final Map<String, Object[]> entities;
+	private String idAttribute;
+	
+	// Index the values of attributes in all gold nodes
+	public GoldIndex(NodeMap gold, Collection<String> attributes)
+	{
+		this(attributes, gold.getKeySet().size());
+		idAttribute = gold.getIDAttribute();
+		for (Entry<String, Node> entry : gold.getEntrySet()) add(entry.getKey(), entry.getValue());
+	}
+	
+	private GoldIndex(Collection<String> attributes, int size)
+	{
+		paths = new ArrayList<String>(attributes);
+		for (String attr : paths) ordinals.put(attr, ordinals.size());
+		entities = new HashMap<String, Object[]>(size*4/3+1);
+	}
+	
+	// Load the gold standard from file (ids with idPath, see NodeMap.loadFromFile) and index attributes
+	// With a simple id path (see XMLStreamLoader), the gold nodes are indexed one by one as they are read, without a document of all of them
+	public static GoldIndex load(String fnGold, String idPath, Collection<String> attributes)
+	{
+		return load(fnGold, idPath, attributes, ValueDictionary.NONE);
+	}
+	
+	// load() interning the gold values in dictionary (with a simple id path), e.g. the dictionary of the run the fused values were loaded in
+	public static GoldIndex load(String fnGold, String idPath, Collection<String> attributes, ValueDictionary dictionary)
+	{
+		if (!XMLStreamLoader.isStreamable(idPath))
+		{
+			NodeMap gold = new NodeMap();
+			gold.loadFromFile(fnGold, idPath, true);
+			return new GoldIndex(gold, attributes);
+		}
+		final GoldIndex index = new GoldIndex(attributes, 16);
+		final NodeMap ids = new NodeMap();
+		try 
+		{
+			XMLStreamLoader.stream(fnGold, idPath, new XMLStreamLoader.EntityHandler()
+			{
+				@Override
+				public void entity(Element entity, Element id)
+				{
+					if (id == null) return;
+					if (index.idAttribute == null) index.idAttribute = id.getNodeName();
+					// (as NodeMap.loadFromFile: the node is indexed by each of its id elements)
+					for (Node n = id; n != null; n = n.getNextSibling())
+					{
+						if (n.getNodeType() == Node.ELEMENT_NODE && n.getNodeName().equals(id.getNodeName())) index.add(ids.getID(n, true), entity);
+					}
+				}
+			}, null, null, dictionary);
+		} 
+		catch (IOException e) 
+		{
+			// (the handler does not throw)
+			throw new RuntimeException(e);
+		}
+		return index;
+	}
+	
+	// Index the values of a gold node
+	private void add(String id, Node node)
+	{
+		Object[] values = new Object[paths.size()];
+		for (int i = 0; i < values.length; i++) values[i] = normalize(XMLUtils.getValueUnion(node, paths.get(i)));
+		entities.put(id, values);
+	}
+	
+	// Getters
+	public String getIDAttribute()
+	{
+		return idAttribute;
+	}
+	public int size()
+	{
+		return entities.size();
+	}
+	
+	public boolean contains(String id)
+	{
+		return entities.containsKey(id);
+	}
+	
+	// Compare the values of attr in a fused node to the gold standard of entity id (false if either is not indexed)
+	public boolean matches(String id, String attr, Node node)
+	{
+		Object[] values = entities.get(id);
+		Integer ordinal = ordinals.get(attr);
+		if (values == null || ordinal == null) return false;
+		return matches(XMLUtils.getValueUnion(node, attr), values[ordinal]);
+	}
+	
+	// Normalized form of the gold values of an attribute
+	static Object normalize(Collection<String> goldValues)
+	{
+		double[] numbers = new double[goldValues.size()];
+		int n = 0;
+		for (String gv : goldValues)
+		{
+			Double number = toNumber(gv);
+			if (number == null) break;
+			numbers[n++] = number;
+		}
+		if (n == numbers.length)
+		{
+			Arrays.sort(numbers);
+			return numbers;
+		}
+		if (goldValues.size() == 1) return goldValues.iterator().next();
+		return new StringValues(goldValues);
+	}
+	
+	// Compare fused values to normalized gold values
+	// TODO: remove the size condition if you want list intersection to be a match (e.g. if you want "London" and "UK" in your data 
+	// and "London" in the gold standard to be considered a match)
+	static boolean matches(Collection<String> values, Object gold)
+	{
+		if (gold instanceof double[])
+		{
+			double[] numbers = (double[]) gold;
+			if (values.size() != numbers.length) return false;
+			for (String s : values)
+			{
+				Double number = toNumber(s);
+				// (as Double.equals: -0.0 and 0.0 differ, NaN equals NaN)
+				if (number == null || Arrays.binarySearch(numbers, number) < 0) return false;
+			}
+			return true;
+		}
+		if (gold instanceof String)
+		{
+			return values.size() == 1 && gold.equals(values.iterator().next());
+		}
+		StringValues strings = (StringValues) gold;
+		if (values.size() != strings.size) return false;
+		for (String s : values)
+		{
+			if (!strings.values.contains(s)) return false;
+		}
+		return true;
+	}
+	
+	// Parse a number as Double.parseDouble does; null if str is not a number
+	// (strings that cannot start a number are rejected without parsing)
+	static Double toNumber(String str)
+	{
+		int i = 0;
+		while (i < str.length() && str.charAt(i) <= ' ') i++;
+		if (i == str.length()) return null;
+		char c = str.charAt(i);
+		if (!(c >= '0' && c <= '9') && c != '-' && c != '+' && c != '.' && c != 'N' && c != 'I') return null;
+		try
+		{
+			return Double.parseDouble(str);
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+	
+	// Non-numeric gold values: their number (with duplicates) and the distinct values
+	private static class StringValues
+	{
+		final int size;
+		final Set<String> values;
+		
+		StringValues(Collection<String> goldValues)
+		{
+			size = goldValues.size();
+			values = new HashSet<String>(goldValues);
+		}
+	}
+}
@@ -0,0 +1,692 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uma.wdi.fusion;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.w3c.dom.Node;
+
+import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.input.Duplicates;
+import uma.wdi.fusion.resolution.AbstractResolutionFunction;
+import uma.wdi.fusion.utils.ContentHash;
+import uma.wdi.fusion.utils.FragmentStore;
+import uma.wdi.fusion.utils.FragmentStore.Ref;
+import uma.wdi.fusion.utils.Metrics;
+import uma.wdi.fusion.utils.NodeMap;
+import uma.wdi.fusion.utils.ValueDictionary;
+import uma.wdi.fusion.utils.XMLStreamLoader;
+import uma.wdi.fusion.utils.XMLStreamOutput;
+import uma.wdi.fusion.utils.XMLUtils;
+
+/* Incremental union and fusion: keeps the state of a run in a directory, so that the next run only merges, resolves 
+ * and evaluates the clusters affected by changed input, and patches the outputs and the report
+ * 
+ * State (in stateDir):
+ *   manifest.properties : configuration key, content hash of the correspondence files, attributes of the merged dataset
+ *   sources.txt : per input dataset its content hash, provenance element, attributes and counts (see FusionStatistics.Source)
+ *   entities-*.txt : per object of an input dataset its ID, content hash and fragment
+ *   clusters.txt : per cluster (in the order of Duplicates) its composite ID, merged and fused node, and counts (see FusionStatistics.Cluster)
+ *   statistics.txt : the counts of the report (see FusionStatistics)
+ *   fragments.dat : the serialized elements (see FragmentStore)
+ * 
+ * A run:
+ * (1) datasets with a changed content hash are loaded, their objects are compared to the stored ones by content hash
+ * (2) clusters are read again if a correspondence file changed, otherwise taken from the state
+ * (3) clusters that are new or contain a changed object are merged, resolved and evaluated; objects of unchanged datasets
+ *     are read from the fragment store, so a run costs the size of the changed datasets plus the affected clusters
+ * (4) counts of the recomputed and removed clusters are taken out of the report counts and the new ones added,
+ *     and the merged and fused outputs are written from the stored fragments
+ * Everything is computed from scratch if there is no state or the configuration (files, id paths, resolution functions, 
+ * gold standard) changed; all clusters are recomputed (from the stored objects) if the attributes of the merged dataset changed.
+ * Resolution functions are identified by their class only: after changing their parameters (e.g. trust values) use setFullRun(true).
+ * 
+ *  @author Volha
+ * */
+public class IncrementalFusion 
+{
+	private static final String MANIFEST = "manifest.properties";
+	private static final String SOURCES = "sources.txt";
+	private static final String CLUSTERS = "clusters.txt";
+	private static final String STATISTICS = "statistics.txt";
+	private static final String FRAGMENTS = "fragments.dat";
+	
+	// the fragment store is compacted when it is more than COMPACT_RATIO times the size of the referenced fragments
+	private static final int COMPACT_RATIO = 3;
+	
+	// Number of clusters (label "state": recomputed, reused) and input datasets (label "state": changed, unchanged), see Metrics
+	static final String CLUSTER_METRIC = "wdi_fusion_incremental_clusters_total";
+	static final String SOURCE_METRIC = "wdi_fusion_incremental_sources_total";
+	
+	private final File stateDir;
+	private int parallelism = 1;
+	private boolean batchMode = false;
+	private boolean fullRun = false;
+	private Set<String> internedAttributes = new HashSet<String>();
+	// dictionary of the current run
+	private ValueDictionary dictionary = ValueDictionary.NONE;
+	private int recomputed = 0;
+	private int reused = 0;
+	
+	public IncrementalFusion(String stateDir)
+	{
+		this.stateDir = new File(stateDir);
+	}
+	
+	// Number of threads used for conflict resolution (see Evaluator.setParallelism)
+	public void setParallelism(int parallelism)
+	{
+		this.parallelism = parallelism;
+	}
+	
+	// Resolve pair-based functions column by column (see Evaluator.setBatchMode)
+	public void setBatchMode(boolean batchMode)
+	{
+		this.batchMode = batchMode;
+	}
+	
+	// Attributes whose values are interned, in a new ValueDictionary per run (see DataFusion.setInternedAttributes)
+	public void setInternedAttributes(Set<String> attributes)
+	{
+		internedAttributes = new HashSet<String>(attributes);
+	}
+	
+	// Ignore the stored state in the next run (the state is written again)
+	public void setFullRun(boolean fullRun)
+	{
+		this.fullRun = fullRun;
+	}
+	
+	// Number of clusters recomputed and reused in the last run
+	public int getRecomputedClusters()
+	{
+		return recomputed;
+	}
+	public int getReusedClusters()
+	{
+		return reused;
+	}
+	
+	/* Create the merged dataset, fuse it and evaluate it against the gold standard (as DataFusion.runDataUnion and runDataFusion),
+	 * recomputing only the clusters affected by changes since the last run
+	 * unionFn, fnOutput, fnFusionReport : merged dataset, fused dataset and report (unionFn and fnOutput are not written if null,
+	 * the report is printed into System.out if fnFusionReport is null); fnGold can be null
+	 */
+	public boolean run(String rootElementName, String idDataPath, String idProvPath, 
+			Set<String> filesDuplicates, Set<String> filesData, Map<String, AbstractResolutionFunction> rf, 
+			String fnGold, String unionFn, String fnOutput, String fnFusionReport)
+	{
+		dictionary = new ValueDictionary(internedAttributes);
+		try 
+		{
+			return runIncremental(rootElementName, idDataPath, idProvPath, filesDuplicates, filesData, rf, fnGold, unionFn, fnOutput, fnFusionReport);
+		} 
+		catch (IOException | XMLStreamException e) 
+		{
+			System.out.println("ERROR: incremental fusion in " + stateDir + " failed: " + e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	private boolean runIncremental(String rootElementName, String idDataPath, String idProvPath, 
+			Set<String> filesDuplicates, Set<String> filesData, Map<String, AbstractResolutionFunction> rf, 
+			String fnGold, String unionFn, String fnOutput, String fnFusionReport) throws IOException, XMLStreamException
+	{
+		recomputed = 0;
+		reused = 0;
+		if (!stateDir.isDirectory() && !stateDir.mkdirs()) throw new IOException("cannot create " + stateDir);
+		
+		long start = Metrics.Timer.start();
+		String config = configKey(rootElementName, idDataPath, idProvPath, filesDuplicates, filesData, rf, fnGold);
+		State previous = fullRun ? null : readState(config);
+		Properties manifest = (previous == null) ? new Properties() : previous.manifest;
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "state").stop(start);
+		
+		if (previous == null) Files.deleteIfExists(file(MANIFEST).toPath()); // the fragments it refers to are dropped
+		try (FragmentStore store = new FragmentStore(file(FRAGMENTS).getPath(), previous == null))
+		{
+			// 1: load changed datasets, find their changed objects
+			start = Metrics.Timer.start();
+			List<SourceState> sources = new ArrayList<SourceState>();
+			Set<String> changedIDs = new HashSet<String>();
+			boolean sourcesChanged = false;
+			for (String fn : new TreeSet<String>(filesData))
+			{
+				String hash = ContentHash.ofFile(fn);
+				SourceState old = (previous == null) ? null : previous.sources.get(fn);
+				if (old != null && old.hash.equals(hash))
+				{
+					sources.add(old);
+					Metrics.counter(SOURCE_METRIC, "state", "unchanged").increment();
+					continue;
+				}
+				Dataset ds = new Dataset();
+				ds.setValueDictionary(dictionary);
+				if (!ds.loadFromFile(fn, idDataPath, idProvPath, true, false)) return false;
+				if (ds.getProvenanceID() == null || ds.getData().getKeySet().isEmpty()) return false;
+				if (!manifest.containsKey("elementName"))
+				{
+					manifest.setProperty("elementName", ds.getDataElementName());
+					manifest.setProperty("idAttribute", ds.getData().getIDAttribute());
+					manifest.setProperty("idProvenanceAttribute", ds.getProvenance().getIDAttribute());
+				}
+				SourceState source = loadSource(fn, hash, ds, old, store, changedIDs);
+				if (previous != null && old != null) previous.statistics.remove(old.statistics);
+				sources.add(source);
+				sourcesChanged = true;
+				Metrics.counter(SOURCE_METRIC, "state", "changed").increment();
+			}
+			Metrics.timer(DataFusion.PHASE_METRIC, "phase", "load").stop(start);
+			String elementName = manifest.getProperty("elementName");
+			String idAttribute = manifest.getProperty("idAttribute");
+			String idProvAttribute = manifest.getProperty("idProvenanceAttribute");
+			
+			// 2: clusters, read again only if the correspondences changed
+			start = Metrics.Timer.start();
+			NodeMap keys = new NodeMap();
+			String duplicatesHash = hashFiles(filesDuplicates);
+			boolean duplicatesChanged = previous == null || !duplicatesHash.equals(manifest.getProperty("duplicates"));
+			List<Set<String>> clusters = new ArrayList<Set<String>>();
+			if (duplicatesChanged)
+			{
+				Duplicates dupl = new Duplicates();
+				if (!dupl.read(filesDuplicates)) return false;
+				clusters.addAll(dupl.getClusters().values());
+			}
+			else 
+			{
+				for (String key : previous.clusters.keySet()) clusters.add(new HashSet<String>(keys.getIDs(key)));
+			}
+			manifest.setProperty("duplicates", duplicatesHash);
+			Metrics.timer(DataFusion.PHASE_METRIC, "phase", "duplicates").stop(start);
+			
+			// 3: attributes of the merged dataset; if they changed, all merged nodes change 
+			DataUnion du = new DataUnion();
+			for (SourceState source : sources) du.addAttributes(source.densityPaths, source.listNodes);
+			du.filterListNodes();
+			boolean allChanged = previous == null || !sameAttributes(manifest, du);
+			if (previous != null && allChanged) System.out.println("Attributes of the merged dataset changed, all clusters are recomputed");
+			
+			// 4: find the clusters to recompute; take the counts of those and of removed clusters out of the report counts
+			FusionStatistics statistics = (previous == null) ? new FusionStatistics() : previous.statistics;
+			Map<String, ClusterState> oldClusters = (previous == null) ? new HashMap<String, ClusterState>() : previous.clusters;
+			List<ClusterState> result = new ArrayList<ClusterState>(clusters.size());
+			List<Set<String>> affected = new ArrayList<Set<String>>();
+			List<ClusterState> affectedStates = new ArrayList<ClusterState>();
+			Set<String> affectedIDs = new HashSet<String>();
+			for (Set<String> ids : clusters)
+			{
+				String key = keys.getCompositeID(ids);
+				ClusterState old = oldClusters.remove(key);
+				if (old != null && !allChanged && Collections.disjoint(ids, changedIDs))
+				{
+					result.add(old);
+					continue;
+				}
+				if (old != null) statistics.remove(old.statistics);
+				ClusterState cluster = new ClusterState(key, new FusionStatistics.Cluster(ids.size()));
+				result.add(cluster);
+				affected.add(ids);
+				affectedStates.add(cluster);
+				affectedIDs.addAll(ids);
+			}
+			for (ClusterState removed : oldClusters.values()) statistics.remove(removed.statistics);
+			for (SourceState source : sources) statistics.add(source.statistics);
+			recomputed = affected.size();
+			reused = result.size()-recomputed;
+			Metrics.counter(CLUSTER_METRIC, "state", "recomputed").add(recomputed);
+			Metrics.counter(CLUSTER_METRIC, "state", "reused").add(reused);
+			
+			// 5: merge, resolve and evaluate the affected clusters
+			if (!affected.isEmpty())
+			{
+				start = Metrics.Timer.start();
+				List<Dataset> parts = new ArrayList<Dataset>(sources.size());
+				for (SourceState source : sources) parts.add(clusteredPart(source, affectedIDs, store, rootElementName, idAttribute, idProvAttribute, dictionary));
+				if (du.createUnion(parts, affected, elementName, rootElementName) == null)
+				{
+					System.out.println("Error: merged dataset could not be created correctly");
+					return false;
+				}
+				Dataset unionDs = du.getUnionDataset();
+				XMLStreamOutput.FragmentWriter writer = new XMLStreamOutput.FragmentWriter();
+				for (ClusterState cluster : affectedStates)
+				{
+					Node node = unionDs.getData().getNode(cluster.key);
+					cluster.union = store.append(writer.toBytes(node));
+					cluster.statistics.addUnion(node, idAttribute, du.getAllAttributes(), du.getNonListAttributes());
+				}
+				Metrics.timer(DataFusion.PHASE_METRIC, "phase", "union").stop(start);
+				
+				start = Metrics.Timer.start();
+				Evaluator evaluator = new Evaluator();
+				evaluator.setParallelism(parallelism);
+				evaluator.setBatchMode(batchMode);
+				evaluator.resolve(rf, unionDs);
+				Metrics.timer(DataFusion.PHASE_METRIC, "phase", "resolution").stop(start);
+				
+				start = Metrics.Timer.start();
+				GoldIndex gold = (fnGold == null) ? null : GoldIndex.load(fnGold, idDataPath, du.getNonListAttributes(), dictionary);
+				Metrics.timer(DataFusion.PHASE_METRIC, "phase", "gold").stop(start);
+				start = Metrics.Timer.start();
+				for (ClusterState cluster : affectedStates)
+				{
+					Node node = unionDs.getData().getNode(cluster.key);
+					cluster.fused = store.append(writer.toBytes(node));
+					if (gold != null && gold.contains(cluster.key)) cluster.statistics.addEvaluation(node, gold, cluster.key, du.getNonListAttributes(), idAttribute);
+					statistics.add(cluster.statistics);
+				}
+				Metrics.timer(DataFusion.PHASE_METRIC, "phase", "evaluation").stop(start);
+			}
+			
+			// 6: outputs, written from the stored fragments (if anything changed)
+			start = Metrics.Timer.start();
+			boolean changed = previous == null || sourcesChanged || duplicatesChanged;
+			Node root = XMLUtils.createDocument(rootElementName);
+			Map<String, byte[]> provenance = new HashMap<String, byte[]>();
+			for (SourceState source : sources) provenance.put(source.statistics.provenanceID, store.read(source.provenance));
+			if (unionFn != null && (changed || !new File(unionFn).exists())) 
+				writeOutput(unionFn, root, provenance.values(), result, store, true);
+			if (fnOutput != null && (changed || !new File(fnOutput).exists())) 
+				writeOutput(fnOutput, root, provenance.values(), result, store, false);
+			Metrics.timer(DataFusion.PHASE_METRIC, "phase", "fused_output").stop(start);
+			
+			// 7: report
+			start = Metrics.Timer.start();
+			PrintStream out = (fnFusionReport == null) ? System.out : new PrintStream(new FileOutputStream(fnFusionReport));
+			statistics.printUnionReport(out, du.getAllAttributes(), du.getNonListAttributes());
+			statistics.printFusionReport(out, du.getAllAttributes(), du.getNonListAttributes(), idAttribute);
+			if (fnFusionReport != null) out.close();
+			System.out.println("Number of entities that were evaluated with respect to gold standard is " + statistics.getEvaluatedCount() + 
+					".\nIf you think it should be higher - check IDs in your gold standard!\n");
+			Metrics.timer(DataFusion.PHASE_METRIC, "phase", "report").stop(start);
+			
+			// 8: state for the next run
+			start = Metrics.Timer.start();
+			manifest.setProperty("config", config);
+			manifest.setProperty("allAttributes", FusionStatistics.join(new TreeSet<String>(du.getAllAttributes())));
+			manifest.setProperty("attributes", FusionStatistics.join(new TreeSet<String>(du.getNonListAttributes())));
+			manifest.setProperty("listNodes", FusionStatistics.join(new TreeSet<String>(du.getListNodes())));
+			if (compactionNeeded(store, sources, result)) compact(store, sources, result);
+			writeState(manifest, sources, result, statistics);
+			Metrics.timer(DataFusion.PHASE_METRIC, "phase", "state").stop(start);
+		}
+		return true;
+	}
+	
+	// Key of everything that, if changed, makes the stored state useless (the gold standard is included by content)
+	private static String configKey(String rootElementName, String idDataPath, String idProvPath, 
+			Set<String> filesDuplicates, Set<String> filesData, Map<String, AbstractResolutionFunction> rf, String fnGold) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(rootElementName).append('\n').append(idDataPath).append('\n').append(idProvPath).append('\n');
+		sb.append(new TreeSet<String>(filesData)).append('\n').append(new TreeSet<String>(filesDuplicates)).append('\n');
+		for (String path : new TreeSet<String>(rf.keySet())) sb.append(path).append('=').append(rf.get(path).getClass().getName()).append('\n');
+		if (fnGold != null) sb.append(fnGold).append('=').append(new File(fnGold).exists() ? ContentHash.ofFile(fnGold) : "").append('\n');
+		return ContentHash.of(sb.toString());
+	}
+	
+	// Combined content hash of a set of files
+	private static String hashFiles(Set<String> files) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		for (String fn : new TreeSet<String>(files)) sb.append(fn).append('=').append(ContentHash.ofFile(fn)).append('\n');
+		return ContentHash.of(sb.toString());
+	}
+	
+	private static boolean sameAttributes(Properties manifest, DataUnion du)
+	{
+		return FusionStatistics.parseSet(manifest.getProperty("allAttributes", "")).equals(du.getAllAttributes())
+				&& FusionStatistics.parseSet(manifest.getProperty("attributes", "")).equals(du.getNonListAttributes())
+				&& FusionStatistics.parseSet(manifest.getProperty("listNodes", "")).equals(du.getListNodes());
+	}
+	
+	// Store the provenance and the objects of a loaded dataset; IDs of new, changed and removed objects are added to changedIDs
+	private SourceState loadSource(String fn, String hash, Dataset ds, SourceState old, FragmentStore store, Set<String> changedIDs) 
+			throws IOException, XMLStreamException
+	{
+		SourceState source = new SourceState(fn, hash);
+		source.dataset = ds;
+		source.changed = true;
+		source.statistics = FusionStatistics.Source.of(ds);
+		source.densityPaths = new HashSet<String>(ds.getDatasetDensityCounts().keySet());
+		source.listNodes = new HashSet<String>(ds.getListNodes().keySet());
+		Node provenance = ds.getProvenance().getNode(ds.getProvenanceID());
+		source.provenanceHash = ContentHash.of(provenance);
+		source.provenance = store.append(XMLStreamOutput.toBytes(provenance));
+		
+		// all objects of a dataset with changed provenance (e.g. its date) are changed; only changed objects are serialized
+		boolean provenanceChanged = old == null || !old.provenanceHash.equals(source.provenanceHash);
+		XMLStreamOutput.FragmentWriter writer = new XMLStreamOutput.FragmentWriter();
+		for (Entry<String, Node> entry : ds.getData().getEntrySet())
+		{
+			String id = entry.getKey();
+			String entityHash = ContentHash.of(entry.getValue());
+			Entity entity = (old == null) ? null : old.entities.get(id);
+			if (entity == null || provenanceChanged || !entity.hash.equals(entityHash))
+			{
+				entity = new Entity(entityHash, store.append(writer.toBytes(entry.getValue())));
+				changedIDs.add(id);
+			}
+			source.entities.put(id, entity);
+		}
+		if (old != null)
+		{
+			for (String id : old.entities.keySet())
+			{
+				if (!source.entities.containsKey(id)) changedIDs.add(id);
+			}
+		}
+		return source;
+	}
+	
+	// The objects of a dataset with the given IDs and its provenance, as a dataset 
+	// (for an unchanged dataset, read from the fragment store, interning values in dictionary)
+	private static Dataset clusteredPart(SourceState source, Set<String> ids, FragmentStore store, 
+			String rootElementName, String idAttribute, String idProvAttribute, ValueDictionary dictionary) throws IOException, XMLStreamException
+	{
+		if (source.dataset != null)
+		{
+			NodeMap data = new NodeMap();
+			data.setIDAttribute(idAttribute);
+			for (String id : ids)
+			{
+				Node node = source.dataset.getData().getNode(id);
+				if (node != null) data.addNode(id, node);
+			}
+			return new Dataset(data, source.dataset.getProvenance());
+		}
+		
+		Node root = XMLUtils.createDocument(rootElementName);
+		NodeMap provenance = new NodeMap();
+		provenance.setIDAttribute(idProvAttribute);
+		provenance.addNode(source.statistics.provenanceID, root.appendChild(XMLStreamLoader.parse(store.read(source.provenance), root.getOwnerDocument())));
+		NodeMap data = new NodeMap();
+		data.setIDAttribute(idAttribute);
+		for (String id : ids)
+		{
+			Entity entity = source.entities.get(id);
+			if (entity != null) data.addNode(id, root.appendChild(XMLStreamLoader.parse(store.read(entity.ref), root.getOwnerDocument(), dictionary)));
+		}
+		return new Dataset(data, provenance);
+	}
+	
+	// Write a merged (union) or fused document: root, provenance elements and the nodes of all clusters
+	private static void writeOutput(String fn, Node root, Collection<byte[]> provenance, List<ClusterState> clusters, 
+			FragmentStore store, boolean union) throws IOException, XMLStreamException
+	{
+		XMLStreamOutput out = new XMLStreamOutput(fn);
+		try
+		{
+			if (union) out.startElement(root);
+			else out.startDocument(root);
+			for (byte[] fragment : provenance) out.writeFragment(fragment);
+			for (ClusterState cluster : clusters) out.writeFragment(store.read(union ? cluster.union : cluster.fused));
+			out.endDocument();
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	private static boolean compactionNeeded(FragmentStore store, List<SourceState> sources, List<ClusterState> clusters)
+	{
+		long live = 0;
+		for (SourceState source : sources)
+		{
+			live += source.provenance.length;
+			for (Entity entity : source.entities.values()) live += entity.ref.length;
+		}
+		for (ClusterState cluster : clusters) live += cluster.union.length + cluster.fused.length;
+		return store.size() > COMPACT_RATIO*live;
+	}
+	
+	// Copy the referenced fragments to a new store, which replaces the old one (all entity lists are written again)
+	private void compact(FragmentStore store, List<SourceState> sources, List<ClusterState> clusters) throws IOException
+	{
+		File compacted = file(FRAGMENTS + ".tmp");
+		try (FragmentStore target = new FragmentStore(compacted.getPath(), true))
+		{
+			for (SourceState source : sources)
+			{
+				source.provenance = target.append(store.read(source.provenance));
+				for (Entity entity : source.entities.values()) entity.ref = target.append(store.read(entity.ref));
+				source.changed = true;
+			}
+			for (ClusterState cluster : clusters)
+			{
+				cluster.union = target.append(store.read(cluster.union));
+				cluster.fused = target.append(store.read(cluster.fused));
+			}
+		}
+		store.close();
+		Files.move(compacted.toPath(), file(FRAGMENTS).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	private File file(String name)
+	{
+		return new File(stateDir, name);
+	}
+	
+	// Name of the file with the objects of a dataset
+	private static String entitiesFile(String fn)
+	{
+		return "entities-" + ContentHash.of(fn).substring(0, 16) + ".txt";
+	}
+	
+	// Write the state; the manifest is removed first and written last, so an interrupted write leads to a full run next time
+	private void writeState(Properties manifest, List<SourceState> sources, List<ClusterState> clusters, FusionStatistics statistics) throws IOException
+	{
+		Files.deleteIfExists(file(MANIFEST).toPath());
+		for (SourceState source : sources)
+		{
+			if (!source.changed) continue;
+			try (PrintWriter out = newWriter(entitiesFile(source.file)))
+			{
+				for (Entry<String, Entity> entry : source.entities.entrySet())
+					out.println(entry.getKey() + "\t" + entry.getValue().hash + "\t" + entry.getValue().ref);
+			}
+		}
+		try (PrintWriter out = newWriter(SOURCES))
+		{
+			for (SourceState source : sources)
+			{
+				out.println(source.file + "\t" + source.hash + "\t" + source.provenanceHash + "\t" + source.provenance + "\t" 
+						+ FusionStatistics.join(source.densityPaths) + "\t" + FusionStatistics.join(source.listNodes) + "\t" + source.statistics);
+			}
+		}
+		try (PrintWriter out = newWriter(CLUSTERS))
+		{
+			for (ClusterState cluster : clusters)
+				out.println(cluster.key + "\t" + cluster.union + "\t" + cluster.fused + "\t" + cluster.statistics);
+		}
+		try (PrintWriter out = newWriter(STATISTICS))
+		{
+			statistics.write(out);
+		}
+		try (OutputStream out = new FileOutputStream(file(MANIFEST)))
+		{
+			manifest.store(out, "incremental fusion state");
+		}
+	}
+	
+	private PrintWriter newWriter(String name) throws IOException
+	{
+		return new PrintWriter(Files.newBufferedWriter(file(name).toPath(), StandardCharsets.UTF_8));
+	}
+	
+	private BufferedReader newReader(String name) throws IOException
+	{
+		return Files.newBufferedReader(file(name).toPath(), StandardCharsets.UTF_8);
+	}
+	
+	// Read the state of the previous run; null if there is none, it cannot be read or it was made with another configuration
+	private State readState(String config)
+	{
+		if (!file(MANIFEST).exists()) return null;
+		State state = new State();
+		try 
+		{
+			try (InputStream in = new FileInputStream(file(MANIFEST)))
+			{
+				state.manifest.load(in);
+			}
+			if (!config.equals(state.manifest.getProperty("config")))
+			{
+				System.out.println("Input files, paths or resolution functions changed, all clusters are recomputed");
+				return null;
+			}
+			
+			try (BufferedReader in = newReader(SOURCES))
+			{
+				String line;
+				while ((line = in.readLine()) != null)
+				{
+					String[] f = line.split("\t", 8);
+					SourceState source = new SourceState(f[0], f[1]);
+					source.provenanceHash = f[2];
+					source.provenance = Ref.parse(f[3], f[4]);
+					source.densityPaths = FusionStatistics.parseSet(f[5]);
+					source.listNodes = FusionStatistics.parseSet(f[6]);
+					source.statistics = FusionStatistics.Source.parse(f[7]);
+					readEntities(source);
+					state.sources.put(source.file, source);
+				}
+			}
+			try (BufferedReader in = newReader(CLUSTERS))
+			{
+				String line;
+				while ((line = in.readLine()) != null)
+				{
+					String[] f = line.split("\t", 6);
+					ClusterState cluster = new ClusterState(f[0], FusionStatistics.Cluster.parse(f[5]));
+					cluster.union = Ref.parse(f[1], f[2]);
+					cluster.fused = Ref.parse(f[3], f[4]);
+					state.clusters.put(cluster.key, cluster);
+				}
+			}
+			try (BufferedReader in = newReader(STATISTICS))
+			{
+				state.statistics = FusionStatistics.read(in);
+			}
+		} 
+		catch (IOException | RuntimeException e) 
+		{
+			System.out.println("ERROR: state in " + stateDir + " cannot be read (" + e + "), all clusters are recomputed");
+			return null;
+		}
+		return state;
+	}
+	
+	private void readEntities(SourceState source) throws IOException
+	{
+		try (BufferedReader in = newReader(entitiesFile(source.file)))
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				String[] f = line.split("\t");
+				source.entities.put(f[0], new Entity(f[1], Ref.parse(f[2], f[3])));
+			}
+		}
+	}
+	
+	
+	// State of a previous run
+	private static class State
+	{
+		final Properties manifest = new Properties();
+		final Map<String, SourceState> sources = new HashMap<String, SourceState>(); // by file
+		final Map<String, ClusterState> clusters = new LinkedHashMap<String, ClusterState>(); // by composite ID, in cluster order
+		FusionStatistics statistics = null;
+	}
+	
+	// An input dataset: content hash, provenance element, attributes and counts, and its objects by ID
+	// (dataset is only set if the dataset was loaded in this run, i.e. it changed)
+	private static class SourceState
+	{
+		final String file;
+		final String hash;
+		String provenanceHash;
+		Ref provenance;
+		Set<String> densityPaths;
+		Set<String> listNodes;
+		FusionStatistics.Source statistics;
+		final Map<String, Entity> entities = new LinkedHashMap<String, Entity>();
+		Dataset dataset = null;
+		boolean changed = false;
+		
+		SourceState(String file, String hash)
+		{
+			this.file = file;
+			this.hash = hash;
+		}
+	}
+	
+	// An object of an input dataset
+	private static class Entity
+	{
+		final String hash;
+		Ref ref;
+		
+		Entity(String hash, Ref ref)
+		{
+			this.hash = hash;
+			this.ref = ref;
+		}
+	}
+	
+	// A cluster: merged and fused node, and its counts
+	private static class ClusterState
+	{
+		final String key;
+		final FusionStatistics.Cluster statistics;
+		Ref union;
+		Ref fused;
+		
+		ClusterState(String key, FusionStatistics.Cluster statistics)
+		{
+			this.key = key;
+			this.statistics = statistics;
+		}
+	}
+}
@@ -0,0 +1,622 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uma.wdi.fusion;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.input.DatasetProfile;
+import uma.wdi.fusion.input.Duplicates;
+import uma.wdi.fusion.resolution.AbstractResolutionFunction;
+import uma.wdi.fusion.utils.Metrics;
+import uma.wdi.fusion.utils.NodeMap;
+import uma.wdi.fusion.utils.ValueDictionary;
+import uma.wdi.fusion.utils.XMLStreamLoader;
+import uma.wdi.fusion.utils.XMLStreamOutput;
+import uma.wdi.fusion.utils.XMLUtils;
+
+/* Out-of-core union and fusion: the input datasets are streamed, and only the objects of one chunk of clusters are in memory at a time,
+ * so that the memory needed depends on the memory budget and the largest cluster, not on the size of the data
+ * 
+ * (1) each input dataset is streamed object by object (see XMLStreamLoader.stream): the object is added to the profile of the dataset
+ *     and, if it belongs to a cluster, serialized into a buffer; a full buffer (memoryBudget) is sorted by cluster and written 
+ *     to a spill file in spillDir (a sorted run)
+ * (2) the runs are merged (k-way) in the order of the clusters in Duplicates; the clusters are merged, resolved and evaluated 
+ *     in chunks (of up to 1/CHUNK_FRACTION of the memory budget in serialized objects, at least one cluster), each in a document of its own,
+ *     and written to the outputs when they are done
+ * (3) the report is printed from the counts per dataset and per cluster (see FusionStatistics), 
+ *     with the same result as DataFusion.runDataUnion and runDataFusion
+ * The gold standard is indexed while it is streamed (see GoldIndex.load); the correspondences (IDs and clusters) are kept in memory.
+ * The spill files are removed at the end of a run.
+ * 
+ *  @author Volha
+ * */
+public class OutOfCoreFusion 
+{
+	public static final long DEFAULT_MEMORY_BUDGET = 256L << 20;
+	// the DOM of a chunk takes several times the size of its serialized objects
+	private static final int CHUNK_FRACTION = 8;
+	// estimated memory of a buffered object, besides its serialized bytes and ID
+	private static final int RECORD_OVERHEAD = 96;
+	private static final int IO_BUFFER = 1 << 16;
+	
+	// Number of spill files (sorted runs) written, see Metrics
+	static final String SPILL_METRIC = "wdi_fusion_spill_files_total";
+	
+	private final File spillDir;
+	private final long memoryBudget;
+	private int parallelism = 1;
+	private boolean batchMode = false;
+	private Set<String> internedAttributes = new HashSet<String>();
+	// dictionary of the current run
+	private ValueDictionary dictionary = ValueDictionary.NONE;
+	private List<File> runs = new ArrayList<File>();
+	
+	public OutOfCoreFusion(String spillDir, long memoryBudget)
+	{
+		this.spillDir = new File(spillDir);
+		this.memoryBudget = Math.max(1, memoryBudget);
+	}
+	
+	// Number of threads used for conflict resolution (see Evaluator.setParallelism)
+	public void setParallelism(int parallelism)
+	{
+		this.parallelism = parallelism;
+	}
+	
+	// Resolve pair-based functions column by column (see Evaluator.setBatchMode)
+	public void setBatchMode(boolean batchMode)
+	{
+		this.batchMode = batchMode;
+	}
+	
+	// Attributes whose values are interned, in a new ValueDictionary per run (see DataFusion.setInternedAttributes)
+	public void setInternedAttributes(Set<String> attributes)
+	{
+		internedAttributes = new HashSet<String>(attributes);
+	}
+	
+	// Number of spill files written in the last run
+	public int getSpillFileCount()
+	{
+		return runs.size();
+	}
+	
+	/* Create the merged dataset, fuse it and evaluate it against the gold standard (as DataFusion.runDataUnion and runDataFusion),
+	 * one chunk of clusters at a time
+	 * unionFn, fnOutput, fnFusionReport : merged dataset, fused dataset and report (unionFn and fnOutput are not written if null,
+	 * the report is printed into System.out if fnFusionReport is null); fnGold can be null
+	 */
+	public boolean run(String rootElementName, String idDataPath, String idProvPath, 
+			Set<String> filesDuplicates, Set<String> filesData, Map<String, AbstractResolutionFunction> rf, 
+			String fnGold, String unionFn, String fnOutput, String fnFusionReport)
+	{
+		runs = new ArrayList<File>();
+		dictionary = new ValueDictionary(internedAttributes);
+		try 
+		{
+			return runOutOfCore(rootElementName, idDataPath, idProvPath, filesDuplicates, filesData, rf, fnGold, unionFn, fnOutput, fnFusionReport);
+		} 
+		catch (IOException | XMLStreamException e) 
+		{
+			System.out.println("ERROR: out-of-core fusion in " + spillDir + " failed: " + e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			for (File run : runs) run.delete();
+		}
+	}
+	
+	private boolean runOutOfCore(String rootElementName, String idDataPath, String idProvPath, 
+			Set<String> filesDuplicates, Set<String> filesData, Map<String, AbstractResolutionFunction> rf, 
+			String fnGold, String unionFn, String fnOutput, String fnFusionReport) throws IOException, XMLStreamException
+	{
+		if (!XMLStreamLoader.isStreamable(idDataPath) || !XMLStreamLoader.isStreamable(idProvPath))
+		{
+			System.out.println("ERROR: id paths " + idDataPath + ", " + idProvPath + " cannot be used to stream the datasets");
+			return false;
+		}
+		if (!spillDir.isDirectory() && !spillDir.mkdirs()) throw new IOException("cannot create " + spillDir);
+		
+		// 1: clusters, numbered in the order of Duplicates
+		long start = Metrics.Timer.start();
+		Duplicates dupl = new Duplicates();
+		if (!dupl.read(filesDuplicates)) return false;
+		List<Set<String>> clusters = new ArrayList<Set<String>>(dupl.size());
+		Map<Integer, Integer> order = new HashMap<Integer, Integer>(dupl.size()*4/3+1);
+		for (Entry<Integer, Set<String>> cluster : dupl.getClusters().entrySet())
+		{
+			order.put(cluster.getKey(), clusters.size());
+			clusters.add(cluster.getValue());
+		}
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "duplicates").stop(start);
+		
+		// 2: stream the datasets, spill their clustered objects
+		start = Metrics.Timer.start();
+		SpillBuffer buffer = new SpillBuffer(dupl.getIDtoClusterMap(), order, clusters.size());
+		List<SourceReader> sources = new ArrayList<SourceReader>();
+		for (String fn : new TreeSet<String>(filesData))
+		{
+			SourceReader source = new SourceReader(sources.size(), buffer);
+			if (!XMLStreamLoader.stream(fn, idDataPath, source.data, idProvPath, source.provenance, dictionary)) return false;
+			if (source.provenanceIDs.isEmpty())
+			{
+				System.out.println("ERROR: no ids (" + idProvPath +") found in the input file " + fn);
+				return false;
+			}
+			if (source.provenanceIDs.size() > 1)
+			{
+				System.out.println("Dataset " + fn + " contains more than one provenance element");
+				return false;
+			}
+			sources.add(source);
+		}
+		buffer.finish();
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "load").stop(start);
+		if (!buffer.complete(clusters) && !checkClusters(buffer, clusters)) return false;
+		
+		// 3: attributes of the merged dataset, provenance elements, counts of the input datasets
+		String elementName = null;
+		String idAttribute = null;
+		DataUnion du = new DataUnion();
+		FusionStatistics statistics = new FusionStatistics();
+		Map<String, Element> provenance = new HashMap<String, Element>();
+		for (SourceReader source : sources)
+		{
+			if (elementName == null) elementName = source.elementName;
+			if (idAttribute == null) idAttribute = source.idAttribute;
+			du.addAttributes(source.profile.getDensityCounts().keySet(), source.profile.getListNodes().keySet());
+			statistics.add(FusionStatistics.Source.of(source.provenanceID(), source.profile, source.idAttribute));
+			provenance.put(source.provenanceID(), source.provenanceElement);
+		}
+		du.filterListNodes();
+		Node root = XMLUtils.createDocument(rootElementName);
+		NodeMap unionProvenance = new NodeMap();
+		for (Entry<String, Element> prv : provenance.entrySet())
+		{
+			Node prvNode = root.appendChild(root.getOwnerDocument().adoptNode(prv.getValue().cloneNode(true)));
+			if (unionProvenance.getIDAttribute() == null) unionProvenance.setIDAttribute(sources.get(0).idProvAttribute);
+			unionProvenance.addNode(prv.getKey(), prvNode);
+		}
+		
+		start = Metrics.Timer.start();
+		GoldIndex gold = (fnGold == null) ? null : GoldIndex.load(fnGold, idDataPath, du.getNonListAttributes(), dictionary);
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "gold").stop(start);
+		
+		// 4: merge, resolve, evaluate and write the clusters chunk by chunk
+		XMLStreamOutput unionOut = startOutput(unionFn, root, unionProvenance, true);
+		XMLStreamOutput fusedOut = startOutput(fnOutput, root, unionProvenance, false);
+		Evaluator evaluator = new Evaluator();
+		evaluator.setParallelism(parallelism);
+		evaluator.setBatchMode(batchMode);
+		long chunkLimit = Math.max(1, memoryBudget/CHUNK_FRACTION);
+		long unionNanos = 0;
+		long resolutionNanos = 0;
+		long evaluationNanos = 0;
+		long outputNanos = 0;
+		try (RunMerger merger = new RunMerger(runs, buffer.records))
+		{
+			while (merger.hasNext())
+			{
+				long t = System.nanoTime();
+				Node chunkRoot = XMLUtils.createDocument(rootElementName);
+				NodeMap chunk = new NodeMap();
+				chunk.setIDAttribute(idAttribute);
+				List<FusionStatistics.Cluster> chunkStatistics = new ArrayList<FusionStatistics.Cluster>();
+				long chunkBytes = 0;
+				while (merger.hasNext() && chunkBytes < chunkLimit)
+				{
+					int c = merger.peek().cluster;
+					Map<String, Node> objects = new HashMap<String, Node>();
+					Map<String, String> provenanceIDs = new HashMap<String, String>();
+					while (merger.hasNext() && merger.peek().cluster == c)
+					{
+						Record record = merger.next();
+						if (objects.put(record.id, XMLStreamLoader.parse(record.fragment, chunkRoot.getOwnerDocument(), dictionary)) != null)
+						{
+							// should not be the case!
+							System.out.println("Error: object with ID "+record.id+" is found in multiple datasets");
+						}
+						provenanceIDs.put(record.id, sources.get(record.dataset).provenanceID());
+						chunkBytes += record.fragment.length;
+					}
+					Node node = du.appendCluster(chunkRoot, clusters.get(c), objects, provenanceIDs, elementName);
+					if (node == null) return false;
+					chunk.addNode(chunk.getCompositeID(clusters.get(c)), node);
+					FusionStatistics.Cluster cluster = new FusionStatistics.Cluster(clusters.get(c).size());
+					cluster.addUnion(node, idAttribute, du.getAllAttributes(), du.getNonListAttributes());
+					chunkStatistics.add(cluster);
+				}
+				unionNanos += System.nanoTime()-t;
+				
+				t = System.nanoTime();
+				if (unionOut != null) 
+				{
+					for (Entry<String, Node> entry : chunk.getEntrySet()) unionOut.writeNode(entry.getValue());
+				}
+				outputNanos += System.nanoTime()-t;
+				
+				t = System.nanoTime();
+				evaluator.resolve(rf, new Dataset(chunk, unionProvenance));
+				resolutionNanos += System.nanoTime()-t;
+				
+				int i = 0;
+				for (Entry<String, Node> entry : chunk.getEntrySet())
+				{
+					t = System.nanoTime();
+					FusionStatistics.Cluster cluster = chunkStatistics.get(i++);
+					if (gold != null && gold.contains(entry.getKey())) 
+						cluster.addEvaluation(entry.getValue(), gold, entry.getKey(), du.getNonListAttributes(), idAttribute);
+					statistics.add(cluster);
+					evaluationNanos += System.nanoTime()-t;
+					t = System.nanoTime();
+					if (fusedOut != null) fusedOut.writeNode(entry.getValue());
+					outputNanos += System.nanoTime()-t;
+				}
+			}
+		}
+		long t = System.nanoTime();
+		endOutput(unionOut);
+		endOutput(fusedOut);
+		outputNanos += System.nanoTime()-t;
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "union").record(unionNanos);
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "resolution").record(resolutionNanos);
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "evaluation").record(evaluationNanos);
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "fused_output").record(outputNanos);
+		
+		// 5: report
+		start = Metrics.Timer.start();
+		PrintStream out = (fnFusionReport == null) ? System.out : new PrintStream(new FileOutputStream(fnFusionReport));
+		statistics.printUnionReport(out, du.getAllAttributes(), du.getNonListAttributes());
+		statistics.printFusionReport(out, du.getAllAttributes(), du.getNonListAttributes(), idAttribute);
+		if (fnFusionReport != null) out.close();
+		System.out.println("Number of entities that were evaluated with respect to gold standard is " + statistics.getEvaluatedCount() + 
+				".\nIf you think it should be higher - check IDs in your gold standard!\n");
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "report").stop(start);
+		return true;
+	}
+	
+	// Find the objects of the clusters that are missing in the datasets (as DataUnion.createUnion does, before anything is merged)
+	// Returns false (with an error message per object) if there are any
+	private boolean checkClusters(SpillBuffer buffer, List<Set<String>> clusters) throws IOException
+	{
+		Set<String> found = new HashSet<String>();
+		boolean clustersOK = true;
+		int next = 0;
+		try (RunMerger merger = new RunMerger(runs, buffer.records))
+		{
+			while (next < clusters.size())
+			{
+				found.clear();
+				while (merger.hasNext() && merger.peek().cluster == next) found.add(merger.next().id);
+				for (String id : clusters.get(next))
+				{
+					if (!found.contains(id))
+					{
+						System.out.println("Error: element "+id+" from the duplicate clusters is not found in your data");
+						clustersOK = false;
+					}
+				}
+				next++;
+			}
+		}
+		if (!clustersOK) System.out.println("Error: merged dataset could not be created correctly");
+		return clustersOK;
+	}
+	
+	// Start writing a merged (union) or fused document: root and provenance elements (null if fn is null)
+	static XMLStreamOutput startOutput(String fn, Node root, NodeMap provenance, boolean union) throws IOException, XMLStreamException
+	{
+		if (fn == null) return null;
+		XMLStreamOutput out = new XMLStreamOutput(fn);
+		if (union) out.startElement(root);
+		else out.startDocument(root);
+		for (Entry<String, Node> entry : provenance.getEntrySet()) out.writeNode(entry.getValue());
+		return out;
+	}
+	
+	static void endOutput(XMLStreamOutput out) throws IOException, XMLStreamException
+	{
+		if (out == null) return;
+		out.endDocument();
+		out.close();
+	}
+	
+	
+	// An input dataset as it is streamed: the profile and provenance element are kept, clustered objects go to the spill buffer
+	private static class SourceReader
+	{
+		final int index;
+		final DatasetProfile profile = new DatasetProfile();
+		final Set<String> provenanceIDs = new HashSet<String>();
+		Element provenanceElement = null;
+		String elementName = null;
+		String idAttribute = null;
+		String idProvAttribute = null;
+		final XMLStreamLoader.EntityHandler data;
+		final XMLStreamLoader.EntityHandler provenance;
+		
+		SourceReader(int index, final SpillBuffer buffer) throws XMLStreamException
+		{
+			this.index = index;
+			final XMLStreamOutput.FragmentWriter writer = new XMLStreamOutput.FragmentWriter();
+			data = new XMLStreamLoader.EntityHandler()
+			{
+				@Override
+				public void entity(Element entity, Element id) throws IOException
+				{
+					// (objects without id are not part of a dataset, see NodeMap)
+					if (id == null) return;
+					if (elementName == null) 
+					{
+						elementName = entity.getNodeName();
+						idAttribute = id.getNodeName();
+					}
+					profile.add(entity);
+					String objectID = id.getTextContent();
+					if (buffer.isClustered(objectID)) 
+					{
+						try 
+						{
+							buffer.add(objectID, SourceReader.this.index, writer.toBytes(entity));
+						} 
+						catch (XMLStreamException e) 
+						{
+							throw new IOException(e);
+						}
+					}
+				}
+			};
+			provenance = new XMLStreamLoader.EntityHandler()
+			{
+				@Override
+				public void entity(Element entity, Element id)
+				{
+					if (id == null) return;
+					idProvAttribute = id.getNodeName();
+					provenanceIDs.add(id.getTextContent());
+					provenanceElement = entity;
+				}
+			};
+		}
+		
+		String provenanceID()
+		{
+			return provenanceIDs.iterator().next();
+		}
+	}
+	
+	
+	// Serialized object of a cluster (cluster: number in the order of Duplicates, dataset: index of its SourceReader)
+	private static class Record implements Comparable<Record>
+	{
+		final int cluster;
+		final int dataset;
+		final String id;
+		final byte[] fragment;
+		
+		Record(int cluster, int dataset, String id, byte[] fragment)
+		{
+			this.cluster = cluster;
+			this.dataset = dataset;
+			this.id = id;
+			this.fragment = fragment;
+		}
+		
+		@Override
+		public int compareTo(Record other)
+		{
+			return Integer.compare(cluster, other.cluster);
+		}
+		
+		void write(DataOutputStream out) throws IOException
+		{
+			out.writeInt(cluster);
+			out.writeInt(dataset);
+			out.writeUTF(id);
+			out.writeInt(fragment.length);
+			out.write(fragment);
+		}
+		
+		// Next record of a run, null at its end
+		static Record read(DataInputStream in) throws IOException
+		{
+			int cluster;
+			try 
+			{
+				cluster = in.readInt();
+			} 
+			catch (EOFException e) 
+			{
+				return null;
+			}
+			int dataset = in.readInt();
+			String id = in.readUTF();
+			byte[] fragment = new byte[in.readInt()];
+			in.readFully(fragment);
+			return new Record(cluster, dataset, id, fragment);
+		}
+	}
+	
+	// Objects of the clusters, buffered up to the memory budget, then sorted by cluster and written to a spill file
+	// (what is left at the end is kept in memory, sorted)
+	private class SpillBuffer
+	{
+		final Map<String, Integer> clusterOf;
+		final Map<Integer, Integer> order;
+		final int[] counts;
+		List<Record> records = new ArrayList<Record>();
+		long bytes = 0;
+		
+		SpillBuffer(Map<String, Integer> clusterOf, Map<Integer, Integer> order, int clusters)
+		{
+			this.clusterOf = clusterOf;
+			this.order = order;
+			counts = new int[clusters];
+		}
+		
+		boolean isClustered(String id)
+		{
+			return clusterOf.containsKey(id);
+		}
+		
+		void add(String id, int dataset, byte[] fragment) throws IOException
+		{
+			int cluster = order.get(clusterOf.get(id));
+			counts[cluster]++;
+			records.add(new Record(cluster, dataset, id, fragment));
+			bytes += fragment.length + 2*id.length() + RECORD_OVERHEAD;
+			if (bytes >= memoryBudget) spill();
+		}
+		
+		// Write the buffered records as a sorted run
+		void spill() throws IOException
+		{
+			Collections.sort(records);
+			File run = new File(spillDir, "run-" + runs.size() + ".dat");
+			runs.add(run);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER)))
+			{
+				for (Record record : records) record.write(out);
+			}
+			records = new ArrayList<Record>();
+			bytes = 0;
+			Metrics.counter(SPILL_METRIC).increment();
+		}
+		
+		void finish()
+		{
+			Collections.sort(records);
+		}
+		
+		// True if each cluster has as many objects as IDs (otherwise objects are missing or in several datasets)
+		boolean complete(List<Set<String>> clusters)
+		{
+			for (int c = 0; c < counts.length; c++)
+			{
+				if (counts[c] != clusters.get(c).size()) return false;
+			}
+			return true;
+		}
+	}
+	
+	// k-way merge of the sorted runs and the records left in memory, by cluster (records of a cluster in the order they were read)
+	private static class RunMerger implements AutoCloseable
+	{
+		private final PriorityQueue<Run> queue = new PriorityQueue<Run>();
+		private final List<Run> open = new ArrayList<Run>();
+		
+		RunMerger(List<File> files, List<Record> memory) throws IOException
+		{
+			try
+			{
+				for (File file : files) 
+				{
+					Run run = new Run(open.size(), new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER)), null);
+					open.add(run);
+					if (run.advance()) queue.add(run);
+				}
+				Run run = new Run(open.size(), null, memory.iterator());
+				if (run.advance()) queue.add(run);
+			}
+			catch (IOException e)
+			{
+				close();
+				throw e;
+			}
+		}
+		
+		boolean hasNext()
+		{
+			return !queue.isEmpty();
+		}
+		
+		Record peek()
+		{
+			return queue.peek().head;
+		}
+		
+		Record next() throws IOException
+		{
+			Run run = queue.poll();
+			Record record = run.head;
+			if (run.advance()) queue.add(run);
+			return record;
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			for (Run run : open) run.in.close();
+		}
+	}
+	
+	// A sorted run (a spill file, or the records in memory) with its next record
+	private static class Run implements Comparable<Run>
+	{
+		final int index;
+		final DataInputStream in;
+		final Iterator<Record> memory;
+		Record head = null;
+		
+		Run(int index, DataInputStream in, Iterator<Record> memory)
+		{
+			this.index = index;
+			this.in = in;
+			this.memory = memory;
+		}
+		
+		boolean advance() throws IOException
+		{
+			if (in != null) head = Record.read(in);
+			else head = memory.hasNext() ? memory.next() : null;
+			return head != null;
+		}
+		
+		@Override
+		public int compareTo(Run other)
+		{
+			int c = Integer.compare(head.cluster, other.head.cluster);
+			return (c != 0) ? c : Integer.compare(index, other.index);
+		}
+	}
+}
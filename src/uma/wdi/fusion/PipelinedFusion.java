@@ -0,0 +1,513 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uma.wdi.fusion;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.w3c.dom.Node;
+
+import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.input.Duplicates;
+import uma.wdi.fusion.resolution.AbstractResolutionFunction;
+import uma.wdi.fusion.utils.Metrics;
+import uma.wdi.fusion.utils.NodeMap;
+import uma.wdi.fusion.utils.ValueDictionary;
+import uma.wdi.fusion.utils.XMLStreamOutput;
+import uma.wdi.fusion.utils.XMLUtils;
+
+/* Union, fusion, output and evaluation as a pipeline of stages connected by bounded queues, 
+ * so that the clusters flow through the stages as soon as their input is ready, and writing the files overlaps with resolution
+ * 
+ * load     : the correspondence files and input datasets, at the same time (as in DataFusion.runDataUnion);
+ *            the gold standard is loaded by a stage of its own while the other stages run
+ * union    : merges the clusters (in the order of Duplicates) chunk by chunk, each chunk in a document of its own,
+ *            serializes the merged nodes for the merged file and collects their counts (see FusionStatistics)
+ * resolve  : applies the resolution functions to a chunk (see Evaluator.resolve)
+ * write    : writes the merged and the fused nodes of a chunk
+ * evaluate : compares the fused nodes of a chunk to the gold standard and adds the counts of its clusters to the statistics
+ * A chunk is handed on through an ArrayBlockingQueue of queueCapacity chunks; a stage that is ahead blocks on a full queue,
+ * so that only a bounded number of chunks is in memory. Only one stage at a time works on a chunk (the DOM is not thread-safe).
+ * Stages run on virtual threads if the JVM has them (Java 21+), on platform threads otherwise.
+ * The report is printed from the counts (same result as DataFusion.runDataUnion and runDataFusion).
+ * 
+ *  @author Volha
+ * */
+public class PipelinedFusion 
+{
+	public static final int DEFAULT_CHUNK_SIZE = 512;
+	public static final int DEFAULT_QUEUE_CAPACITY = 4;
+	
+	// Thread.ofVirtual() and its builder, looked up by reflection (the code is built for Java 7), null if there are no virtual threads
+	private static final Method[] virtualThreads = lookupVirtualThreads();
+	// end of the chunks (passed on by each stage when it is done)
+	private static final Chunk END = new Chunk(null);
+	
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private int parallelism = 1;
+	private boolean batchMode = false;
+	private Set<String> internedAttributes = new HashSet<String>();
+	// dictionary of the current run
+	private ValueDictionary dictionary = ValueDictionary.NONE;
+	
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private volatile Throwable failure = null;
+	private volatile String failedStage = null;
+	
+	// Number of clusters per chunk
+	public void setChunkSize(int chunkSize)
+	{
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+	
+	// Number of chunks a queue between two stages holds
+	public void setQueueCapacity(int queueCapacity)
+	{
+		this.queueCapacity = Math.max(1, queueCapacity);
+	}
+	
+	// Number of threads used for conflict resolution within the resolve stage (see Evaluator.setParallelism)
+	public void setParallelism(int parallelism)
+	{
+		this.parallelism = parallelism;
+	}
+	
+	// Resolve pair-based functions column by column (see Evaluator.setBatchMode)
+	public void setBatchMode(boolean batchMode)
+	{
+		this.batchMode = batchMode;
+	}
+	
+	// Attributes whose values are interned, in a new ValueDictionary per run (see DataFusion.setInternedAttributes)
+	public void setInternedAttributes(Set<String> attributes)
+	{
+		internedAttributes = new HashSet<String>(attributes);
+	}
+	
+	// True if the stages run on virtual threads
+	public static boolean usesVirtualThreads()
+	{
+		return virtualThreads != null;
+	}
+	
+	/* Create the merged dataset, fuse it and evaluate it against the gold standard (as DataFusion.runDataUnion and runDataFusion)
+	 * unionFn, fnOutput, fnFusionReport : merged dataset, fused dataset and report (unionFn and fnOutput are not written if null,
+	 * the report is printed into System.out if fnFusionReport is null); fnGold can be null
+	 */
+	public boolean run(String rootElementName, final String idDataPath, String idProvPath, 
+			Set<String> filesDuplicates, Set<String> filesData, Map<String, AbstractResolutionFunction> rf, 
+			final String fnGold, String unionFn, String fnOutput, String fnFusionReport)
+	{
+		threads.clear();
+		failure = null;
+		dictionary = new ValueDictionary(internedAttributes);
+		try 
+		{
+			return runPipeline(rootElementName, idDataPath, idProvPath, filesDuplicates, filesData, rf, fnGold, unionFn, fnOutput, fnFusionReport);
+		} 
+		catch (IOException | XMLStreamException e) 
+		{
+			System.out.println("ERROR: pipelined fusion failed: " + e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	private boolean runPipeline(String rootElementName, final String idDataPath, String idProvPath, 
+			Set<String> filesDuplicates, Set<String> filesData, final Map<String, AbstractResolutionFunction> rf, 
+			final String fnGold, String unionFn, String fnOutput, String fnFusionReport) throws IOException, XMLStreamException
+	{
+		if (filesData.isEmpty())
+		{
+			System.out.println("ERROR: no input datasets given");
+			return false;
+		}
+		
+		// load
+		Duplicates dupl = new Duplicates();
+		Set<Dataset> datasets = DataFusion.loadInputs(dupl, filesDuplicates, filesData, idDataPath, idProvPath, dictionary);
+		if (datasets == null) return false;
+		long start = Metrics.Timer.start();
+		final FusionStatistics statistics = new FusionStatistics();
+		final DataUnion du = new DataUnion();
+		for (Dataset ds : datasets) 
+		{
+			du.addAttributes(ds.getDatasetDensityCounts().keySet(), ds.getListNodes().keySet());
+			statistics.add(FusionStatistics.Source.of(ds));
+		}
+		du.filterListNodes();
+		
+		// objects and provenance elements of the clusters, as in DataUnion.createUnion
+		final String elementName = datasets.iterator().next().getDataElementName();
+		String idAttribute = null;
+		String idProvAttribute = null;
+		Set<String> clusteredIDs = new HashSet<String>();
+		for (Set<String> clusterIDs : dupl.getClusters().values()) clusteredIDs.addAll(clusterIDs);
+		final Map<String, Node> objects = new HashMap<String, Node>(clusteredIDs.size()*4/3+1);
+		final Map<String, String> provenanceIDs = new HashMap<String, String>(clusteredIDs.size()*4/3+1);
+		Map<String, Node> provenance = new HashMap<String, Node>();
+		for (Dataset ds : datasets)
+		{
+			if (idAttribute == null) idAttribute = ds.getData().getIDAttribute();
+			if (idProvAttribute == null) idProvAttribute = ds.getProvenance().getIDAttribute();
+			for (Entry<String, Node> prv : ds.getProvenance().getEntrySet()) provenance.put(prv.getKey(), prv.getValue());
+			String prv = ds.getProvenanceID();
+			for (Entry<String, Node> entry : ds.getData().getEntrySet())
+			{
+				if (!clusteredIDs.contains(entry.getKey())) continue;
+				if (objects.put(entry.getKey(), entry.getValue()) != null)
+				{
+					// should not be the case!
+					System.out.println("Error: object with ID "+entry.getKey()+" is found in multiple datasets");
+				}
+				provenanceIDs.put(entry.getKey(), prv);
+			}
+		}
+		boolean clustersOK = true;
+		for (String id : clusteredIDs)
+		{
+			if (!objects.containsKey(id))
+			{
+				System.out.println("Error: element "+id+" from the duplicate clusters is not found in your data");
+				clustersOK = false;
+			}
+		}
+		if (!clustersOK)
+		{
+			System.out.println("Error: merged dataset could not be created correctly");
+			return false;
+		}
+		Node root = XMLUtils.createDocument(rootElementName);
+		final NodeMap unionProvenance = new NodeMap();
+		unionProvenance.setIDAttribute(idProvAttribute);
+		for (Entry<String, Node> prv : provenance.entrySet())
+		{
+			unionProvenance.addNode(prv.getKey(), root.appendChild(root.getOwnerDocument().adoptNode(prv.getValue().cloneNode(true))));
+		}
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "profile").stop(start);
+		
+		// stages
+		start = Metrics.Timer.start();
+		final XMLStreamOutput unionOut = OutOfCoreFusion.startOutput(unionFn, root, unionProvenance, true);
+		final XMLStreamOutput fusedOut = OutOfCoreFusion.startOutput(fnOutput, root, unionProvenance, false);
+		final FutureTask<GoldIndex> gold = new FutureTask<GoldIndex>(new Callable<GoldIndex>()
+		{
+			@Override
+			public GoldIndex call() 
+			{
+				long start = Metrics.Timer.start();
+				GoldIndex index = (fnGold == null) ? null : GoldIndex.load(fnGold, idDataPath, du.getNonListAttributes(), dictionary);
+				Metrics.timer(DataFusion.PHASE_METRIC, "phase", "gold").stop(start);
+				return index;
+			}
+		});
+		final List<Set<String>> clusters = new ArrayList<Set<String>>(dupl.getClusters().values());
+		final String rootName = rootElementName;
+		final String idAttr = idAttribute;
+		final boolean writeUnion = unionFn != null;
+		BlockingQueue<Chunk> merged = new ArrayBlockingQueue<Chunk>(queueCapacity);
+		BlockingQueue<Chunk> resolved = new ArrayBlockingQueue<Chunk>(queueCapacity);
+		BlockingQueue<Chunk> written = new ArrayBlockingQueue<Chunk>(queueCapacity);
+		final Evaluator evaluator = new Evaluator();
+		evaluator.setParallelism(parallelism);
+		evaluator.setBatchMode(batchMode);
+		
+		addStage("gold", gold);
+		addStage("union", new Stage("union", null, merged)
+		{
+			@Override
+			Chunk produce(int index) throws XMLStreamException
+			{
+				int first = index*chunkSize;
+				if (first >= clusters.size()) return null;
+				Node chunkRoot = XMLUtils.createDocument(rootName);
+				Chunk chunk = new Chunk(idAttr);
+				XMLStreamOutput.FragmentWriter writer = writeUnion ? new XMLStreamOutput.FragmentWriter() : null;
+				for (Set<String> clusterIDs : clusters.subList(first, Math.min(first+chunkSize, clusters.size())))
+				{
+					Node node = du.appendCluster(chunkRoot, clusterIDs, objects, provenanceIDs, elementName);
+					chunk.nodes.addNode(chunk.nodes.getCompositeID(clusterIDs), node);
+					FusionStatistics.Cluster cluster = new FusionStatistics.Cluster(clusterIDs.size());
+					cluster.addUnion(node, idAttr, du.getAllAttributes(), du.getNonListAttributes());
+					chunk.statistics.add(cluster);
+					if (writeUnion) chunk.merged.add(writer.toBytes(node));
+				}
+				return chunk;
+			}
+		});
+		addStage("resolve", new Stage("resolution", merged, resolved)
+		{
+			@Override
+			void process(Chunk chunk)
+			{
+				evaluator.resolve(rf, new Dataset(chunk.nodes, unionProvenance));
+			}
+		});
+		addStage("write", new Stage("fused_output", resolved, written)
+		{
+			@Override
+			void process(Chunk chunk) throws IOException, XMLStreamException
+			{
+				if (unionOut != null) 
+				{
+					for (byte[] fragment : chunk.merged) unionOut.writeFragment(fragment);
+				}
+				chunk.merged.clear();
+				if (fusedOut != null) 
+				{
+					for (Entry<String, Node> entry : chunk.nodes.getEntrySet()) fusedOut.writeNode(entry.getValue());
+				}
+			}
+		});
+		addStage("evaluate", new Stage("evaluation", written, null)
+		{
+			GoldIndex index = null;
+			
+			@Override
+			void process(Chunk chunk) throws InterruptedException, ExecutionException
+			{
+				if (index == null && fnGold != null) index = gold.get();
+				int i = 0;
+				for (Entry<String, Node> entry : chunk.nodes.getEntrySet())
+				{
+					FusionStatistics.Cluster cluster = chunk.statistics.get(i++);
+					if (index != null && index.contains(entry.getKey())) 
+						cluster.addEvaluation(entry.getValue(), index, entry.getKey(), du.getNonListAttributes(), idAttr);
+					statistics.add(cluster);
+				}
+			}
+		});
+		startStages();
+		if (!join())
+		{
+			System.out.println("ERROR: pipelined fusion failed in stage " + failedStage + ": " + failure);
+			failure.printStackTrace();
+			// (the output of an interrupted stage may be closed already)
+			closeQuietly(unionOut);
+			closeQuietly(fusedOut);
+			return false;
+		}
+		OutOfCoreFusion.endOutput(unionOut);
+		OutOfCoreFusion.endOutput(fusedOut);
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "pipeline").stop(start);
+		
+		// report
+		start = Metrics.Timer.start();
+		PrintStream out = (fnFusionReport == null) ? System.out : new PrintStream(new FileOutputStream(fnFusionReport));
+		statistics.printUnionReport(out, du.getAllAttributes(), du.getNonListAttributes());
+		statistics.printFusionReport(out, du.getAllAttributes(), du.getNonListAttributes(), idAttribute);
+		if (fnFusionReport != null) out.close();
+		System.out.println("Number of entities that were evaluated with respect to gold standard is " + statistics.getEvaluatedCount() + 
+				".\nIf you think it should be higher - check IDs in your gold standard!\n");
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "report").stop(start);
+		return true;
+	}
+	
+	// Create the thread of a stage (started with the other stages by startStages())
+	private synchronized void addStage(String name, final Runnable stage)
+	{
+		Thread thread = newThread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try 
+				{
+					stage.run();
+				} 
+				catch (Throwable e) 
+				{
+					fail(Thread.currentThread().getName(), e);
+				}
+			}
+		}, "fusion-" + name);
+		threads.add(thread);
+	}
+	
+	// Start all stages at once: fail() (holding the same lock) interrupts either none or all of them
+	private synchronized void startStages()
+	{
+		for (Thread thread : threads) thread.start();
+	}
+	
+	// Stop the pipeline after a failure: the first failure is kept, all stages are interrupted (they may wait on a queue)
+	private synchronized void fail(String stage, Throwable e)
+	{
+		if (failure != null) return;
+		failure = e;
+		failedStage = stage;
+		for (Thread thread : threads) thread.interrupt();
+	}
+	
+	// Wait for all stages; returns false if a stage failed
+	private boolean join()
+	{
+		for (Thread thread : threads)
+		{
+			try 
+			{
+				thread.join();
+			} 
+			catch (InterruptedException e) 
+			{
+				fail("main", e);
+				Thread.currentThread().interrupt();
+			}
+		}
+		return failure == null;
+	}
+	
+	private static void closeQuietly(XMLStreamOutput out)
+	{
+		if (out == null) return;
+		try 
+		{
+			out.close();
+		} 
+		catch (IOException | XMLStreamException e) 
+		{
+			// (already reported the failure)
+		}
+	}
+	
+	// A thread for task: a virtual thread if the JVM has them, a platform thread otherwise
+	static Thread newThread(Runnable task, String name)
+	{
+		if (virtualThreads != null)
+		{
+			try 
+			{
+				Object builder = virtualThreads[1].invoke(virtualThreads[0].invoke(null), name);
+				return (Thread) virtualThreads[2].invoke(builder, task);
+			} 
+			catch (ReflectiveOperationException e) 
+			{
+				// (use a platform thread)
+			}
+		}
+		return new Thread(task, name);
+	}
+	
+	private static Method[] lookupVirtualThreads()
+	{
+		try 
+		{
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Method[] methods = {Thread.class.getMethod("ofVirtual"), builder.getMethod("name", String.class), builder.getMethod("unstarted", Runnable.class)};
+			// (a preview feature in Java 19 and 20, not available unless enabled)
+			methods[0].invoke(null);
+			return methods;
+		} 
+		catch (ReflectiveOperationException | RuntimeException e) 
+		{
+			return null;
+		}
+	}
+	
+	
+	// Clusters handed from stage to stage: their merged (later fused) nodes in a document of their own, 
+	// the serialized merged nodes and the counts of the clusters
+	private static class Chunk
+	{
+		final NodeMap nodes = new NodeMap();
+		final List<byte[]> merged = new ArrayList<byte[]>();
+		final List<FusionStatistics.Cluster> statistics = new ArrayList<FusionStatistics.Cluster>();
+		
+		Chunk(String idAttribute)
+		{
+			nodes.setIDAttribute(idAttribute);
+		}
+	}
+	
+	// A stage: produces chunks (first stage, in == null) or takes them from in until END, and passes them on to out (if not null);
+	// the time spent on the chunks is recorded as phase 
+	private abstract class Stage implements Runnable
+	{
+		private final String phase;
+		private final BlockingQueue<Chunk> in;
+		private final BlockingQueue<Chunk> out;
+		
+		Stage(String phase, BlockingQueue<Chunk> in, BlockingQueue<Chunk> out)
+		{
+			this.phase = phase;
+			this.in = in;
+			this.out = out;
+		}
+		
+		// The chunk with the given index (0,1,2,...), null after the last one (for the first stage)
+		Chunk produce(int index) throws Exception
+		{
+			return null;
+		}
+		
+		void process(Chunk chunk) throws Exception
+		{
+		}
+		
+		@Override
+		public void run()
+		{
+			long nanos = 0;
+			try 
+			{
+				for (int index = 0; ; index++)
+				{
+					// (another stage failed)
+					if (failure != null) return;
+					Chunk chunk = (in == null) ? null : in.take();
+					if (chunk == END) break;
+					long t = System.nanoTime();
+					if (in == null) chunk = produce(index);
+					else process(chunk);
+					nanos += System.nanoTime()-t;
+					if (chunk == null) break;
+					if (failure != null) return;
+					if (out != null) out.put(chunk);
+				}
+				if (failure == null && out != null) out.put(END);
+			} 
+			catch (InterruptedException e) 
+			{
+				// (stopped after a failure)
+				Thread.currentThread().interrupt();
+			}
+			catch (Exception e) 
+			{
+				fail(Thread.currentThread().getName(), e);
+			}
+			finally
+			{
+				Metrics.timer(DataFusion.PHASE_METRIC, "phase", phase).record(nanos);
+			}
+		}
+	}
+}
@@ -0,0 +1,565 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uma.wdi.fusion;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.w3c.dom.Node;
+
+import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.input.Duplicates;
+import uma.wdi.fusion.resolution.AbstractResolutionFunction;
+import uma.wdi.fusion.utils.Metrics;
+import uma.wdi.fusion.utils.NodeMap;
+import uma.wdi.fusion.utils.ProvenanceRegistry;
+import uma.wdi.fusion.utils.ValueDictionary;
+import uma.wdi.fusion.utils.XMLStreamLoader;
+import uma.wdi.fusion.utils.XMLStreamOutput;
+import uma.wdi.fusion.utils.XMLUtils;
+
+/* Sharded union and fusion: the clusters are hash-partitioned (by composite ID) into shards, and each shard is merged, 
+ * resolved and evaluated by a worker process of its own (a JVM started with the class path of this one), 
+ * so that no process holds more than one shard of the data
+ * 
+ * A worker reads all correspondence files, but keeps only the objects of its shard while loading the input datasets: 
+ * the objects of its clusters, and the objects without a cluster whose own ID falls into the shard (they only count for the report)
+ * 
+ * A run (files in workDir: job.ser, and per shard shard-N/ with the worker's outputs):
+ * (1) the job (files, paths, resolution functions, gold standard) is written to workDir, the workers are started
+ * (2) each worker loads its part of the datasets and sends the attribute paths and list nodes found in it; the union of those
+ *     is sent back, so that all shards create their merged nodes with the attributes of the whole data (as DataUnion does)
+ * (3) each worker merges, resolves and evaluates its clusters and writes the merged and fused nodes (as serialized fragments)
+ *     and the counts of its part of the report (see FusionStatistics)
+ * (4) the counts are added up, so that the report is the same as the one of a single process, and the merged and fused outputs
+ *     are concatenated: the provenance elements, then the nodes of shard 0, 1, ..., each in the order of Duplicates
+ * Messages between the processes are lines of tab-separated fields on the standard input and output of a worker;
+ * the worker prints everything else into its standard error, which is that of this process.
+ * Id paths must be simple enough for the streaming loader (see XMLStreamLoader), resolution functions serializable.
+ * 
+ *  @author Volha
+ * */
+public class ShardedFusion 
+{
+	private static final String JOB = "job.ser";
+	private static final String PROVENANCE = "provenance.part";
+	private static final String MERGED = "merged.part";
+	private static final String FUSED = "fused.part";
+	private static final String STATISTICS = "statistics.txt";
+	private static final String METRICS = "metrics.json";
+	private static final int COPY_BUFFER = 1 << 20;
+	
+	private final File workDir;
+	private final int shards;
+	private int parallelism = 1;
+	private boolean batchMode = false;
+	private Set<String> internedAttributes = new HashSet<String>();
+	private List<String> workerOptions = new ArrayList<String>();
+	
+	public ShardedFusion(String workDir, int shards)
+	{
+		this.workDir = new File(workDir);
+		this.shards = Math.max(1, shards);
+	}
+	
+	// Number of threads used for conflict resolution in each worker (see Evaluator.setParallelism)
+	public void setParallelism(int parallelism)
+	{
+		this.parallelism = parallelism;
+	}
+	
+	// Resolve pair-based functions column by column (see Evaluator.setBatchMode)
+	public void setBatchMode(boolean batchMode)
+	{
+		this.batchMode = batchMode;
+	}
+	
+	// Attributes whose values are interned, in a new ValueDictionary per worker (see DataFusion.setInternedAttributes)
+	public void setInternedAttributes(Set<String> attributes)
+	{
+		internedAttributes = new HashSet<String>(attributes);
+	}
+	
+	// Options of the worker JVMs (e.g. "-Xmx8g")
+	public void setWorkerOptions(List<String> options)
+	{
+		workerOptions = new ArrayList<String>(options);
+	}
+	
+	/* Create the merged dataset, fuse it and evaluate it against the gold standard (as DataFusion.runDataUnion and runDataFusion),
+	 * one shard per worker process
+	 * unionFn, fnOutput, fnFusionReport : merged dataset, fused dataset and report (unionFn and fnOutput are not written if null,
+	 * the report is printed into System.out if fnFusionReport is null); fnGold can be null
+	 */
+	public boolean run(String rootElementName, String idDataPath, String idProvPath, 
+			Set<String> filesDuplicates, Set<String> filesData, Map<String, AbstractResolutionFunction> rf, 
+			String fnGold, String unionFn, String fnOutput, String fnFusionReport)
+	{
+		try 
+		{
+			return runShards(rootElementName, idDataPath, idProvPath, filesDuplicates, filesData, rf, fnGold, unionFn, fnOutput, fnFusionReport);
+		} 
+		catch (IOException | XMLStreamException e) 
+		{
+			System.out.println("ERROR: sharded fusion in " + workDir + " failed: " + e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	private boolean runShards(String rootElementName, String idDataPath, String idProvPath, 
+			Set<String> filesDuplicates, Set<String> filesData, Map<String, AbstractResolutionFunction> rf, 
+			String fnGold, String unionFn, String fnOutput, String fnFusionReport) throws IOException, XMLStreamException
+	{
+		if (!XMLStreamLoader.isStreamable(idDataPath) || !XMLStreamLoader.isStreamable(idProvPath))
+		{
+			System.out.println("ERROR: id paths " + idDataPath + ", " + idProvPath + " cannot be used to load parts of the datasets");
+			return false;
+		}
+		if (!workDir.isDirectory() && !workDir.mkdirs()) throw new IOException("cannot create " + workDir);
+		
+		// 1: job, workers
+		long start = Metrics.Timer.start();
+		Job job = new Job(shards, rootElementName, idDataPath, idProvPath, filesDuplicates, filesData, rf, fnGold, unionFn != null, parallelism, batchMode, internedAttributes);
+		try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(new File(workDir, JOB))))
+		{
+			out.writeObject(job);
+		}
+		List<Worker> workers = new ArrayList<Worker>();
+		DataUnion du = new DataUnion();
+		String idAttribute = null;
+		try
+		{
+			for (int shard = 0; shard < shards; shard++) workers.add(startWorker(shard));
+			
+			// 2: attributes of the whole data, from the parts loaded by the workers
+			String elementName = null;
+			Set<String> densityPaths = new HashSet<String>();
+			Set<String> listNodes = new HashSet<String>();
+			for (Worker worker : workers)
+			{
+				String[] profile = worker.receive("profile");
+				if (profile == null) return false;
+				if (elementName == null && !profile[1].isEmpty())
+				{
+					elementName = profile[1];
+					idAttribute = profile[2];
+				}
+				densityPaths.addAll(FusionStatistics.parseSet(profile[3]));
+				listNodes.addAll(FusionStatistics.parseSet(profile[4]));
+			}
+			if (elementName == null)
+			{
+				System.out.println("ERROR: no objects found in the input datasets");
+				return false;
+			}
+			for (Worker worker : workers) 
+				worker.send("attributes\t" + elementName + "\t" + idAttribute + "\t" + FusionStatistics.join(densityPaths) + "\t" + FusionStatistics.join(listNodes));
+			du.addAttributes(densityPaths, listNodes);
+			du.filterListNodes();
+			
+			// 3: wait for the shards
+			for (Worker worker : workers)
+			{
+				if (worker.receive("done") == null) return false;
+			}
+			for (Worker worker : workers)
+			{
+				if (!worker.exited()) return false;
+			}
+		}
+		finally
+		{
+			for (Worker worker : workers) worker.process.destroy();
+		}
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "shards").stop(start);
+		
+		// 4: outputs and report
+		start = Metrics.Timer.start();
+		Node root = XMLUtils.createDocument(rootElementName);
+		if (unionFn != null) writeOutput(unionFn, root, MERGED, true);
+		if (fnOutput != null) writeOutput(fnOutput, root, FUSED, false);
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "fused_output").stop(start);
+		
+		start = Metrics.Timer.start();
+		FusionStatistics statistics = new FusionStatistics();
+		for (int shard = 0; shard < shards; shard++)
+		{
+			try (BufferedReader in = Files.newBufferedReader(new File(shardDir(workDir, shard), STATISTICS).toPath(), StandardCharsets.UTF_8))
+			{
+				statistics.merge(FusionStatistics.read(in));
+			}
+		}
+		PrintStream out = (fnFusionReport == null) ? System.out : new PrintStream(new FileOutputStream(fnFusionReport));
+		statistics.printUnionReport(out, du.getAllAttributes(), du.getNonListAttributes());
+		statistics.printFusionReport(out, du.getAllAttributes(), du.getNonListAttributes(), idAttribute);
+		if (fnFusionReport != null) out.close();
+		System.out.println("Number of entities that were evaluated with respect to gold standard is " + statistics.getEvaluatedCount() + 
+				".\nIf you think it should be higher - check IDs in your gold standard!\n");
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "report").stop(start);
+		
+		// the nodes are in the outputs now
+		for (int shard = 0; shard < shards; shard++)
+		{
+			for (String name : new String[] {PROVENANCE, MERGED, FUSED}) Files.deleteIfExists(new File(shardDir(workDir, shard), name).toPath());
+		}
+		return true;
+	}
+	
+	// Start the worker process of a shard
+	private Worker startWorker(int shard) throws IOException
+	{
+		File dir = shardDir(workDir, shard);
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.addAll(workerOptions);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ShardedFusion.class.getName());
+		command.add(workDir.getPath());
+		command.add(String.valueOf(shard));
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		return new Worker(shard, builder.start());
+	}
+	
+	// Write a merged (union) or fused document: root, provenance elements (from shard 0) and the nodes of all shards
+	private void writeOutput(String fn, Node root, String part, boolean union) throws IOException, XMLStreamException
+	{
+		XMLStreamOutput out = new XMLStreamOutput(fn);
+		try
+		{
+			if (union) out.startElement(root);
+			else out.startDocument(root);
+			copy(new File(shardDir(workDir, 0), PROVENANCE), out);
+			for (int shard = 0; shard < shards; shard++) copy(new File(shardDir(workDir, shard), part), out);
+			out.endDocument();
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	// Copy a file of serialized fragments to the output
+	private static void copy(File file, XMLStreamOutput out) throws IOException, XMLStreamException
+	{
+		byte[] buffer = new byte[COPY_BUFFER];
+		try (InputStream in = new FileInputStream(file))
+		{
+			int n;
+			while ((n = in.read(buffer)) > 0) out.writeFragment(buffer, 0, n);
+		}
+	}
+	
+	private static File shardDir(File workDir, int shard)
+	{
+		return new File(workDir, "shard-" + shard);
+	}
+	
+	// Shard of a cluster (by its composite ID) or of an object without a cluster (by its ID)
+	// (String.hashCode() is the same in all processes)
+	static int shardOf(String key, int shards)
+	{
+		return (key.hashCode() & Integer.MAX_VALUE) % shards;
+	}
+	
+	
+	// Worker process: ShardedFusion workDir shard
+	// (the standard output is used for the messages to the coordinator, everything else is printed into the standard error)
+	public static void main(String[] args)
+	{
+		boolean ok = false;
+		PrintStream channel = System.out;
+		try 
+		{
+			channel = new PrintStream(System.out, false, "UTF-8");
+			System.setOut(System.err);
+			BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+			ok = runWorker(new File(args[0]), Integer.parseInt(args[1]), in, channel);
+		} 
+		catch (IOException | XMLStreamException | ClassNotFoundException | RuntimeException e) 
+		{
+			e.printStackTrace();
+		}
+		if (!ok) channel.println("failed");
+		channel.flush();
+		System.exit(ok ? 0 : 1);
+	}
+	
+	// Load, merge, resolve and evaluate one shard (see the class comment)
+	private static boolean runWorker(File workDir, final int shard, BufferedReader in, PrintStream channel) 
+			throws IOException, XMLStreamException, ClassNotFoundException
+	{
+		Job job;
+		try (ObjectInputStream jobIn = new ObjectInputStream(new FileInputStream(new File(workDir, JOB))))
+		{
+			job = (Job) jobIn.readObject();
+		}
+		File dir = shardDir(workDir, shard);
+		final int shards = job.shards;
+		ValueDictionary dictionary = new ValueDictionary(job.internedAttributes);
+		ProvenanceRegistry.reset();
+		
+		// 1: clusters of the shard, in the order of Duplicates
+		long start = Metrics.Timer.start();
+		Duplicates dupl = new Duplicates();
+		if (!dupl.read(job.filesDuplicates)) return false;
+		NodeMap keys = new NodeMap();
+		final Map<String, Integer> clusterOf = dupl.getIDtoClusterMap();
+		final boolean[] inShard = new boolean[dupl.size()];
+		List<Set<String>> clusters = new ArrayList<Set<String>>();
+		List<String> clusterKeys = new ArrayList<String>();
+		for (Entry<Integer, Set<String>> cluster : dupl.getClusters().entrySet())
+		{
+			String key = keys.getCompositeID(cluster.getValue());
+			if (shardOf(key, shards) != shard) continue;
+			inShard[cluster.getKey()] = true;
+			clusters.add(cluster.getValue());
+			clusterKeys.add(key);
+		}
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "duplicates").stop(start);
+		
+		// 2: objects of the shard, attributes and counts of the input datasets
+		start = Metrics.Timer.start();
+		XMLStreamLoader.IDFilter filter = new XMLStreamLoader.IDFilter()
+		{
+			@Override
+			public boolean accept(String id)
+			{
+				if (id == null) return false;
+				Integer cluster = clusterOf.get(id);
+				return (cluster == null) ? shardOf(id, shards) == shard : inShard[cluster];
+			}
+		};
+		FusionStatistics statistics = new FusionStatistics();
+		List<Dataset> datasets = new ArrayList<Dataset>();
+		Set<String> densityPaths = new HashSet<String>();
+		Set<String> listNodes = new HashSet<String>();
+		String elementName = "";
+		String idAttribute = "";
+		for (String fn : new TreeSet<String>(job.filesData))
+		{
+			Dataset ds = new Dataset();
+			ds.setValueDictionary(dictionary);
+			if (!ds.loadFromFile(fn, job.idDataPath, job.idProvPath, true, filter)) return false;
+			if (ds.getProvenanceID() == null) return false;
+			densityPaths.addAll(ds.getDatasetDensityCounts().keySet());
+			listNodes.addAll(ds.getListNodes().keySet());
+			statistics.add(FusionStatistics.Source.of(ds));
+			if (elementName.isEmpty() && !ds.getData().getKeySet().isEmpty())
+			{
+				elementName = ds.getDataElementName();
+				idAttribute = ds.getData().getIDAttribute();
+			}
+			datasets.add(ds);
+		}
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "load").stop(start);
+		
+		// 3: attributes of the whole data
+		channel.println("profile\t" + elementName + "\t" + idAttribute + "\t" + FusionStatistics.join(densityPaths) + "\t" + FusionStatistics.join(listNodes));
+		channel.flush();
+		String line = in.readLine();
+		if (line == null || !line.startsWith("attributes\t")) return false;
+		String[] f = line.split("\t", -1);
+		elementName = f[1];
+		idAttribute = f[2];
+		DataUnion du = new DataUnion();
+		du.addAttributes(FusionStatistics.parseSet(f[3]), FusionStatistics.parseSet(f[4]));
+		du.filterListNodes();
+		
+		// 4: merge
+		start = Metrics.Timer.start();
+		if (du.createUnion(datasets, clusters, elementName, job.rootElementName) == null)
+		{
+			System.out.println("Error: merged dataset could not be created correctly");
+			return false;
+		}
+		datasets = null; // (the merged nodes are copies)
+		Dataset unionDs = du.getUnionDataset();
+		NodeMap data = unionDs.getData();
+		XMLStreamOutput.FragmentWriter writer = new XMLStreamOutput.FragmentWriter();
+		List<FusionStatistics.Cluster> clusterStatistics = new ArrayList<FusionStatistics.Cluster>(clusters.size());
+		try (OutputStream merged = job.writeUnion ? newPart(dir, MERGED) : null)
+		{
+			for (int c = 0; c < clusters.size(); c++)
+			{
+				Node node = data.getNode(clusterKeys.get(c));
+				FusionStatistics.Cluster cluster = new FusionStatistics.Cluster(clusters.get(c).size());
+				cluster.addUnion(node, idAttribute, du.getAllAttributes(), du.getNonListAttributes());
+				clusterStatistics.add(cluster);
+				if (merged != null) merged.write(writer.toBytes(node));
+			}
+		}
+		if (shard == 0)
+		{
+			try (OutputStream provenance = newPart(dir, PROVENANCE))
+			{
+				for (Entry<String, Node> entry : unionDs.getProvenance().getEntrySet()) provenance.write(writer.toBytes(entry.getValue()));
+			}
+		}
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "union").stop(start);
+		
+		// 5: resolve, evaluate
+		start = Metrics.Timer.start();
+		Evaluator evaluator = new Evaluator();
+		evaluator.setParallelism(job.parallelism);
+		evaluator.setBatchMode(job.batchMode);
+		evaluator.resolve(job.rf, unionDs);
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "resolution").stop(start);
+		
+		start = Metrics.Timer.start();
+		GoldIndex gold = (job.fnGold == null) ? null : GoldIndex.load(job.fnGold, job.idDataPath, du.getNonListAttributes(), dictionary);
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "gold").stop(start);
+		start = Metrics.Timer.start();
+		try (OutputStream fused = newPart(dir, FUSED))
+		{
+			for (int c = 0; c < clusters.size(); c++)
+			{
+				String key = clusterKeys.get(c);
+				Node node = data.getNode(key);
+				FusionStatistics.Cluster cluster = clusterStatistics.get(c);
+				if (gold != null && gold.contains(key)) cluster.addEvaluation(node, gold, key, du.getNonListAttributes(), idAttribute);
+				statistics.add(cluster);
+				fused.write(writer.toBytes(node));
+			}
+		}
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(new File(dir, STATISTICS).toPath(), StandardCharsets.UTF_8)))
+		{
+			statistics.write(out);
+		}
+		Metrics.timer(DataFusion.PHASE_METRIC, "phase", "evaluation").stop(start);
+		Metrics.writeJson(new File(dir, METRICS).getPath());
+		
+		channel.println("done");
+		return true;
+	}
+	
+	private static OutputStream newPart(File dir, String name) throws IOException
+	{
+		return new BufferedOutputStream(new FileOutputStream(new File(dir, name)), COPY_BUFFER);
+	}
+	
+	
+	// Everything a worker needs to know about the run (written by the coordinator, read by the workers)
+	private static class Job implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+		
+		final int shards;
+		final String rootElementName;
+		final String idDataPath;
+		final String idProvPath;
+		final HashSet<String> filesDuplicates;
+		final HashSet<String> filesData;
+		final HashMap<String, AbstractResolutionFunction> rf;
+		final String fnGold;
+		final boolean writeUnion;
+		final int parallelism;
+		final boolean batchMode;
+		final HashSet<String> internedAttributes;
+		
+		Job(int shards, String rootElementName, String idDataPath, String idProvPath, Set<String> filesDuplicates, Set<String> filesData, 
+				Map<String, AbstractResolutionFunction> rf, String fnGold, boolean writeUnion, int parallelism, boolean batchMode, 
+				Set<String> internedAttributes)
+		{
+			this.shards = shards;
+			this.rootElementName = rootElementName;
+			this.idDataPath = idDataPath;
+			this.idProvPath = idProvPath;
+			this.filesDuplicates = new HashSet<String>(filesDuplicates);
+			this.filesData = new HashSet<String>(filesData);
+			this.rf = new HashMap<String, AbstractResolutionFunction>(rf);
+			this.fnGold = fnGold;
+			this.writeUnion = writeUnion;
+			this.parallelism = parallelism;
+			this.batchMode = batchMode;
+			this.internedAttributes = new HashSet<String>(internedAttributes);
+		}
+	}
+	
+	// A running worker process, with the channel to it
+	private static class Worker
+	{
+		final int shard;
+		final Process process;
+		final BufferedReader in;
+		final PrintStream out;
+		
+		Worker(int shard, Process process) throws IOException
+		{
+			this.shard = shard;
+			this.process = process;
+			in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+			out = new PrintStream(process.getOutputStream(), true, "UTF-8");
+		}
+		
+		// Next message of the worker split into fields, if it is of the given type; null (with an error message) otherwise
+		String[] receive(String type) throws IOException
+		{
+			String line = in.readLine();
+			if (line != null && (line.equals(type) || line.startsWith(type + "\t"))) return line.split("\t", -1);
+			System.out.println("ERROR: worker of shard " + shard + " failed");
+			return null;
+		}
+		
+		void send(String message)
+		{
+			out.println(message);
+			out.close();
+		}
+		
+		// Wait for the worker to end; false (with an error message) if it did not end normally
+		boolean exited()
+		{
+			try 
+			{
+				if (process.waitFor() == 0) return true;
+			} 
+			catch (InterruptedException e) 
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			System.out.println("ERROR: worker of shard " + shard + " failed");
+			return false;
+		}
+	}
+}
@@ -0,0 +1,355 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uma.wdi.fusion.input;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Reads correspondence files (lines "id1,id2", see Duplicates) into pairs of ID ordinals
+ * Each file is memory-mapped and split into line-aligned chunks, which are parsed in a thread pool (chunks of several files at once).
+ * Within a chunk, IDs are interned by their bytes, so that one String is created per distinct ID and chunk instead of per line.
+ * Chunks are handed over in file and line order, with their IDs in the order they first occur, 
+ * so that the result is the same as reading the files line by line.
+ * Lines are parsed as BufferedReader.readLine() and String.split(",") would do: empty lines are skipped, 
+ * "a,b" (followed by any number of commas) is a pair, anything else is an error.
+ * 
+ *  @author Volha
+ * */
+public class CorrespondenceReader 
+{
+	private static final int CHUNK_SIZE = 16 << 20;
+	// bytes mapped beyond the end of a chunk to finish its last line (more are mapped for longer lines)
+	private static final int TAIL = 1 << 16;
+	// (as FileReader)
+	private static final Charset CHARSET = Charset.defaultCharset();
+	
+	private final int threads;
+	
+	public CorrespondenceReader(int threads)
+	{
+		this.threads = Math.max(1, threads);
+	}
+	
+	// Receives the chunks of all files in order
+	public interface Handler
+	{
+		void chunk(Chunk chunk);
+	}
+	
+	/* Read all files (in the order of files), passing their chunks to handler in order (on the calling thread)
+	 * Returns false at the first malformed line or file that cannot be read, with the same error message as reading line by line
+	 */
+	public boolean read(Collection<String> files, Handler handler)
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Deque<Future<Chunk>> inFlight = new ArrayDeque<Future<Chunk>>();
+		try 
+		{
+			for (String fn : files)
+			{
+				Iterator<Callable<Chunk>> chunks = chunks(fn);
+				while (chunks.hasNext())
+				{
+					inFlight.add(pool.submit(chunks.next()));
+					// keep a bounded number of chunks in memory
+					if (inFlight.size() >= 2*threads && !handle(inFlight.poll().get(), handler)) return false;
+				}
+			}
+			while (!inFlight.isEmpty())
+			{
+				if (!handle(inFlight.poll().get(), handler)) return false;
+			}
+			return true;
+		} 
+		catch (InterruptedException e) 
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} 
+		catch (ExecutionException e) 
+		{
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+	
+	private static boolean handle(Chunk chunk, Handler handler)
+	{
+		// pairs before a malformed line are passed on, as when reading line by line
+		if (chunk.ids != null) handler.chunk(chunk);
+		if (chunk.error == null) return true;
+		System.out.println(chunk.error);
+		return false;
+	}
+	
+	// Parsing tasks for the chunks of a file (one task with the error, if the file cannot be read)
+	private static Iterator<Callable<Chunk>> chunks(final String fn)
+	{
+		long size;
+		try (FileChannel channel = FileChannel.open(Paths.get(fn), StandardOpenOption.READ))
+		{
+			size = channel.size();
+		}
+		catch (IOException e)
+		{
+			final Chunk failed = new Chunk(fn);
+			failed.error = notFound(fn);
+			return Arrays.<Callable<Chunk>>asList(new Callable<Chunk>()
+			{
+				@Override
+				public Chunk call()
+				{
+					return failed;
+				}
+			}).iterator();
+		}
+		final long fileSize = size;
+		return new Iterator<Callable<Chunk>>()
+		{
+			long start = 0;
+			
+			@Override
+			public boolean hasNext()
+			{
+				return start < fileSize;
+			}
+			
+			@Override
+			public Callable<Chunk> next()
+			{
+				final long from = start;
+				final long to = Math.min(fileSize, start + CHUNK_SIZE);
+				start = to;
+				return new Callable<Chunk>()
+				{
+					@Override
+					public Chunk call()
+					{
+						return parse(fn, from, to, fileSize);
+					}
+				};
+			}
+			
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	private static String notFound(String fn)
+	{
+		return "ERROR: cvs input file " + fn + " not found";
+	}
+	
+	// Parse the lines of a file that start in [start, end)
+	private static Chunk parse(String fn, long start, long end, long size)
+	{
+		Chunk chunk = new Chunk(fn);
+		try (FileChannel channel = FileChannel.open(Paths.get(fn), StandardOpenOption.READ))
+		{
+			// map from the byte before start, to see whether a line starts at start
+			long from = Math.max(0, start-1);
+			long length = Math.min(size, end + TAIL) - from;
+			while (true)
+			{
+				if (length > Integer.MAX_VALUE) throw new IOException("line too long");
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+				if (chunk.parse(buffer, (int) (start-from), (int) (end-from), from+length == size)) return chunk;
+				// the last line does not end in the mapped region
+				chunk = new Chunk(fn);
+				length = Math.min(size-from, 2*length);
+			}
+		}
+		catch (IOException e)
+		{
+			chunk.error = notFound(fn);
+			return chunk;
+		}
+	}
+	
+	/* Pairs of the lines of a chunk: the IDs of the chunk by chunk ordinal (in the order they first occur), 
+	 * and per line the chunk ordinals of both IDs
+	 */
+	public static class Chunk
+	{
+		private final String fn;
+		private String[] ids = null;
+		private int[] pairs = new int[1024];
+		private int pairCount = 0;
+		// message of the first malformed line (lines after it are not parsed)
+		private String error = null;
+		
+		// interned IDs: open addressing table of ordinals, position, length and hash of the ID bytes by ordinal
+		private int[] table = new int[1024];
+		private int[] starts = new int[256];
+		private int[] lengths = new int[256];
+		private int[] hashes = new int[256];
+		private int idCount = 0;
+		
+		Chunk(String fn)
+		{
+			this.fn = fn;
+			Arrays.fill(table, -1);
+		}
+		
+		// Getters
+		public String getFileName()
+		{
+			return fn;
+		}
+		public String[] getIDs()
+		{
+			return ids;
+		}
+		public int getPairCount()
+		{
+			return pairCount;
+		}
+		public int getFirst(int pair)
+		{
+			return pairs[2*pair];
+		}
+		public int getSecond(int pair)
+		{
+			return pairs[2*pair+1];
+		}
+		
+		// Parse the lines starting in [start, end) of buffer; false if the last of them does not end in buffer (and atEnd is false)
+		boolean parse(MappedByteBuffer buffer, int start, int end, boolean atEnd)
+		{
+			int limit = buffer.limit();
+			int pos = start;
+			// a line starts after a line break
+			if (start > 0) while (pos < limit && !isLineBreak(buffer.get(pos-1))) pos++;
+			while (pos < end && error == null)
+			{
+				int lineEnd = pos;
+				while (lineEnd < limit && !isLineBreak(buffer.get(lineEnd))) lineEnd++;
+				if (lineEnd == limit && !atEnd) return false;
+				if (lineEnd > pos) parseLine(buffer, pos, lineEnd);
+				pos = lineEnd+1;
+			}
+			ids = new String[idCount];
+			byte[] bytes = new byte[64];
+			for (int i = 0; i < idCount; i++)
+			{
+				if (lengths[i] > bytes.length) bytes = new byte[lengths[i]];
+				for (int b = 0; b < lengths[i]; b++) bytes[b] = buffer.get(starts[i]+b);
+				ids[i] = new String(bytes, 0, lengths[i], CHARSET);
+			}
+			table = starts = lengths = hashes = null;
+			return true;
+		}
+		
+		// "a,b" followed by any number of commas (a can be empty)
+		private void parseLine(MappedByteBuffer buffer, int start, int end)
+		{
+			int comma = start;
+			while (comma < end && buffer.get(comma) != ',') comma++;
+			int second = comma+1;
+			int secondEnd = second;
+			while (secondEnd < end && buffer.get(secondEnd) != ',') secondEnd++;
+			boolean ok = comma < end && secondEnd > second;
+			for (int i = secondEnd; i < end && ok; i++) ok = buffer.get(i) == ',';
+			if (!ok)
+			{
+				byte[] line = new byte[end-start];
+				for (int i = start; i < end; i++) line[i-start] = buffer.get(i);
+				error = "ERROR: wrong format of the input cvs file " + fn + " near " + new String(line, CHARSET);
+				return;
+			}
+			if (2*pairCount+2 > pairs.length) pairs = Arrays.copyOf(pairs, 2*pairs.length);
+			pairs[2*pairCount] = intern(buffer, start, comma);
+			pairs[2*pairCount+1] = intern(buffer, second, secondEnd);
+			pairCount++;
+		}
+		
+		// Chunk ordinal of the ID in [start, end) of buffer
+		private int intern(MappedByteBuffer buffer, int start, int end)
+		{
+			int hash = 1;
+			for (int i = start; i < end; i++) hash = 31*hash + buffer.get(i);
+			int mask = table.length-1;
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while (true)
+			{
+				int id = table[slot];
+				if (id < 0) break;
+				if (hashes[id] == hash && equals(buffer, starts[id], lengths[id], start, end-start)) return id;
+				slot = (slot+1) & mask;
+			}
+			if (idCount == starts.length)
+			{
+				starts = Arrays.copyOf(starts, 2*idCount);
+				lengths = Arrays.copyOf(lengths, 2*idCount);
+				hashes = Arrays.copyOf(hashes, 2*idCount);
+			}
+			starts[idCount] = start;
+			lengths[idCount] = end-start;
+			hashes[idCount] = hash;
+			table[slot] = idCount;
+			if (2*(idCount+1) > table.length) rehash();
+			return idCount++;
+		}
+		
+		private void rehash()
+		{
+			table = new int[2*table.length];
+			Arrays.fill(table, -1);
+			int mask = table.length-1;
+			for (int id = 0; id <= idCount; id++)
+			{
+				int slot = (hashes[id] ^ (hashes[id] >>> 16)) & mask;
+				while (table[slot] >= 0) slot = (slot+1) & mask;
+				table[slot] = id;
+			}
+		}
+		
+		private static boolean equals(MappedByteBuffer buffer, int a, int aLength, int b, int bLength)
+		{
+			if (aLength != bLength) return false;
+			for (int i = 0; i < aLength; i++)
+			{
+				if (buffer.get(a+i) != buffer.get(b+i)) return false;
+			}
+			return true;
+		}
+		
+		private static boolean isLineBreak(byte b)
+		{
+			return b == '\n' || b == '\r';
+		}
+	}
+}
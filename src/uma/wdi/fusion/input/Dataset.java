@@ -14,28 +14,33 @@
 
 package uma.wdi.fusion.input;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
 
+import javax.xml.stream.XMLStreamException;
+
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import uma.wdi.fusion.utils.NodeMap;
 import uma.wdi.fusion.utils.Pair;
+import uma.wdi.fusion.utils.ValueDictionary;
+import uma.wdi.fusion.utils.XMLStreamLoader;
 import uma.wdi.fusion.utils.XMLUtils;
 
 /* Stores two node maps, for the data and for the respective provenance
  * Used for both input and merged datasets (with one or multiple provenance elements, respectively)
- * Calculates density and consistency values 
+ * Calculates density and consistency values (density from a DatasetProfile, collected in one pass over the data)
+ * A merged dataset can also be opened from a binary snapshot (see UnionSnapshot)
  * 
  * @author Volha
  * */
 public class Dataset 
 {
-	private NodeMap data = new NodeMap();
+	private volatile NodeMap data = new NodeMap();
 	private NodeMap provenance = new NodeMap();
 	
 	private double datasetDensity = 0.0;
@@ -44,10 +49,31 @@ public class Dataset
 	private Map<String, Double> consistency = new HashMap<String, Double>();
 
 	private Map<String, String> listNodes = new HashMap<String, String>();
+	private ProvenanceIndex provenanceIndex = null;
+	private DatasetProfile profile = null;
+	// snapshot the dataset was opened from, and the root its nodes are appended to when they are read
+	private UnionSnapshot snapshot = null;
+	private Node snapshotRoot = null;
+	// dictionary of the run the loaded values are interned in (see ValueDictionary)
+	private ValueDictionary dictionary = ValueDictionary.NONE;
+
+	public Dataset()
+	{
+	}
+	
+	// Create a dataset from already loaded data and provenance (e.g. the merged dataset built by DataUnion)
+	public Dataset(NodeMap data, NodeMap provenance)
+	{
+		this.data = data;
+		this.provenance = provenance;
+		provenanceIndex = new ProvenanceIndex(provenance);
+	}
 
 	// Getters
+	// (the nodes of a dataset opened from a snapshot are read on first use)
 	public NodeMap getData()
 	{
+		if (data == null) readSnapshotData();
 		return data;
 	}
 	public NodeMap getProvenance()
@@ -70,7 +96,24 @@ public class Dataset
 	{
 		return datasetDensity;
 	}
+	// Provenance metadata (source, date, trust ranks) by provenance ordinal
+	public ProvenanceIndex getProvenanceIndex()
+	{
+		return provenanceIndex;
+	}
+	
+	
+	// Dictionary the values of the dataset were interned in (ValueDictionary.NONE if none)
+	public ValueDictionary getValueDictionary()
+	{
+		return dictionary;
+	}
 	
+	// Intern the values loaded from now on (from file or snapshot) in dictionary, e.g. the dictionary of a run (by default, no values are interned)
+	public void setValueDictionary(ValueDictionary dictionary)
+	{
+		this.dictionary = dictionary;
+	}
 	
 	// Get the provenance element assuming is just one per dataset (=> not applicable to merged (created from DataUnion) dataset)
 	public String getProvenanceID()
@@ -81,23 +124,96 @@ public class Dataset
 
 	// Load dataset from file, given paths for unique IDs for data elements and provenance elements
 	// uniqueProvenance should be true for input datasets and false for merged (created from DataUnion) dataset
+	// Simple id paths (e.g. "//movie/id") are read in one streaming pass, others with xpath over the whole document
 	public boolean loadFromFile(String file, String idDataPath, String idProvPath, boolean uniqueProvenance, boolean listID)
 	{
-		boolean d = data.loadFromFile(file, idDataPath, listID);
-		boolean p = provenance.loadFromFile(file, idProvPath);
+		boolean d, p;
+		if (XMLStreamLoader.isStreamable(idDataPath) && XMLStreamLoader.isStreamable(idProvPath))
+		{
+			d = p = XMLStreamLoader.load(file, data, idDataPath, listID, provenance, idProvPath, null, dictionary);
+		}
+		else
+		{
+			d = data.loadFromFile(file, idDataPath, listID);
+			p = provenance.loadFromFile(file, idProvPath);
+		}
 		
 		if (uniqueProvenance && provenance.getKeySet().size() > 1)
 		{
 			System.out.println("Dataset " + file + " contains more than one provenance element");			
 			return false;
 		}
+		provenanceIndex = new ProvenanceIndex(provenance);
 		
 		return d && p; 
 	}
 	
+	// Load only the objects of a dataset accepted by filter, with all provenance elements (e.g. a shard, see ShardedFusion)
+	// Requires id paths that can be streamed (see XMLStreamLoader)
+	public boolean loadFromFile(String file, String idDataPath, String idProvPath, boolean uniqueProvenance, XMLStreamLoader.IDFilter filter)
+	{
+		if (!XMLStreamLoader.isStreamable(idDataPath) || !XMLStreamLoader.isStreamable(idProvPath))
+		{
+			System.out.println("ERROR: id paths " + idDataPath + ", " + idProvPath + " cannot be used to load a part of dataset " + file);
+			return false;
+		}
+		if (!XMLStreamLoader.load(file, data, idDataPath, false, provenance, idProvPath, filter, dictionary)) return false;
+		if (uniqueProvenance && provenance.getKeySet().size() > 1)
+		{
+			System.out.println("Dataset " + file + " contains more than one provenance element");
+			return false;
+		}
+		provenanceIndex = new ProvenanceIndex(provenance);
+		return true;
+	}
+	
+	// Open a merged dataset from a snapshot written by DataUnion.writeSnapshot()
+	// Only the provenance elements are read now, the data nodes when getData() is called first;
+	// until then the Evaluator reads the clusters from the snapshot chunk by chunk (see getSnapshot())
+	public boolean loadFromSnapshot(String file)
+	{
+		try 
+		{
+			snapshot = UnionSnapshot.open(file);
+			snapshot.setValueDictionary(dictionary);
+			snapshotRoot = XMLUtils.createDocument(snapshot.getRootName());
+			provenance = snapshot.readProvenance(snapshotRoot);
+		} 
+		catch (IOException | XMLStreamException e) 
+		{
+			System.out.println("ERROR: snapshot file " + file + " could not be read (" + e.getMessage() + ")");
+			snapshot = null;
+			return false;
+		}
+		data = null;
+		provenanceIndex = new ProvenanceIndex(provenance);
+		return true;
+	}
+	
+	// The snapshot the dataset was opened from, as long as its data nodes were not read (null otherwise)
+	public UnionSnapshot getSnapshot()
+	{
+		return data == null ? snapshot : null;
+	}
+	
+	private synchronized void readSnapshotData()
+	{
+		if (data != null) return;
+		try 
+		{
+			data = snapshot.readData(snapshotRoot);
+		} 
+		catch (XMLStreamException e) 
+		{
+			System.out.println("ERROR: snapshot file " + snapshot.getFileName() + " could not be read (" + e.getMessage() + ")");
+			data = new NodeMap();
+		}
+	}
+	
 	// Get the name of the data element (e.g. "movie" or "physician")
 	public String getDataElementName()
 	{		
+		if (data == null) return snapshot.getElementName();
 		return data.getEntrySet().iterator().next().getValue().getNodeName();		
 	}
 	
@@ -105,37 +221,39 @@ public class Dataset
 	// Fills density and listNodes maps for further use
 	public Map<String, Integer> getDatasetDensityCounts()
 	{
+		DatasetProfile p = getProfile();
 		density.clear();
-		
-		// get counts:
-		for (Entry<String, Node> entry : data.getEntrySet())
-		{
-			Map<String, Integer> nodeCounts = new HashMap<String, Integer>();
-			countNodes(entry.getValue(), nodeCounts, "");
-			addListInfo(entry.getValue(), "");
-
-			// increase counts that were found in the current node
-			for (String s : nodeCounts.keySet())
-			{
-				if (density.containsKey(s)) density.put(s, density.get(s)+1);
-				else density.put(s,1);
-			}
-		}	
+		density.putAll(p.getDensityCounts());
+		listNodes.putAll(p.getListNodes());
 		// TODO: re-consider
 		// density.remove(data.getIDAttribute());
 		
 		return density;
 	}
+	
+	// Get the profile of the dataset (density counts, list nodes, ...), collected in one pass on first use
+	public synchronized DatasetProfile getProfile()
+	{
+		if (profile == null) profile = new DatasetProfile(getData());
+		return profile;
+	}
+	
+	// Collect the profile of the dataset again (e.g. after its data was changed)
+	public synchronized DatasetProfile updateProfile()
+	{
+		profile = null;
+		return getProfile();
+	}
 
 	// Calculate density counts for a dataset
 	public double getDatasetDensity(double attr_num)
 	{
-		double node_num = data.getEntrySet().size();		
+		double node_num = getData().getEntrySet().size();		
 		double total = node_num*attr_num;
 		if (total == 0.0) return 0.0;
 
 		double count = 0.0;
-		String idStr = data.getIDAttribute();
+		String idStr = getData().getIDAttribute();
 		for (Entry<String, Integer> entry : density.entrySet())
 		{	
 			if (!entry.getKey().equals(idStr) && !entry.getKey().equals(idStr+"/value")) // don't count id
@@ -148,15 +266,17 @@ public class Dataset
 	}
 	
 	// Calculate density (%of non-null values) of an attribute; path within node (i.e. attribute name)
+	// Looked up in the dataset profile; paths with xpath syntax are evaluated on every node
 	public double getAttributetDensity(String path)
 	{
 		// TODO: is the formula below better/the same?
 		// return density.get(path)/data.getEntrySet().size();
+		if (XMLUtils.isSimplePath(path)) return getProfile().getAttributeDensity(path);
 		
 		// non-nulls/all nodes
 		double size = 0.0;
 		double count = 0.0;
-		for (Entry<String, Node> node : data.getEntrySet())
+		for (Entry<String, Node> node : getData().getEntrySet())
 		{
 			boolean nonempty = hasNonEmptyVlaues(node.getValue(),path);
 			if (nonempty) count++;
@@ -167,80 +287,6 @@ public class Dataset
  		return count/size;
 	}	
 	
-	// Count non-null elements
-	// Used for calculating density; recursive
-	private boolean countNodes(Node node, Map<String, Integer> nodeCounts, String prefix)
-	{		
-		NodeList list = node.getChildNodes();
-		for (int i = 0; i < list.getLength(); i++)
-		{
-			String name = list.item(i).getNodeName();
-			if (!prefix.isEmpty()) name = prefix+"/"+name;
-			if (hasElementNodes(list.item(i)))
-			{ 
-				addListInfo(list.item(i), name);
-				countNodes(list.item(i), nodeCounts, name);				
-			}
-			else if (list.item(i).getNodeType()==Node.ELEMENT_NODE)
-			{
-				if (!list.item(i).getTextContent().isEmpty())
-				{
-					// if (!prefix.isEmpty()) name = prefix+"/"+name;
-					nodeCounts.put(name, 1);
-					// NOTE: alternatively to nodeCount, you can count ALL non-null value, not one per node: 
-					// if (density.containsKey(name)) density.put(name, density.get(name)+1);
-					// else density.put(name,1);
-				}
-			}
-		}	
-		return true;
-	}
-	
-	// Check whether a node has child nodes of type ELEMENT_NODE 
-	private boolean hasElementNodes(Node node)
-	{
-		NodeList list = node.getChildNodes();
-		if (list.getLength() == 0) return false;
-		
-		boolean hasElementNodes = false;
-		for (int i = 0; i < list.getLength(); i++)
-		{	
-			if (list.item(i).getNodeType()==Node.ELEMENT_NODE) hasElementNodes = true; 
-		}			
-				
-		return hasElementNodes;
-	}
-	
-	// Check whether an attribute is a list, save it
-	private boolean addListInfo(Node node, String path)
-	{
-		String prefix = path;
-		if (!prefix.isEmpty()) prefix = prefix+"/";
-		
-		NodeList list = node.getChildNodes();
-		Map<String,Integer> names = new HashMap<String,Integer>();
-		int count = 0;
-		for (int i = 0; i < list.getLength(); i++)
-		{
-			if (list.item(i).getNodeType()==Node.ELEMENT_NODE)
-			{
-				count++;
-				String name = list.item(i).getNodeName();
-				if (names.containsKey(name)) names.put(name, names.get(name)+1);
-				else names.put(name, 1);				
-			}
-		}
-		for (String n : names.keySet())
-		{
-			if (names.get(n) > 1) listNodes.put(prefix+n, path);
-		}
-		
-		if (count == 1) return false;
-		if (names.size() == 1) return true;
-		
-		return false;
-	}
-	
 	// Check whether there are non-empty values for path in a node
 	private boolean hasNonEmptyVlaues(Node node, String path)
 	{
@@ -254,7 +300,8 @@ public class Dataset
 	}
 
 	// Get the content of path field of the provenence item
-	public String getProvenanceAttribute(String provID, String path)
+	// (synchronized, as resolution functions may call it from several threads)
+	public synchronized String getProvenanceAttribute(String provID, String path)
 	{
 		Node node = provenance.getNode(provID);
 		Collection<String> dates = XMLUtils.getValue(node, path);
@@ -269,6 +316,7 @@ public class Dataset
 		getDatasetDensityCounts();
 		consistency.clear();
 		
+		NodeMap data = getData();
 		Double numOfNodes = (double) data.getKeySet().size();
 		
 		// go through nodes
@@ -279,22 +327,10 @@ public class Dataset
 			int nodeDim = data.getIDSize(id);
 			for (String attr : attributes)
 			{
-				Collection<String> vals = XMLUtils.getValueUnion(node, attr);
-				Map<String, Integer> valCnt = new HashMap<String, Integer>();
-				for (String s : vals)
-				{
-					if (valCnt.containsKey(s)) valCnt.put(s, valCnt.get(s)+1);
-					else valCnt.put(s,1);
-				}
-				// if consistent, one value, count == number of contributor to a node:				
-				if (valCnt.size() == 1)
+				if (isConsistent(node, attr, nodeDim))
 				{
-					int prvCnt = XMLUtils.getAttrCount(node,attr,XMLUtils.VALUE,XMLUtils.PROV);
-					if (prvCnt == nodeDim)
-					{
-						if (consistency.containsKey(attr)) consistency.put(attr, consistency.get(attr)+1.0);
-						else consistency.put(attr,1.0);
-					}
+					if (consistency.containsKey(attr)) consistency.put(attr, consistency.get(attr)+1.0);
+					else consistency.put(attr,1.0);
 				}
 			}
 		}	
@@ -321,4 +357,19 @@ public class Dataset
 				
 		return consistency;
 	}
+	
+	// Check whether an attribute of a merged node is consistent: one value, provided by all nodeDim contributors of the node
+	public static boolean isConsistent(Node node, String attr, int nodeDim)
+	{
+		Collection<String> vals = XMLUtils.getValueUnion(node, attr);
+		Map<String, Integer> valCnt = new HashMap<String, Integer>();
+		for (String s : vals)
+		{
+			if (valCnt.containsKey(s)) valCnt.put(s, valCnt.get(s)+1);
+			else valCnt.put(s,1);
+		}
+		// if consistent, one value, count == number of contributor to a node:				
+		if (valCnt.size() != 1) return false;
+		return XMLUtils.getAttrCount(node,attr,XMLUtils.VALUE,XMLUtils.PROV) == nodeDim;
+	}
 }
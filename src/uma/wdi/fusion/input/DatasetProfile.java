@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uma.wdi.fusion.input;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.w3c.dom.Node;
+
+import uma.wdi.fusion.utils.NodeMap;
+
+/* Profile of a dataset, collected in a single pass over all its data nodes (or node by node, see add())
+ * Attribute paths are element paths within a data node (e.g. "title" or "director/name"), as in the density counts
+ * 
+ * (1) number of data nodes (entries of the node map)
+ * (2) density counts: per leaf path, the number of data nodes with a non-empty value 
+ * (3) attribute density counts: per path (leaf or not), the number of data nodes with non-empty content under it
+ * (4) value counts: per leaf path, the number of non-empty values over all data nodes
+ * (5) list nodes: paths of elements that repeat under the same parent -> path of the parent
+ * 
+ * @author Volha
+ * */
+public class DatasetProfile 
+{
+	private int nodeCount = 0;
+	private Map<String, Integer> density = new HashMap<String, Integer>();
+	private Map<String, Integer> nonEmpty = new HashMap<String, Integer>();
+	private Map<String, Integer> values = new HashMap<String, Integer>();
+	private Map<String, String> listNodes = new HashMap<String, String>();
+	
+	private Set<String> leafPaths = new HashSet<String>();
+	private Set<String> nonEmptyPaths = new HashSet<String>();
+	
+	public DatasetProfile(NodeMap data)
+	{
+		for (Entry<String, Node> entry : data.getEntrySet()) add(entry.getValue());
+	}
+	
+	// Empty profile, to add data nodes one by one (e.g. while streaming a dataset, see OutOfCoreFusion)
+	public DatasetProfile()
+	{
+	}
+	
+	// Add a data node to the profile
+	public void add(Node node)
+	{
+		nodeCount++;
+		leafPaths.clear();
+		nonEmptyPaths.clear();
+		addListInfo(node, "");
+		walk(node, "", leafPaths, nonEmptyPaths);
+		
+		// increase counts that were found in the current node
+		for (String s : leafPaths) increment(density, s, 1);
+		for (String s : nonEmptyPaths) increment(nonEmpty, s, 1);
+	}
+	
+	// Getters
+	public int getNodeCount()
+	{
+		return nodeCount;
+	}
+	public Map<String, Integer> getDensityCounts()
+	{
+		return density;
+	}
+	public Map<String, String> getListNodes()
+	{
+		return listNodes;
+	}
+	public Map<String, Integer> getNonEmptyCounts()
+	{
+		return nonEmpty;
+	}
+	
+	// Number of data nodes with non-empty content under path
+	public int getNonEmptyCount(String path)
+	{
+		Integer count = nonEmpty.get(path);
+		return count == null ? 0 : count;
+	}
+	
+	// Number of non-empty values of a leaf path over all data nodes
+	public int getValueCount(String path)
+	{
+		Integer count = values.get(path);
+		return count == null ? 0 : count;
+	}
+	
+	// Density (% of non-null values) of an attribute
+	public double getAttributeDensity(String path)
+	{
+		if (nodeCount == 0) return 0.0;
+		return (double) getNonEmptyCount(path)/nodeCount;
+	}
+	
+	// Walk the child elements of node; returns true if the text content of node is not empty
+	// Leaf elements (no child elements) are counted in leafPaths and values, all non-empty elements in nonEmptyPaths
+	private boolean walk(Node node, String prefix, Set<String> leafPaths, Set<String> nonEmptyPaths)
+	{
+		boolean hasText = false;
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+		{
+			switch (child.getNodeType())
+			{
+				case Node.ELEMENT_NODE:
+					String name = child.getNodeName();
+					if (!prefix.isEmpty()) name = prefix+"/"+name;
+					boolean childText;
+					if (hasElementNodes(child))
+					{
+						addListInfo(child, name);
+						childText = walk(child, name, leafPaths, nonEmptyPaths);
+					}
+					else
+					{
+						childText = !child.getTextContent().isEmpty();
+						if (childText)
+						{
+							leafPaths.add(name);
+							increment(values, name, 1);
+						}
+					}
+					if (childText)
+					{
+						nonEmptyPaths.add(name);
+						hasText = true;
+					}
+					break;
+				case Node.TEXT_NODE:
+				case Node.CDATA_SECTION_NODE:
+				case Node.ENTITY_REFERENCE_NODE:
+					if (!child.getTextContent().isEmpty()) hasText = true;
+					break;
+				default:
+					// comments, processing instructions are not part of the text content
+					break;
+			}
+		}
+		return hasText;
+	}
+	
+	// Check whether a node has child nodes of type ELEMENT_NODE 
+	private static boolean hasElementNodes(Node node)
+	{
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+		{
+			if (child.getNodeType() == Node.ELEMENT_NODE) return true;
+		}
+		return false;
+	}
+	
+	// Save child elements of node that occur more than once as list nodes
+	private void addListInfo(Node node, String path)
+	{
+		String prefix = path;
+		if (!prefix.isEmpty()) prefix = prefix+"/";
+		
+		Map<String,Integer> names = new HashMap<String,Integer>();
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+		{
+			if (child.getNodeType() == Node.ELEMENT_NODE) increment(names, child.getNodeName(), 1);
+		}
+		for (Entry<String, Integer> n : names.entrySet())
+		{
+			if (n.getValue() > 1) listNodes.put(prefix+n.getKey(), path);
+		}
+	}
+	
+	private static void increment(Map<String, Integer> counts, String key, int by)
+	{
+		Integer count = counts.get(key);
+		counts.put(key, count == null ? by : count+by);
+	}
+}
@@ -14,16 +14,19 @@
 
 package uma.wdi.fusion.input;
 
-import java.io.*;
 import java.util.*;
 import java.util.Map.Entry;
 
+import uma.wdi.fusion.utils.DisjointSet;
+
 /* Reads lists of comma-separated pairs of IDs from a list of input files
  * Two objects corresponding to an ID pair are considered duplicates 
  * Makes transitive closure and creates
  * (1) a hash map IDtoClusterMap from an ID to the number of the respective cluster
  * (2) a hash map from a cluster (identified by the above number) to a set of IDs
- * Cluster numbers might not be sequential.
+ * Clusters are built with union-find over interned ID ordinals; cluster numbers are sequential (0..size()-1),
+ * in the order the first ID of a cluster was read.
+ * The files are read in parallel chunks (see CorrespondenceReader), with the same result as reading them line by line.
  * 
  * @author Volha
  * */
@@ -31,7 +34,12 @@ public class Duplicates
 {
 	private Map<String, Integer> IDtoClusterMap = new HashMap<String, Integer>();
 	private Map<Integer, Set<String>> clusters = new HashMap<Integer, Set<String>>();
-	private Integer numClusters = 0; // is not the number of clusters, can be greater in case clusters were merged!
+	
+	// IDs interned to dense ordinals, and their sets
+	private Map<String, Integer> ordinals = new HashMap<String, Integer>();
+	private List<String> ids = new ArrayList<String>();
+	private DisjointSet sets = new DisjointSet();
+	private int parallelism = Runtime.getRuntime().availableProcessors();
 
 	// Getters
 	public Map<Integer, Set<String>> getClusters()
@@ -57,81 +65,50 @@ public class Duplicates
 		return result/clusters.size();
 	}
 	
+	// Number of threads reading the correspondence files (see CorrespondenceReader)
+	public void setParallelism(int parallelism)
+	{
+		this.parallelism = Math.max(1, parallelism);
+	}
+	
 	// Read ID pairs, create clusters
 	public boolean read(Set<String> filesDuplicates)
 	{
 		clusters.clear();
 		IDtoClusterMap.clear();
+		ordinals.clear();
+		ids.clear();
+		sets = new DisjointSet();
 		
-		for(String fn : filesDuplicates) 
+		CorrespondenceReader reader = new CorrespondenceReader(parallelism);
+		boolean ok = reader.read(filesDuplicates, new CorrespondenceReader.Handler()
 		{
-			try 
-			{
-				File file = new File(fn);
-				FileReader fileReader = new FileReader(file);
-				BufferedReader bufferedReader = new BufferedReader(fileReader);
-				String line;
-				while ((line = bufferedReader.readLine()) != null)
-				{
-					if (!line.isEmpty())
-					{
-						String[] ids = line.split(",");
-						if (ids.length != 2)
-						{
-							System.out.println("ERROR: wrong format of the input cvs file " + fn + " near " + line);
-							return false;	
-						}						
-						// cases 1 and 2: one of the IDs is in the map
-						addOneNew(ids, 0, 1);
-						addOneNew(ids, 1, 0);
-						// case 3: none of the IDs is in the map 
-						if (!IDtoClusterMap.containsKey(ids[0]) && !IDtoClusterMap.containsKey(ids[1]))							
-						{
-							IDtoClusterMap.put(ids[0],numClusters);
-							IDtoClusterMap.put(ids[1],numClusters);
-							numClusters++;									
-						}
-						// case 4: both IDs are in the map, but clusters are different: replace 2nd cluster number by the 1st
-						if (IDtoClusterMap.containsKey(ids[0]) && IDtoClusterMap.containsKey(ids[1]) && (IDtoClusterMap.get(ids[0]) != IDtoClusterMap.get(ids[1])))
-						{
-							Integer newCl = IDtoClusterMap.get(ids[0]);
-							Integer oldCl = IDtoClusterMap.get(ids[1]);
-							for (String id: IDtoClusterMap.keySet())
-							{
-								if (IDtoClusterMap.get(id) == oldCl) 
-								{
-									IDtoClusterMap.put(id, newCl);
-								}
-							}
-						}
-						
-					}
-				}
-				fileReader.close();
-			} 
-			catch (IOException e) 
+			@Override
+			public void chunk(CorrespondenceReader.Chunk chunk)
 			{
-				// e.printStackTrace();
-				System.out.println("ERROR: cvs input file " + fn + " not found");
-				return false;
-			}			
-		}
+				String[] chunkIDs = chunk.getIDs();
+				int[] chunkOrdinals = new int[chunkIDs.length];
+				for (int i = 0; i < chunkIDs.length; i++) chunkOrdinals[i] = intern(chunkIDs[i]);
+				for (int i = 0; i < chunk.getPairCount(); i++) sets.union(chunkOrdinals[chunk.getFirst(i)], chunkOrdinals[chunk.getSecond(i)]);
+			}
+		});
+		if (!ok) return false;
 		
-		// form {cluster id} -> {set of element ids} map
-		for (Entry<String, Integer> entry : IDtoClusterMap.entrySet())		
+		// form {id} -> {cluster id} and {cluster id} -> {set of element ids} maps in one pass
+		int[] clusterOfRoot = new int[ids.size()];
+		Arrays.fill(clusterOfRoot, -1);
+		for (int i = 0; i < ids.size(); i++)
 		{
-			Integer cl_id = entry.getValue();
-			String id =  entry.getKey();
-			if (clusters.containsKey(cl_id))
-			{				
-				clusters.get(cl_id).add(id);
-			}
-			else
+			int root = sets.find(i);
+			Integer cl_id = clusterOfRoot[root];
+			if (cl_id == -1)
 			{
-				Set<String> ids = new HashSet<String>();
-				ids.add(id);
-				clusters.put(cl_id, ids);
+				cl_id = clusters.size();
+				clusterOfRoot[root] = cl_id;
+				clusters.put(cl_id, new HashSet<String>());
 			}
+			IDtoClusterMap.put(ids.get(i), cl_id);
+			clusters.get(cl_id).add(ids.get(i));
 		}
 		
 		// print clusters:
@@ -151,14 +128,16 @@ public class Duplicates
 		return true;
 	}
 
-	// Add a string to the IDtoClusterMap in case one of the IDs is in and the other is not
-	private void addOneNew(String[] ids, int i, int j)
+	// Get the ordinal of an ID, adding it as a new singleton set if it is seen for the first time
+	private int intern(String id)
 	{
-		if (ids.length != 2) return;
-		if (IDtoClusterMap.containsKey(ids[i]) && !IDtoClusterMap.containsKey(ids[j]))							
+		Integer ordinal = ordinals.get(id);
+		if (ordinal == null)
 		{
-			IDtoClusterMap.put(ids[j], IDtoClusterMap.get(ids[i]));
+			ordinal = sets.add();
+			ordinals.put(id, ordinal);
+			ids.add(id);
 		}
-
+		return ordinal;
 	}
 }
@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uma.wdi.fusion.input;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.w3c.dom.Node;
+
+import uma.wdi.fusion.utils.NodeMap;
+import uma.wdi.fusion.utils.ProvenanceRegistry;
+import uma.wdi.fusion.utils.ProvenanceSet;
+import uma.wdi.fusion.utils.XMLUtils;
+
+/* Provenance metadata of a dataset, read once when the dataset is loaded
+ * Per provenance ordinal (see ProvenanceRegistry), the source name and the date (parsed to epoch millis) are kept in arrays,
+ * so that resolution functions need no xpath and no date parsing per value
+ * 
+ * @author Volha
+ * */
+public class ProvenanceIndex 
+{
+	public static final String SOURCE = "source";
+	public static final String DATE = "date";
+	// NOTE: assumes specific date format (see movie example datasets)
+	public static final String DATE_FORMAT = "d MMM yyyy HH:mm:ss Z";
+	// date value of provenance elements without a (parseable) date
+	public static final long NO_DATE = Long.MIN_VALUE;
+	
+	// indexed by ordinal; ordinals of provenance elements of other datasets are empty (null, NO_DATE)
+	private String[] sources = new String[0];
+	private long[] dates = new long[0];
+	
+	public ProvenanceIndex(NodeMap provenance)
+	{
+		SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT, Locale.ENGLISH);
+		for (Entry<String, Node> entry : provenance.getEntrySet())
+		{
+			int i = ProvenanceRegistry.ordinal(entry.getKey());
+			if (i >= dates.length)
+			{
+				int length = Math.max(i+1, 2*dates.length);
+				sources = Arrays.copyOf(sources, length);
+				int from = dates.length;
+				dates = Arrays.copyOf(dates, length);
+				Arrays.fill(dates, from, length, NO_DATE);
+			}
+			sources[i] = first(XMLUtils.getValue(entry.getValue(), SOURCE));
+			String date = first(XMLUtils.getValue(entry.getValue(), DATE));
+			if (date != null)
+			{
+				try 
+				{
+					dates[i] = format.parse(date).getTime();
+				} 
+				catch (ParseException e) 
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	// Get the source name (the "source" field of the provenance element), null if unknown
+	public String getSource(int ordinal)
+	{
+		return ordinal < sources.length ? sources[ordinal] : null;
+	}
+	
+	// Get the date (the "date" field of the provenance element) in epoch millis, NO_DATE if it is missing, not parseable or unknown
+	public long getDate(int ordinal)
+	{
+		return ordinal < dates.length ? dates[ordinal] : NO_DATE;
+	}
+	
+	// Get the latest date of a set of provenance ordinals
+	public long getDate(ProvenanceSet provenance)
+	{
+		long date = NO_DATE;
+		for (int o = provenance.next(0); o >= 0; o = provenance.next(o+1)) date = Math.max(date, getDate(o));
+		return date;
+	}
+	
+	// Get the highest trust rank of a set of provenance ordinals, from ranks returned by getTrustRanks() 
+	// (negative infinity if none of them is known)
+	public double getTrustRank(double[] ranks, ProvenanceSet provenance)
+	{
+		double rank = Double.NEGATIVE_INFINITY;
+		for (int o = provenance.next(0); o >= 0; o = provenance.next(o+1)) 
+		{
+			if (o < ranks.length) rank = Math.max(rank, ranks[o]);
+		}
+		return rank;
+	}
+	
+	// Get trust ranks per ordinal for a map source name -> trust value; sources without a trust value get negative infinity
+	// (computed on each call, callers keep the ranks, see MostTrusted)
+	public double[] getTrustRanks(Map<String, Double> trust)
+	{
+		double[] ranks = new double[sources.length];
+		for (int i = 0; i < sources.length; i++)
+		{
+			Double r = (sources[i] == null) ? null : trust.get(sources[i]);
+			ranks[i] = (r == null) ? Double.NEGATIVE_INFINITY : r;
+		}
+		return ranks;
+	}
+	
+	// assume there is only one value
+	private static String first(Collection<String> values)
+	{
+		return values.isEmpty() ? null : values.iterator().next();
+	}
+}
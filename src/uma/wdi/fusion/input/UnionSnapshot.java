@@ -0,0 +1,552 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uma.wdi.fusion.input;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import uma.wdi.fusion.utils.NodeMap;
+import uma.wdi.fusion.utils.ValueDictionary;
+import uma.wdi.fusion.utils.XMLStreamLoader;
+import uma.wdi.fusion.utils.XMLStreamOutput;
+import uma.wdi.fusion.utils.XMLUtils;
+
+/* Binary snapshot of a merged (union) dataset, written once by DataUnion.writeSnapshot() and opened through memory-mapped buffers,
+ * so that reopening it only reads the header and a small table of names; the clusters are read (as DOM nodes) one by one when needed
+ * 
+ * File layout (offsets are absolute positions in the file):
+ *  header : magic, version, number of clusters and of values, offsets of the cluster table, the value table and the names section
+ *  values and cluster blocks : the distinct text values (int length, UTF-8 bytes) and, per cluster, a block of records (see below)
+ *  cluster table, value table : offset of each cluster block and of each value (long each)
+ *  names section (read into memory on open): root, element and id names, the attribute dictionary (element paths within a merged node 
+ *    and provenance lists), allAttributes, non-list attributes and list nodes of the union, and the provenance table (ID, serialized element)
+ * A cluster block is the composite ID (int length, UTF-8 bytes) followed by records, each starting with its kind:
+ *  PATH path : an (attribute) element at path in the merged node starts, the following records go into it, up to its END
+ *  ELEMENT name n (attribute name, value)*n : any other element (e.g. a list element) with attributes starts, up to its END
+ *  VALUE provenance value : <value provenance="...">value</value> (provenance is -1 for a value element without provenance)
+ *  EMPTY provenance : a value element without text
+ *  TEXT value : a text node (comments are not kept, as in XMLStreamLoader)
+ *  CLUSTER_END
+ * Paths, element and attribute names and provenance lists are codes in the names section, text values codes in the value table.
+ * Files larger than 2GB are mapped in segments of 1GB; no value or cluster block crosses a segment boundary.
+ * Values read into nodes are interned in the dictionary of their attribute if there is one (see setValueDictionary()), as values loaded from xml.
+ * 
+ *  @author Volha
+ * */
+public class UnionSnapshot 
+{
+	private static final int MAGIC = 0x57444955; // "WDIU"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	
+	// record kinds
+	private static final byte CLUSTER_END = 0;
+	private static final byte PATH = 1;
+	private static final byte END = 2;
+	private static final byte VALUE = 3;
+	private static final byte EMPTY = 4;
+	private static final byte TEXT = 5;
+	private static final byte ELEMENT = 6;
+	
+	private final String fn;
+	private final MappedByteBuffer[] segments;
+	private final int clusterCount;
+	private final long clusterTable;
+	private final long valueTable;
+	
+	private String rootName;
+	private String elementName;
+	private String idAttribute;
+	private String provenanceIDAttribute;
+	private String[] names;
+	private Set<String> allAttributes;
+	private Set<String> nonListAttributes;
+	private Set<String> listNodes;
+	private List<String> provenanceIDs = new ArrayList<String>();
+	private List<byte[]> provenance = new ArrayList<byte[]>();
+	private ValueDictionary dictionary = ValueDictionary.NONE;
+	
+	private UnionSnapshot(String fn, MappedByteBuffer[] segments) throws IOException
+	{
+		this.fn = fn;
+		this.segments = segments;
+		ByteBuffer header = segments[0].duplicate();
+		if (header.limit() < HEADER_SIZE || header.getInt() != MAGIC) throw new IOException(fn + " is not a union snapshot");
+		if (header.getInt() != VERSION) throw new IOException("union snapshot " + fn + " has an unsupported version");
+		clusterCount = header.getInt();
+		header.getInt(); // number of values
+		clusterTable = header.getLong();
+		valueTable = header.getLong();
+		long namesOffset = header.getLong();
+		readNames(at(namesOffset));
+	}
+	
+	// Open a snapshot: the file is mapped, only the names section is read
+	public static UnionSnapshot open(String fn) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(fn), StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			if (size < HEADER_SIZE) throw new IOException(fn + " is not a union snapshot");
+			MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size+SEGMENT_SIZE-1) >>> SEGMENT_SHIFT)];
+			for (int i = 0; i < segments.length; i++)
+			{
+				long position = (long) i << SEGMENT_SHIFT;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size-position));
+			}
+			// (the mapping stays valid after the channel is closed)
+			return new UnionSnapshot(fn, segments);
+		}
+	}
+	
+	// Intern the values read into nodes in dictionary (by default, no values are interned)
+	public void setValueDictionary(ValueDictionary dictionary)
+	{
+		this.dictionary = dictionary;
+	}
+	
+	// Getters
+	public String getFileName()
+	{
+		return fn;
+	}
+	public String getRootName()
+	{
+		return rootName;
+	}
+	public String getElementName()
+	{
+		return elementName;
+	}
+	public String getIDAttribute()
+	{
+		return idAttribute;
+	}
+	public String getProvenanceIDAttribute()
+	{
+		return provenanceIDAttribute;
+	}
+	public Set<String> getAllAttributes()
+	{
+		return allAttributes;
+	}
+	public Set<String> getNonListAttributes()
+	{
+		return nonListAttributes;
+	}
+	public Set<String> getListNodes()
+	{
+		return listNodes;
+	}
+	
+	// Number of clusters (merged nodes)
+	public int size()
+	{
+		return clusterCount;
+	}
+	
+	// Composite ID of a cluster
+	public String getKey(int cluster)
+	{
+		ByteBuffer block = at(clusterOffset(cluster));
+		return readString(block);
+	}
+	
+	// Read the merged node of a cluster into a new element of doc (not appended anywhere)
+	public Element readNode(int cluster, Document doc) throws XMLStreamException
+	{
+		ByteBuffer block = at(clusterOffset(cluster));
+		block.position(block.position() + 4 + block.getInt(block.position())); // skip the key
+		Element node = doc.createElement(elementName);
+		Node current = node;
+		while (true)
+		{
+			byte kind = block.get();
+			switch (kind)
+			{
+				case PATH:
+					String path = names[block.getInt()];
+					current = current.appendChild(doc.createElement(path.substring(path.lastIndexOf('/')+1)));
+					break;
+				case END:
+					current = current.getParentNode();
+					break;
+				case VALUE:
+				case EMPTY:
+					Element value = doc.createElement(XMLUtils.VALUE);
+					int prov = block.getInt();
+					if (prov >= 0) value.setAttribute(XMLUtils.PROV, names[prov]);
+					if (kind == VALUE) value.appendChild(doc.createTextNode(dictionary.intern(current.getNodeName(), getValue(block.getInt()))));
+					current.appendChild(value);
+					break;
+				case TEXT:
+					current.appendChild(doc.createTextNode(getValue(block.getInt())));
+					break;
+				case ELEMENT:
+					Element element = doc.createElement(names[block.getInt()]);
+					for (int n = block.getInt(); n > 0; n--) element.setAttribute(names[block.getInt()], getValue(block.getInt()));
+					current = current.appendChild(element);
+					break;
+				case CLUSTER_END:
+					return node;
+				default:
+					throw new XMLStreamException("union snapshot " + fn + " is damaged (cluster " + cluster + ")");
+			}
+		}
+	}
+	
+	// Read the provenance elements (in their original order) and append them to root
+	public NodeMap readProvenance(Node root) throws XMLStreamException
+	{
+		NodeMap map = new NodeMap();
+		map.setIDAttribute(provenanceIDAttribute);
+		for (int i = 0; i < provenance.size(); i++)
+		{
+			map.addNode(provenanceIDs.get(i), root.appendChild(XMLStreamLoader.parse(provenance.get(i), root.getOwnerDocument())));
+		}
+		return map;
+	}
+	
+	// Read the merged nodes of all clusters and append them to root (as DataUnion.getUnionDataset() would return them)
+	public NodeMap readData(Node root) throws XMLStreamException
+	{
+		NodeMap map = new NodeMap();
+		map.setIDAttribute(idAttribute);
+		for (int c = 0; c < clusterCount; c++)
+		{
+			map.addNode(getKey(c), root.appendChild(readNode(c, root.getOwnerDocument())));
+		}
+		return map;
+	}
+	
+	// Convert the snapshot back to xml, in the layout of DataUnion.writeUnionToFile() (or System.out if fn is null)
+	public boolean writeXml(String xmlFn)
+	{
+		Node root = XMLUtils.createDocument(rootName);
+		try
+		{
+			XMLStreamOutput out = new XMLStreamOutput(xmlFn);
+			try
+			{
+				out.startElement(root);
+				for (byte[] fragment : provenance) out.writeFragment(fragment);
+				for (int c = 0; c < clusterCount; c++) out.writeNode(readNode(c, root.getOwnerDocument()));
+				out.endDocument();
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (XMLStreamException | IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+	
+	private long clusterOffset(int cluster)
+	{
+		if (cluster < 0 || cluster >= clusterCount) throw new IndexOutOfBoundsException("cluster " + cluster + " of " + clusterCount);
+		return getLong(clusterTable + 8L*cluster);
+	}
+	
+	private String getValue(int code)
+	{
+		return readString(at(getLong(valueTable + 8L*code)));
+	}
+	
+	private long getLong(long position)
+	{
+		return segments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & (SEGMENT_SIZE-1)));
+	}
+	
+	// A buffer positioned at position, to read an item that starts there (items do not cross segments)
+	private ByteBuffer at(long position)
+	{
+		ByteBuffer buffer = segments[(int) (position >>> SEGMENT_SHIFT)].duplicate();
+		buffer.position((int) (position & (SEGMENT_SIZE-1)));
+		return buffer;
+	}
+	
+	private static String readString(ByteBuffer buffer)
+	{
+		int length = buffer.getInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private void readNames(ByteBuffer in)
+	{
+		rootName = readString(in);
+		elementName = readString(in);
+		idAttribute = readString(in);
+		provenanceIDAttribute = readString(in);
+		names = new String[in.getInt()];
+		for (int i = 0; i < names.length; i++) names[i] = readString(in);
+		allAttributes = readSet(in);
+		nonListAttributes = readSet(in);
+		listNodes = readSet(in);
+		int count = in.getInt();
+		for (int i = 0; i < count; i++)
+		{
+			provenanceIDs.add(readString(in));
+			byte[] fragment = new byte[in.getInt()];
+			in.get(fragment);
+			provenance.add(fragment);
+		}
+	}
+	
+	private static Set<String> readSet(ByteBuffer in)
+	{
+		int count = in.getInt();
+		Set<String> set = new LinkedHashSet<String>();
+		for (int i = 0; i < count; i++) set.add(readString(in));
+		return set;
+	}
+	
+	/* Write a merged dataset (root with provenance and data nodes, see DataUnion) as a snapshot to file fn
+	 * allAttributes, nonListAttributes and listNodes are the attribute sets of the DataUnion, kept to fuse the snapshot later
+	 */
+	public static void write(String fn, Node root, NodeMap data, NodeMap provenance, 
+			Set<String> allAttributes, Set<String> nonListAttributes, Set<String> listNodes) throws IOException, XMLStreamException
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(fn), StandardOpenOption.CREATE, 
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			Builder builder = new Builder(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 20));
+			for (Entry<String, Node> entry : data.getEntrySet()) builder.addCluster(entry.getKey(), entry.getValue());
+			
+			String elementName = data.getKeySet().isEmpty() ? null : data.getEntrySet().iterator().next().getValue().getNodeName();
+			XMLStreamOutput.FragmentWriter fragments = new XMLStreamOutput.FragmentWriter();
+			ByteArrayOutputStream names = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(names);
+			writeString(out, root.getNodeName());
+			writeString(out, elementName);
+			writeString(out, data.getIDAttribute());
+			writeString(out, provenance.getIDAttribute());
+			out.writeInt(builder.names.size());
+			for (String name : builder.names) writeString(out, name);
+			writeSet(out, allAttributes);
+			writeSet(out, nonListAttributes);
+			writeSet(out, listNodes);
+			out.writeInt(provenance.getKeySet().size());
+			for (Entry<String, Node> entry : provenance.getEntrySet())
+			{
+				writeString(out, entry.getKey());
+				byte[] fragment = fragments.toBytes(entry.getValue());
+				out.writeInt(fragment.length);
+				out.write(fragment);
+			}
+			out.flush();
+			
+			long[] tables = builder.finish(names.toByteArray());
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putInt(builder.clusterOffsets.size()).putInt(builder.valueOffsets.size());
+			header.putLong(tables[0]).putLong(tables[1]).putLong(tables[2]);
+			header.rewind();
+			long position = 0;
+			while (header.hasRemaining()) position += channel.write(header, position);
+		}
+	}
+	
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		if (s == null) 
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static void writeSet(DataOutputStream out, Collection<String> set) throws IOException
+	{
+		out.writeInt(set.size());
+		for (String s : set) writeString(out, s);
+	}
+	
+	// Writes values and cluster blocks one after the other, keeping their offsets and the dictionaries of values and names
+	private static class Builder
+	{
+		final OutputStream stream;
+		long position = HEADER_SIZE;
+		final Map<String, Integer> values = new HashMap<String, Integer>();
+		final List<Long> valueOffsets = new ArrayList<Long>();
+		final Map<String, Integer> nameCodes = new HashMap<String, Integer>();
+		final List<String> names = new ArrayList<String>();
+		final List<Long> clusterOffsets = new ArrayList<Long>();
+		final ByteArrayOutputStream block = new ByteArrayOutputStream(4096);
+		final DataOutputStream out = new DataOutputStream(block);
+		
+		Builder(OutputStream stream) throws IOException
+		{
+			this.stream = stream;
+			stream.write(new byte[HEADER_SIZE]); // written at the end
+		}
+		
+		void addCluster(String key, Node node) throws IOException
+		{
+			block.reset();
+			writeString(out, key);
+			for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+			{
+				addChild(child, "");
+			}
+			out.writeByte(CLUSTER_END);
+			out.flush();
+			clusterOffsets.add(item(block.toByteArray()));
+		}
+		
+		// Records of a child node of the element at parentPath
+		private void addChild(Node node, String parentPath) throws IOException
+		{
+			if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE)
+			{
+				out.writeByte(TEXT);
+				out.writeInt(value(node.getNodeValue()));
+				return;
+			}
+			if (node.getNodeType() != Node.ELEMENT_NODE) return;
+			NamedNodeMap attributes = node.getAttributes();
+			if (node.getNodeName().equals(XMLUtils.VALUE) && (attributes.getLength() == 0 
+					|| (attributes.getLength() == 1 && attributes.item(0).getNodeName().equals(XMLUtils.PROV))))
+			{
+				Node text = node.getFirstChild();
+				if (text == null || (text.getNodeType() == Node.TEXT_NODE && text.getNextSibling() == null))
+				{
+					out.writeByte(text == null ? EMPTY : VALUE);
+					out.writeInt(attributes.getLength() == 0 ? -1 : name(attributes.item(0).getNodeValue()));
+					if (text != null) out.writeInt(value(text.getNodeValue()));
+					return;
+				}
+			}
+			String path = parentPath.isEmpty() ? node.getNodeName() : parentPath + "/" + node.getNodeName();
+			if (attributes.getLength() == 0)
+			{
+				out.writeByte(PATH);
+				out.writeInt(name(path));
+			}
+			else
+			{
+				out.writeByte(ELEMENT);
+				out.writeInt(name(node.getNodeName()));
+				out.writeInt(attributes.getLength());
+				for (int i = 0; i < attributes.getLength(); i++)
+				{
+					out.writeInt(name(attributes.item(i).getNodeName()));
+					out.writeInt(value(attributes.item(i).getNodeValue()));
+				}
+			}
+			for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) addChild(child, path);
+			out.writeByte(END);
+		}
+		
+		private int value(String v) throws IOException
+		{
+			Integer code = values.get(v);
+			if (code == null)
+			{
+				code = valueOffsets.size();
+				values.put(v, code);
+				byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+				ByteBuffer item = ByteBuffer.allocate(4+bytes.length);
+				item.putInt(bytes.length).put(bytes);
+				valueOffsets.add(item(item.array()));
+			}
+			return code;
+		}
+		
+		private int name(String name)
+		{
+			Integer code = nameCodes.get(name);
+			if (code == null)
+			{
+				code = names.size();
+				nameCodes.put(name, code);
+				names.add(name);
+			}
+			return code;
+		}
+		
+		// Write an item that must not cross a segment boundary (values are written while their cluster block is built)
+		private long item(byte[] bytes) throws IOException
+		{
+			if (bytes.length > SEGMENT_SIZE) throw new IOException("item of " + bytes.length + " bytes is too large for a union snapshot");
+			if ((position >>> SEGMENT_SHIFT) != ((position+bytes.length-1) >>> SEGMENT_SHIFT)) 
+			{
+				pad(SEGMENT_SIZE - (position & (SEGMENT_SIZE-1)));
+			}
+			long offset = position;
+			stream.write(bytes);
+			position += bytes.length;
+			return offset;
+		}
+		
+		private void pad(long length) throws IOException
+		{
+			for (long i = 0; i < length; i++) stream.write(0);
+			position += length;
+		}
+		
+		// Write the cluster and value tables and the names section; returns their offsets
+		long[] finish(byte[] namesSection) throws IOException
+		{
+			pad((8 - (position & 7)) & 7);
+			DataOutputStream tables = new DataOutputStream(stream);
+			long clusterTable = position;
+			for (Long offset : clusterOffsets) tables.writeLong(offset);
+			long valueTable = clusterTable + 8L*clusterOffsets.size();
+			for (Long offset : valueOffsets) tables.writeLong(offset);
+			tables.flush();
+			position = valueTable + 8L*valueOffsets.size();
+			long namesOffset = item(namesSection);
+			stream.flush();
+			return new long[]{clusterTable, valueTable, namesOffset};
+		}
+	}
+}
@@ -14,13 +14,20 @@
 
 package uma.wdi.fusion.resolution;
 
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.utils.AttributeColumn;
 import uma.wdi.fusion.utils.Pair;
+import uma.wdi.fusion.utils.ProvenanceSet;
+import uma.wdi.fusion.utils.ResolvedColumn;
 import uma.wdi.fusion.utils.XMLUtils;
 
 /* Abstract conflict resolution function that all resolution functions should extend
@@ -28,26 +35,47 @@ import uma.wdi.fusion.utils.XMLUtils;
  * applyStrategy method : implements a specific strategy to transform value(s) of an attribute  
  * resolve method : given a node of data union, replaces the values according to the conflict resolution strategy
  * 
+ * Functions that only need the (value,provenance) pairs of a node (not the node itself) should also override
+ * applyStrategy(Dataset, Set<Pair>, String) and usesPairsOnly(); they can then be run in parallel, away from the DOM.
+ * Such functions must be thread-safe (e.g. not change their own fields in applyStrategy).
+ * applyStrategy(Dataset, AttributeColumn) resolves an attribute for all nodes at once; by default it calls the pair-based 
+ * applyStrategy per node, the built-in functions implement it as a loop over the column.
+ * Functions are serializable, so that they can be passed on to worker processes (see ShardedFusion); 
+ * their parameters (e.g. trust values) should be serializable as well.
+ * Functions whose result only depends on the pairs and the provenance of the dataset declare it (isContextFree()); 
+ * their results can then be cached for groups of pairs that recur (setCacheSize(), see ResolutionCache).
+ * 
  *  * @author Volha
  * */
-public abstract class AbstractResolutionFunction 
+public abstract class AbstractResolutionFunction implements Serializable
 {
+	private static final long serialVersionUID = 1L;
+	
+	// size of the result cache, 0: none (the cache itself is created on first use, also in a worker process)
+	private int cacheSize = 0;
+	private transient volatile ResolutionCache cache = null;
+	
 	// Replace value and provenance in node n with (value,provenance) pairs from newValue;	
 	// node n is (should be) a node of a DatasetUnion (loaded into a dataset)
 	public boolean resolve(Dataset ds, Node node, String path) 
 	{
-		Set<Pair> newValue = applyStrategy(ds, node,path);
+		Set<Pair> newValue = (cacheSize > 0) ? applyCached(ds, getValueProvenancePairs(node, path), path) : applyStrategy(ds, node,path);
+		return replaceValues(node, path, newValue);
+	}
+	
+	// Replace value and provenance in node n with (value,provenance) pairs from newValue
+	public boolean replaceValues(Node node, String path, Set<Pair> newValue)
+	{
 		Document xmlDoc = node.getOwnerDocument();		
 		
-	    NodeList list = XMLUtils.getNodeList(node,path);
-	    Node oldNode = list.item(0); // node to replace
+	    Node oldNode = XMLUtils.getFirstNode(node,path); // node to replace
 	    Node parent = oldNode.getParentNode(); // node parent (accounts for any path length)
 		String nodeName = oldNode.getNodeName(); // node name (not path) 
 	    Node newNode = xmlDoc.createElement(nodeName); // new node
 		// go through new values, add them to a new node
 		for (Pair p : newValue)
 		{
-			XMLUtils.addNewElementWithAttribute(xmlDoc, newNode, XMLUtils.VALUE, p.value, XMLUtils.PROV, p.provenance);
+			XMLUtils.addNewElementWithAttribute(xmlDoc, newNode, XMLUtils.VALUE, p.value, XMLUtils.PROV, p.getProvenance());
 		}
 		// replace the old node with the new one
 		parent.replaceChild(newNode, oldNode);		
@@ -58,14 +86,17 @@ public abstract class AbstractResolutionFunction
 	// Get comma-separated provenance id list of all values == val
 	public String getProvenanceList(Set<Pair> pairs, String val)
 	{
-		String provenance = null;
+		ProvenanceSet provenance = getProvenanceSet(pairs, val);
+		return provenance.isEmpty() ? null : provenance.toString();
+	}
+	
+	// Get the provenance of all values == val
+	public ProvenanceSet getProvenanceSet(Set<Pair> pairs, String val)
+	{
+		ProvenanceSet provenance = new ProvenanceSet();
 		for (Pair p : pairs)
 		{
-			if (p.value.equals(val))
-			{
-				if (provenance == null) provenance = p.provenance;
-				else provenance = provenance+","+p.provenance;
-			}
+			if (p.value.equals(val)) provenance.addAll(p.getProvenanceSet());
 		}	
 		return provenance;
 	}
@@ -78,4 +109,159 @@ public abstract class AbstractResolutionFunction
 	
 	// To override:
 	public abstract Set<Pair> applyStrategy(Dataset ds, Node node, String path);
+	
+	// To override (together with usesPairsOnly()) if the function only needs the (value,provenance) pairs of a node;
+	// the parallel, batch and cache paths call it only for functions whose usesPairsOnly() is true
+	public Set<Pair> applyStrategy(Dataset ds, Set<Pair> pairs, String path)
+	{
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not use pairs only (see usesPairsOnly()), it can only be applied to nodes");
+	}
+	
+	// True if applyStrategy(Dataset, Set<Pair>, String) is implemented (opt-in, false by default: 
+	// other functions are applied to the nodes by the thread that changes the DOM)
+	public boolean usesPairsOnly()
+	{
+		return false;
+	}
+	
+	// True if applyStrategy(Dataset, Set<Pair>, String) always gives the same result for the same pairs (in any order) 
+	// and the same provenance elements of the dataset, whatever the node, the path or the time of the call
+	public boolean isContextFree()
+	{
+		return false;
+	}
+	
+	// Cache the results for up to size distinct groups of pairs (least recently used are evicted), 0: no cache (default)
+	// Only for context-free functions that use pairs only; the cache is not used in batch mode (applyStrategy(Dataset, AttributeColumn))
+	public boolean setCacheSize(int size)
+	{
+		if (size > 0 && !(usesPairsOnly() && isContextFree()))
+		{
+			System.out.println("ERROR: results of " + getClass().getSimpleName() + " cannot be cached (the function is not context-free)");
+			return false;
+		}
+		cacheSize = size;
+		cache = null;
+		return true;
+	}
+	
+	// Resolve the pairs of a node as applyStrategy(Dataset, Set<Pair>, String), reusing the cached result for the same pairs if there is a cache
+	public Set<Pair> applyCached(Dataset ds, Set<Pair> pairs, String path)
+	{
+		if (cacheSize <= 0) return applyStrategy(ds, pairs, path);
+		ResolutionCache c = cache;
+		if (c == null)
+		{
+			synchronized (this)
+			{
+				if (cache == null) cache = new ResolutionCache(cacheSize, getClass().getSimpleName());
+				c = cache;
+			}
+		}
+		return c.resolve(this, ds, pairs, path);
+	}
+	
+	// Resolve an attribute for all nodes at once: one group of (value,provenance) pairs per node in column, 
+	// one group of resulting pairs per node in the result
+	// By default applyStrategy(Dataset, Set<Pair>, String) is called per group; to override with a loop over the column
+	// (only called for functions whose usesPairsOnly() is true)
+	public ResolvedColumn applyStrategy(Dataset ds, AttributeColumn column)
+	{
+		ResolvedColumn result = new ResolvedColumn(column.size(), column.getValueCount());
+		for (int g = 0; g < column.size(); g++)
+		{
+			result.addAll(applyStrategy(ds, column.getPairs(g), column.getPath()));
+			result.endGroup();
+		}
+		return result;
+	}
+	
+	// For batch implementations: add the values of group g in column with selected[position-start] set to result 
+	// (one value per distinct value, with merged provenance) and close the group in result
+	// If selectFirst, only the first of the values (in the order of a hash map of values, as in the per-node functions) is kept
+	// slots: scratch array of column.getDictionarySize() elements, all -1 (are -1 again afterwards)
+	protected static void addSelected(AttributeColumn column, int g, boolean[] selected, boolean selectFirst, ResolvedColumn result, int[] slots)
+	{
+		int start = column.getStart(g);
+		int end = column.getEnd(g);
+		for (int i = start; i < end; i++)
+		{
+			if (!selected[i-start]) continue;
+			int code = column.getValueCode(i);
+			if (slots[code] < 0) slots[code] = result.add(column.decode(code), new ProvenanceSet());
+			column.addProvenanceTo(i, result.getProvenance(slots[code]));
+		}
+		for (int i = start; i < end; i++) slots[column.getValueCode(i)] = -1;
+		
+		int first = result.getCurrentStart();
+		if (selectFirst && result.getValueCount()-first > 1)
+		{
+			Map<String, Integer> values = new HashMap<String, Integer>();
+			for (int i = first; i < result.getValueCount(); i++) values.put(result.getValue(i), i);
+			result.keepOnly(values.values().iterator().next());
+		}
+		result.endGroup();
+	}
+	
+	// For per-node implementations: the selected values of a group of pairs, one pair per distinct value with merged provenance
+	// A value selected from a single pair keeps that pair, only values of several pairs get a new pair with a merged provenance set
+	// The values are in the order of a hash map, filled in the order of the pairs (the first one is kept if selectFirst)
+	protected static class SelectedValues
+	{
+		private final Map<String, Pair> first = new HashMap<String, Pair>();
+		private Map<String, ProvenanceSet> merged = null;
+		
+		public void add(Pair p)
+		{
+			Pair f = first.get(p.value);
+			if (f == null && !first.containsKey(p.value))
+			{
+				first.put(p.value, p);
+				return;
+			}
+			if (merged == null) merged = new HashMap<String, ProvenanceSet>();
+			ProvenanceSet prv = merged.get(p.value);
+			if (prv == null) merged.put(p.value, prv = f.getProvenanceSet().copy());
+			prv.addAll(p.getProvenanceSet());
+		}
+		
+		// The resulting pairs: all of them, or only the first one if selectFirst (none if no pair was added)
+		public Set<Pair> toSet(boolean selectFirst)
+		{
+			Set<Pair> result = new HashSet<Pair>();
+			for (String v : first.keySet())
+			{
+				ProvenanceSet prv = (merged == null) ? null : merged.get(v);
+				result.add(prv == null ? first.get(v) : new Pair(v, prv));
+				if (selectFirst) break;
+			}
+			return result;
+		}
+	}
+	
+	// For batch implementations: numeric values of all distinct values of a column by code (null for non-numeric values)
+	protected static Double[] parseValues(AttributeColumn column)
+	{
+		Double[] numbers = new Double[column.getDictionarySize()];
+		for (int code = 0; code < numbers.length; code++)
+		{
+			try 
+			{
+				numbers[code] = Double.valueOf(column.decode(code));
+			}
+			catch(NumberFormatException e)
+			{
+				numbers[code] = null;
+			}
+		}
+		return numbers;
+	}
+	
+	// Scratch array for addSelected()
+	protected static int[] newSlots(AttributeColumn column)
+	{
+		int[] slots = new int[column.getDictionarySize()];
+		Arrays.fill(slots, -1);
+		return slots;
+	}
 }
@@ -19,7 +19,10 @@ import java.util.Set;
 import org.w3c.dom.Node;
 
 import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.utils.AttributeColumn;
 import uma.wdi.fusion.utils.Pair;
+import uma.wdi.fusion.utils.ProvenanceSet;
+import uma.wdi.fusion.utils.ResolvedColumn;
 
 /* Conflict resolution function that returns the average of initial values
  * In case some values are non-numeric, no changes to all values of a node are made
@@ -28,13 +31,19 @@ import uma.wdi.fusion.utils.Pair;
  * */
 public class Average extends AbstractResolutionFunction
 {
+	private static final long serialVersionUID = 1L;
+	
 	// Computes and return the average value with the fictional provenance id "average"
 	@Override
 	public Set<Pair> applyStrategy(Dataset ds, Node node, String path)
 	{
 		// get data to fuse:
-		Set<Pair> pairs = getValueProvenancePairs(node, path);
-		
+		return applyStrategy(ds, getValueProvenancePairs(node, path), path);
+	}
+	
+	@Override
+	public Set<Pair> applyStrategy(Dataset ds, Set<Pair> pairs, String path)
+	{
 		// compute average
 		Set<Pair> result = new HashSet<Pair>();
 		Double sum = 0.0;
@@ -60,5 +69,42 @@ public class Average extends AbstractResolutionFunction
 
 		return result;
 	}
-
+	
+	// Batch version: every distinct value is parsed once
+	@Override
+	public ResolvedColumn applyStrategy(Dataset ds, AttributeColumn column)
+	{
+		ResolvedColumn result = new ResolvedColumn(column.size(), column.size());
+		Double[] numbers = parseValues(column);
+		ProvenanceSet average = ProvenanceSet.parse("average value");
+		for (int g = 0; g < column.size(); g++)
+		{
+			// compute average
+			double sum = 0.0;
+			double cnt = 0.0;
+			int i = column.getStart(g);
+			for (; i < column.getEnd(g); i++)
+			{
+				Double v = numbers[column.getValueCode(i)];
+				if (v == null) break;
+				sum += v;
+				cnt += 1.0;
+			}
+			if (i < column.getEnd(g))
+			{
+				System.out.println("Average fusion policy cannot be applied to a non-numeric value " + column.getValue(i) + " of attribute " + column.getPath());
+				for (i = column.getStart(g); i < column.getEnd(g); i++) result.add(column.getValue(i), column.getProvenanceSet(i));
+			}
+			// add to a resulting set with a fictional provenance
+			else result.add(String.valueOf(sum/cnt), average);
+			result.endGroup();
+		}
+		return result;
+	}
+	
+	@Override
+	public boolean usesPairsOnly()
+	{
+		return true;
+	}
 }
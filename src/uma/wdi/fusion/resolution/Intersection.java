@@ -12,6 +12,8 @@ import uma.wdi.fusion.utils.Pair;
 
 public class Intersection extends AbstractResolutionFunction {
 
+	private static final long serialVersionUID = 1L;
+
 	@Override
 	public Set<Pair> applyStrategy(Dataset ds, Node node, String path) {
 		// TODO Auto-generated method stub
@@ -19,7 +19,10 @@ import java.util.Set;
 import org.w3c.dom.Node;
 
 import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.utils.AttributeColumn;
 import uma.wdi.fusion.utils.Pair;
+import uma.wdi.fusion.utils.ProvenanceSet;
+import uma.wdi.fusion.utils.ResolvedColumn;
 
 /* Conflict resolution function that returns the maximum of initial values, collecting all provenance IDs for which values are the same
  * In case some values are non-numeric, no changes to all values of a node are made
@@ -28,18 +31,23 @@ import uma.wdi.fusion.utils.Pair;
  * */
 public class Maximum extends AbstractResolutionFunction
 {
+	private static final long serialVersionUID = 1L;
+	
 	// Computes and return the maximum value with the (list of) respective provenance id(s)
 	@Override
 	public Set<Pair> applyStrategy(Dataset ds, Node node, String path)
 	{
 		// get data to fuse:
-		Set<Pair> pairs = getValueProvenancePairs(node, path);
-		
+		return applyStrategy(ds, getValueProvenancePairs(node, path), path);
+	}
+	
+	@Override
+	public Set<Pair> applyStrategy(Dataset ds, Set<Pair> pairs, String path)
+	{
 		// select maximum
 		Set<Pair> result = new HashSet<Pair>();
 		Double max = null;
 		String maxVal = null;
-		String maxProv = null;
 		for (Pair p : pairs)
 		{
 			Double v = 0.0;
@@ -56,16 +64,57 @@ public class Maximum extends AbstractResolutionFunction
 			{
 				max = v;
 				maxVal = p.value;
-				maxProv = p.provenance;
 			}			
 		}		
 		
 		// collect all provenace values relevant for this value
-		maxProv = getProvenanceList(pairs,maxVal);
+		ProvenanceSet maxProv = getProvenanceSet(pairs,maxVal);
 		// add to a resulting set
 		result.add(new Pair(maxVal,maxProv));		
 
 		return result;
 	}
-
+	
+	// Batch version: every distinct value is parsed once
+	@Override
+	public ResolvedColumn applyStrategy(Dataset ds, AttributeColumn column)
+	{
+		ResolvedColumn result = new ResolvedColumn(column.size(), column.size());
+		Double[] numbers = parseValues(column);
+		for (int g = 0; g < column.size(); g++)
+		{
+			// select maximum
+			int maxCode = -1;
+			int i = column.getStart(g);
+			for (; i < column.getEnd(g); i++)
+			{
+				int code = column.getValueCode(i);
+				if (numbers[code] == null) break;
+				if (maxCode < 0 || numbers[maxCode] < numbers[code]) maxCode = code;
+			}
+			if (i < column.getEnd(g))
+			{
+				System.out.println("Maximum fusion policy cannot be applied to a non-numeric value " + column.getValue(i) + " of attribute " + column.getPath());
+				for (i = column.getStart(g); i < column.getEnd(g); i++) result.add(column.getValue(i), column.getProvenanceSet(i));
+			}
+			else 
+			{
+				// collect all provenace values relevant for this value
+				ProvenanceSet maxProv = new ProvenanceSet();
+				for (i = column.getStart(g); i < column.getEnd(g); i++)
+				{
+					if (column.getValueCode(i) == maxCode) column.addProvenanceTo(i, maxProv);
+				}
+				result.add(maxCode < 0 ? null : column.decode(maxCode), maxProv);
+			}
+			result.endGroup();
+		}
+		return result;
+	}
+	
+	@Override
+	public boolean usesPairsOnly()
+	{
+		return true;
+	}
 }
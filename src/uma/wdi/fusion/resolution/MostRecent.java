@@ -14,21 +14,17 @@
 
 package uma.wdi.fusion.resolution;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Locale;
-import java.util.Map;
 import java.util.Set;
 import org.w3c.dom.Node;
 
 import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.input.ProvenanceIndex;
+import uma.wdi.fusion.utils.AttributeColumn;
 import uma.wdi.fusion.utils.Pair;
+import uma.wdi.fusion.utils.ResolvedColumn;
 
 /* Conflict resolution function that selects all the values from the most recent dataset(s) 
- * (looking at "date" filed in the provenance element)
+ * (looking at "date" filed in the provenance element, parsed once in the ProvenanceIndex of the dataset)
  * if selectFirst is true, returns the first of the values from the most recent dataset(s)
  * 
  * Same logic as in MostTrusted
@@ -37,6 +33,8 @@ import uma.wdi.fusion.utils.Pair;
  * */
 public class MostRecent extends AbstractResolutionFunction
 {
+	private static final long serialVersionUID = 1L;
+	
 	private boolean selectFirst = false; // false by default
 	
 	public MostRecent ()
@@ -54,59 +52,74 @@ public class MostRecent extends AbstractResolutionFunction
 	public Set<Pair> applyStrategy(Dataset ds, Node node, String path)
 	{
 		// get data to fuse:
-		Set<Pair> pairs = getValueProvenancePairs(node, path);
-		
+		return applyStrategy(ds, getValueProvenancePairs(node, path), path);
+	}
+	
+	@Override
+	public Set<Pair> applyStrategy(Dataset ds, Set<Pair> pairs, String path)
+	{
 		// select most recent value
-		Set<Pair> result = new HashSet<Pair>();
-		Date mostRecentDate = null;
-		String sMostRecentDate = null;
+		ProvenanceIndex index = ds.getProvenanceIndex();
+		long mostRecentDate = ProvenanceIndex.NO_DATE;
 		for (Pair p : pairs)
 		{
-			String sDate = ds.getProvenanceAttribute(p.provenance, "date");
-			try 
-			{
-				// NOTE: assumes specific date format (see movie example datasets)
-				Date date = new SimpleDateFormat("d MMM yyyy HH:mm:ss Z", Locale.ENGLISH).parse(sDate);
-				if ((mostRecentDate == null) || (date.compareTo(mostRecentDate) > 0))
-				{
-					mostRecentDate = date;
-					sMostRecentDate = sDate;
-				}				
-			} 
-			catch (ParseException e) 
-			{
-				e.printStackTrace();
-			}
+			long date = index.getDate(p.getProvenanceSet());
+			if (date > mostRecentDate) mostRecentDate = date;
 		}
 
 		// collect all most recent values
-		Map<String,String> valueMap= new HashMap<String,String>();
+		SelectedValues selected = new SelectedValues();
 		for (Pair p : pairs)
 		{
-			String sDate = ds.getProvenanceAttribute(p.provenance, "date");
-			if (sDate.equals(sMostRecentDate))
+			long date = index.getDate(p.getProvenanceSet());
+			if (date != ProvenanceIndex.NO_DATE && date == mostRecentDate)
 			{
-				//than add a value to a value map
-				if (valueMap.containsKey(p.value))
-					valueMap.put(p.value, valueMap.get(p.value)+","+p.provenance);
-				else
-					valueMap.put(p.value, p.provenance);			
+				//than add a value to the selected values (merging provenance of equal values)
+				selected.add(p);
 			}
 		}
 
-		// insert the resulting values:
-		if (selectFirst)
-		{
-			// insert the first value
-			String v = valueMap.entrySet().iterator().next().getKey();
-			result.add(new Pair(v,valueMap.get(v)));
-		}
-		else
+		// insert the resulting values (only the first one if selectFirst):
+		return selected.toSet(selectFirst);
+	}
+	
+	// Batch version: dates by provenance ordinal
+	@Override
+	public ResolvedColumn applyStrategy(Dataset ds, AttributeColumn column)
+	{
+		ProvenanceIndex index = ds.getProvenanceIndex();
+		ResolvedColumn result = new ResolvedColumn(column.size(), column.size());
+		int[] slots = newSlots(column);
+		long[] date = new long[column.getMaxGroupSize()];
+		boolean[] selected = new boolean[column.getMaxGroupSize()];
+		for (int g = 0; g < column.size(); g++)
 		{
-			// insert them all
-			for (String v : valueMap.keySet()) result.add(new Pair(v,valueMap.get(v)));
+			int start = column.getStart(g);
+			int end = column.getEnd(g);
+			// select most recent value
+			long mostRecentDate = ProvenanceIndex.NO_DATE;
+			for (int i = start; i < end; i++)
+			{
+				int o = column.getProvenanceOrdinal(i);
+				date[i-start] = (o < 0) ? index.getDate(column.getProvenanceSet(i)) : index.getDate(o);
+				if (date[i-start] > mostRecentDate) mostRecentDate = date[i-start];
+			}
+			// collect all most recent values
+			for (int i = start; i < end; i++) selected[i-start] = date[i-start] != ProvenanceIndex.NO_DATE && date[i-start] == mostRecentDate;
+			addSelected(column, g, selected, selectFirst, result, slots);
 		}
-
 		return result;
 	}
+	
+	@Override
+	public boolean usesPairsOnly()
+	{
+		return true;
+	}
+	
+	@Override
+	public boolean isContextFree()
+	{
+		return true;
+	}
 }
@@ -15,14 +15,15 @@
 package uma.wdi.fusion.resolution;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import org.w3c.dom.Node;
 
 import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.input.ProvenanceIndex;
+import uma.wdi.fusion.utils.AttributeColumn;
 import uma.wdi.fusion.utils.Pair;
-import uma.wdi.fusion.utils.XMLUtils;
+import uma.wdi.fusion.utils.ResolvedColumn;
 
 /* Conflict resolution function that takes as input an array of trust values for dataset ("source" filed in the provenance element)
  * and selects all the values from a dataset(s) with the highest trust values
@@ -34,8 +35,12 @@ import uma.wdi.fusion.utils.XMLUtils;
  * */
 public class MostTrusted extends AbstractResolutionFunction
 {
+	private static final long serialVersionUID = 1L;
+	
 	private Map<String,Double> trust = new HashMap<String,Double>();
 	private boolean selectFirst = false; // false by default
+	// trust ranks of the provenance index last used (computed once per index)
+	private transient volatile TrustRanks trustRanks = null;
 	
 	public MostTrusted (Map<String,Double> _trust)
 	{
@@ -54,46 +59,97 @@ public class MostTrusted extends AbstractResolutionFunction
 	public Set<Pair> applyStrategy(Dataset ds, Node node, String path)
 	{
 		// get data to fuse:
-		Set<Pair> pairs = getValueProvenancePairs(node, path);
-				
-		// select most recent value
-		Set<Pair> result = new HashSet<Pair>();
-		Double maxRank = null;
+		return applyStrategy(ds, getValueProvenancePairs(node, path), path);
+	}
+	
+	@Override
+	public Set<Pair> applyStrategy(Dataset ds, Set<Pair> pairs, String path)
+	{
+		// select most trusted value
+		ProvenanceIndex index = ds.getProvenanceIndex();
+		double[] ranks = getTrustRanks(index);
+		double maxRank = Double.NEGATIVE_INFINITY;
 		for (Pair p : pairs)
 		{
-			String sSource = ds.getProvenanceAttribute(p.provenance, "source");
-			Double r = trust.get(sSource);			
-			if ((maxRank == null) || (r > maxRank)) maxRank = r;
+			double r = index.getTrustRank(ranks, p.getProvenanceSet());
+			if (r > maxRank) maxRank = r;
 		}
 
-		// collect all most recent values
-		Map<String,String> valueMap= new HashMap<String,String>();
+		// collect all most trusted values
+		SelectedValues selected = new SelectedValues();
 		for (Pair p : pairs)
 		{
-			String sSource = ds.getProvenanceAttribute(p.provenance, "source");
-			if (trust.get(sSource).equals(maxRank))
+			if (index.getTrustRank(ranks, p.getProvenanceSet()) == maxRank)
 			{
-				//than add a value to a value map
-				if (valueMap.containsKey(p.value))
-					valueMap.put(p.value, valueMap.get(p.value)+","+p.provenance);
-				else
-					valueMap.put(p.value, p.provenance);			
+				//than add a value to the selected values (merging provenance of equal values)
+				selected.add(p);
 			}
 		}
 		
-		// insert the resulting values:
-		if (selectFirst)
+		// insert the resulting values (only the first one if selectFirst):
+		return selected.toSet(selectFirst);
+	}
+	
+	// Batch version: trust ranks by provenance ordinal
+	@Override
+	public ResolvedColumn applyStrategy(Dataset ds, AttributeColumn column)
+	{
+		ProvenanceIndex index = ds.getProvenanceIndex();
+		double[] ranks = getTrustRanks(index);
+		ResolvedColumn result = new ResolvedColumn(column.size(), column.size());
+		int[] slots = newSlots(column);
+		double[] rank = new double[column.getMaxGroupSize()];
+		boolean[] selected = new boolean[column.getMaxGroupSize()];
+		for (int g = 0; g < column.size(); g++)
 		{
-			// insert the first value
-			String v = valueMap.entrySet().iterator().next().getKey();
-			result.add(new Pair(v,valueMap.get(v)));
+			int start = column.getStart(g);
+			int end = column.getEnd(g);
+			// select most trusted value
+			double maxRank = Double.NEGATIVE_INFINITY;
+			for (int i = start; i < end; i++)
+			{
+				int o = column.getProvenanceOrdinal(i);
+				if (o < 0) rank[i-start] = index.getTrustRank(ranks, column.getProvenanceSet(i));
+				else rank[i-start] = (o < ranks.length) ? ranks[o] : Double.NEGATIVE_INFINITY;
+				if (rank[i-start] > maxRank) maxRank = rank[i-start];
+			}
+			// collect all most trusted values
+			for (int i = start; i < end; i++) selected[i-start] = rank[i-start] == maxRank;
+			addSelected(column, g, selected, selectFirst, result, slots);
 		}
-		else
+		return result;
+	}
+	
+	@Override
+	public boolean usesPairsOnly()
+	{
+		return true;
+	}
+	
+	// (as long as the trust values are not changed)
+	@Override
+	public boolean isContextFree()
+	{
+		return true;
+	}
+	
+	// Get the trust ranks per provenance ordinal of index, without locking (concurrent first calls may compute them twice)
+	private double[] getTrustRanks(ProvenanceIndex index)
+	{
+		TrustRanks r = trustRanks;
+		if (r == null || r.index != index) trustRanks = r = new TrustRanks(index, index.getTrustRanks(trust));
+		return r.ranks;
+	}
+	
+	private static class TrustRanks
+	{
+		final ProvenanceIndex index;
+		final double[] ranks;
+		
+		TrustRanks(ProvenanceIndex index, double[] ranks)
 		{
-			// insert them all
-			for (String v : valueMap.keySet()) result.add(new Pair(v,valueMap.get(v)));
+			this.index = index;
+			this.ranks = ranks;
 		}
-
-		return result;
 	}
 }
@@ -18,7 +18,9 @@ import java.util.Set;
 import org.w3c.dom.Node;
 
 import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.utils.AttributeColumn;
 import uma.wdi.fusion.utils.Pair;
+import uma.wdi.fusion.utils.ResolvedColumn;
 import uma.wdi.fusion.utils.XMLUtils;
 
 /* Conflict resolution function that leaves all values as they are
@@ -27,11 +29,37 @@ import uma.wdi.fusion.utils.XMLUtils;
  * */
 public class PassItOn extends AbstractResolutionFunction 
 {
+	private static final long serialVersionUID = 1L;
+	
 	// Does not make any changes to values
 	@Override
 	public Set<Pair> applyStrategy(Dataset ds, Node node, String path)
 	{
-		Set<Pair> result = getValueProvenancePairs(node, path);
+		return applyStrategy(ds, getValueProvenancePairs(node, path), path);
+	}
+	
+	@Override
+	public Set<Pair> applyStrategy(Dataset ds, Set<Pair> pairs, String path)
+	{
+		return pairs;
+	}
+	
+	// Batch version: all values are kept
+	@Override
+	public ResolvedColumn applyStrategy(Dataset ds, AttributeColumn column)
+	{
+		ResolvedColumn result = new ResolvedColumn(column.size(), column.getValueCount());
+		for (int g = 0; g < column.size(); g++)
+		{
+			for (int i = column.getStart(g); i < column.getEnd(g); i++) result.add(column.getValue(i), column.getProvenanceSet(i));
+			result.endGroup();
+		}
 		return result;
 	}
+	
+	@Override
+	public boolean usesPairsOnly()
+	{
+		return true;
+	}
 }
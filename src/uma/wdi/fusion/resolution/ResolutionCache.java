@@ -0,0 +1,193 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uma.wdi.fusion.resolution;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.utils.Metrics;
+import uma.wdi.fusion.utils.Pair;
+import uma.wdi.fusion.utils.ProvenanceSet;
+
+/* Size-bounded cache of the results of one resolution function (see AbstractResolutionFunction.setCacheSize()),
+ * for attributes where the same group of (value,provenance) pairs recurs in many clusters (e.g. {"pc"@prov01, "pc"@prov03})
+ * Keyed by the pairs as a multiset (their order does not matter) and the provenance elements of the dataset;
+ * The keys are spread by hash over up to SEGMENTS segments, each a size-bounded LRU map with a lock of its own, 
+ * so that resolver threads rarely wait for each other; when a segment is full, its least recently used result is evicted
+ * Cached results are shared by all nodes with the same pairs, so they are returned as unmodifiable sets
+ * Hits and misses are counted per function (METRIC); thread-safe
+ * 
+ * @author Volha
+ * */
+public class ResolutionCache 
+{
+	// Lookups, by function and result ("hit" or "miss"), see Metrics
+	public static final String METRIC = "wdi_fusion_resolution_cache_total";
+	// larger groups rarely recur, they are resolved without the cache
+	static final int MAX_GROUP_SIZE = 16;
+	// largest number of segments (a power of two; a small cache has fewer, so that each segment keeps at least MIN_SEGMENT_SIZE results)
+	static final int SEGMENTS = 16;
+	static final int MIN_SEGMENT_SIZE = 16;
+	
+	private final Segment[] segments;
+	private final Metrics.Counter hits;
+	private final Metrics.Counter misses;
+	
+	// maxSize: results kept in all segments together (rounded up to a multiple of the number of segments)
+	public ResolutionCache(int maxSize, String function)
+	{
+		int n = Integer.highestOneBit(Math.max(1, Math.min(SEGMENTS, maxSize/MIN_SEGMENT_SIZE)));
+		segments = new Segment[n];
+		for (int i = 0; i < n; i++) segments[i] = new Segment((maxSize+n-1)/n);
+		hits = Metrics.counter(METRIC, "function", function, "result", "hit");
+		misses = Metrics.counter(METRIC, "function", function, "result", "miss");
+	}
+	
+	// Get the cached result for the pairs of a node of ds, or resolve them with function and cache the result
+	public Set<Pair> resolve(AbstractResolutionFunction function, Dataset ds, Set<Pair> pairs, String path)
+	{
+		if (pairs.size() > MAX_GROUP_SIZE) return function.applyStrategy(ds, pairs, path);
+		Key key = new Key(ds.getProvenance(), pairs);
+		Segment segment = segmentFor(key);
+		Set<Pair> result;
+		synchronized (segment)
+		{
+			result = segment.get(key);
+		}
+		if (result != null)
+		{
+			hits.increment();
+			return result;
+		}
+		misses.increment();
+		result = Collections.unmodifiableSet(function.applyStrategy(ds, pairs, path));
+		synchronized (segment)
+		{
+			segment.put(key, result);
+		}
+		return result;
+	}
+	
+	// Number of cached results
+	public int size()
+	{
+		int size = 0;
+		for (Segment segment : segments)
+		{
+			synchronized (segment)
+			{
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+	
+	public void clear()
+	{
+		for (Segment segment : segments)
+		{
+			synchronized (segment)
+			{
+				segment.clear();
+			}
+		}
+	}
+	
+	private Segment segmentFor(Key key)
+	{
+		int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & (segments.length-1)];
+	}
+	
+	// Part of the cache: an access-order map evicting its least recently used result when it has more than maxSize 
+	// (to be used while holding its lock)
+	private static class Segment extends LinkedHashMap<Key, Set<Pair>>
+	{
+		private static final long serialVersionUID = 1L;
+		private final int maxSize;
+		
+		Segment(int maxSize)
+		{
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Set<Pair>> eldest)
+		{
+			return size() > maxSize;
+		}
+	}
+	
+	// A group of pairs as a multiset of (value, provenance), with the provenance elements (map) of the dataset it is from
+	private static class Key
+	{
+		private final Object provenance;
+		private final String[] values;
+		private final ProvenanceSet[] provenanceSets;
+		private final int hash;
+		
+		Key(Object provenance, Set<Pair> pairs)
+		{
+			this.provenance = provenance;
+			values = new String[pairs.size()];
+			provenanceSets = new ProvenanceSet[pairs.size()];
+			int h = System.identityHashCode(provenance);
+			int i = 0;
+			for (Pair p : pairs)
+			{
+				values[i] = p.value;
+				provenanceSets[i] = p.getProvenanceSet();
+				// (a sum does not depend on the order of the pairs)
+				h += 31*(p.value == null ? 0 : p.value.hashCode()) + provenanceSets[i].hashCode();
+				i++;
+			}
+			hash = h;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			if (hash != other.hash || provenance != other.provenance || values.length != other.values.length) return false;
+			// every pair matches a pair of other that is not matched yet (groups are small)
+			boolean[] matched = new boolean[values.length];
+			for (int i = 0; i < values.length; i++)
+			{
+				int j = 0;
+				while (j < values.length && (matched[j] || !equal(values[i], other.values[j]) 
+						|| !provenanceSets[i].equals(other.provenanceSets[j]))) j++;
+				if (j == values.length) return false;
+				matched[j] = true;
+			}
+			return true;
+		}
+		
+		private static boolean equal(String a, String b)
+		{
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+}
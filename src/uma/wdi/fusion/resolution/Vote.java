@@ -14,6 +14,8 @@ package uma.wdi.fusion.resolution;
  * limitations under the License.
  */
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -21,19 +23,40 @@ import java.util.Set;
 import org.w3c.dom.Node;
 
 import uma.wdi.fusion.input.Dataset;
+import uma.wdi.fusion.utils.AttributeColumn;
 import uma.wdi.fusion.utils.Pair;
+import uma.wdi.fusion.utils.ProvenanceSet;
+import uma.wdi.fusion.utils.ResolvedColumn;
 
 /* Conflict resolution function that selects the most frequent value among available ones
- * if selectFirst is true, returns the first of the values from the most recent dataset(s)
+ * if selectFirst is true, returns the first of the most frequent values (in the order of a hash map of the values)
  * 
  * Similar logic as in MostTrusted
+ * Small groups of values (most clusters have a few) are counted in per-thread scratch arrays by linear search, 
+ * so that only the result set (and the pairs of values with merged provenance) is allocated; larger groups are counted in hash maps
+ * A value that occurs once is returned as its original pair
  * 
  * @author Volha
  * */
 public class Vote extends AbstractResolutionFunction
 {
+	private static final long serialVersionUID = 1L;
+	
+	// largest group counted in the scratch arrays (by linear search)
+	private static final int SMALL_GROUP = 12;
+	
 	private boolean selectFirst = false; // false by default
 	
+	// Scratch arrays for small groups, per thread (a function can be applied by several threads at once)
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>()
+	{
+		@Override
+		protected Scratch initialValue()
+		{
+			return new Scratch();
+		}
+	};
+	
 	public Vote ()
 	{
 		selectFirst = false;
@@ -48,11 +71,15 @@ public class Vote extends AbstractResolutionFunction
 	@Override
 	public Set<Pair> applyStrategy(Dataset ds, Node node, String path)
 	{
-		Set<Pair> result = new HashSet<Pair>();
-
 		// get data to fuse:
-		Set<Pair> pairs = getValueProvenancePairs(node, path);
-		
+		return applyStrategy(ds, getValueProvenancePairs(node, path), path);
+	}
+	
+	@Override
+	public Set<Pair> applyStrategy(Dataset ds, Set<Pair> pairs, String path)
+	{
+		if (pairs.size() <= SMALL_GROUP) return applySmall(pairs, scratch.get());
+
 		// get value counts
 		Map<String,Integer> counts = new HashMap<String,Integer>();
 		for (Pair p : pairs)
@@ -67,32 +94,176 @@ public class Vote extends AbstractResolutionFunction
 		}
 
 		// collect all most frequent values
-		Map<String,String> valueMap= new HashMap<String,String>();
+		SelectedValues selected = new SelectedValues();
 		for (Pair p : pairs)
 		{
 			if (counts.get(p.value) == maxCount)
 			{
-				//than add a value to a value map
-				if (valueMap.containsKey(p.value))
-					valueMap.put(p.value, valueMap.get(p.value)+","+p.provenance);
-				else
-					valueMap.put(p.value, p.provenance);			
+				//than add a value to the selected values (merging provenance of equal values)
+				selected.add(p);
 			}
 		}
 
-		// insert the resulting values:
-		if (selectFirst)
+		// insert the resulting values (only the first one if selectFirst):
+		return selected.toSet(selectFirst);
+	}
+	
+	// Small groups: distinct values and their counts in scratch arrays, same result as with the hash maps above
+	// (a single resulting pair is returned as an immutable set)
+	private Set<Pair> applySmall(Set<Pair> pairs, Scratch s)
+	{
+		// get value counts
+		int n = 0;
+		int distinct = 0;
+		int maxCount = 0;
+		for (Pair p : pairs)
 		{
-			// insert the first value
-			String v = valueMap.entrySet().iterator().next().getKey();
-			result.add(new Pair(v,valueMap.get(v)));
+			int d = 0;
+			while (d < distinct && !equal(s.values[d], p.value)) d++;
+			if (d == distinct)
+			{
+				s.values[distinct] = p.value;
+				s.counts[distinct++] = 0;
+			}
+			if (++s.counts[d] > maxCount) maxCount = s.counts[d];
+			s.pairs[n] = p;
+			s.slots[n++] = d;
 		}
+		
+		// the most frequent values (only the first of them if selectFirst), merging provenance of equal values
+		// (a value of a single pair keeps that pair)
+		int first = selectFirst ? firstInHashOrder(s, distinct, maxCount) : -1;
+		int selectedCount = 0;
+		for (int i = 0; i < n; i++)
+		{
+			int d = s.slots[i];
+			if (s.counts[d] != maxCount || (selectFirst && d != first)) continue;
+			if (s.selected[d] == null) 
+			{
+				s.selected[d] = s.pairs[i];
+				selectedCount++;
+			}
+			else if (s.provenance[d] == null) s.provenance[d] = s.selected[d].getProvenanceSet().copy().addAll(s.pairs[i].getProvenanceSet());
+			else s.provenance[d].addAll(s.pairs[i].getProvenanceSet());
+		}
+		
+		// insert the resulting values:
+		Set<Pair> result;
+		if (selectedCount == 0) result = new HashSet<Pair>();
+		else if (selectedCount == 1) result = Collections.singleton(resultPair(s, selectFirst ? first : firstSelected(s, distinct)));
 		else
 		{
-			// insert them all
-			for (String v : valueMap.keySet()) result.add(new Pair(v,valueMap.get(v)));
+			result = new HashSet<Pair>();
+			for (int d = 0; d < distinct; d++)
+			{
+				if (s.selected[d] != null) result.add(resultPair(s, d));
+			}
 		}
-
+		s.clear(n, distinct);
 		return result;
 	}
+	
+	// The pair of selected value d: its only pair, or a new one with the merged provenance
+	private static Pair resultPair(Scratch s, int d)
+	{
+		return (s.provenance[d] == null) ? s.selected[d] : new Pair(s.values[d], s.provenance[d]);
+	}
+	
+	// The most frequent value that is the first in a hash map of the most frequent values (in the order of their first occurrence), 
+	// as the selected values in applyStrategy; -1 if there are no values
+	// (the hash map is only created if several values are equally frequent)
+	private static int firstInHashOrder(Scratch s, int distinct, int maxCount)
+	{
+		int first = -1;
+		Map<String,Integer> tied = null;
+		for (int d = 0; d < distinct; d++)
+		{
+			if (s.counts[d] != maxCount) continue;
+			if (first < 0) first = d;
+			else
+			{
+				if (tied == null)
+				{
+					tied = new HashMap<String,Integer>();
+					tied.put(s.values[first], first);
+				}
+				tied.put(s.values[d], d);
+			}
+		}
+		return (tied == null) ? first : tied.values().iterator().next();
+	}
+	
+	private static int firstSelected(Scratch s, int distinct)
+	{
+		for (int d = 0; d < distinct; d++)
+		{
+			if (s.selected[d] != null) return d;
+		}
+		return -1;
+	}
+	
+	private static boolean equal(String a, String b)
+	{
+		return a == null ? b == null : a.equals(b);
+	}
+	
+	// Batch version: counts per value code
+	@Override
+	public ResolvedColumn applyStrategy(Dataset ds, AttributeColumn column)
+	{
+		ResolvedColumn result = new ResolvedColumn(column.size(), column.size());
+		int[] counts = new int[column.getDictionarySize()];
+		int[] slots = newSlots(column);
+		boolean[] selected = new boolean[column.getMaxGroupSize()];
+		for (int g = 0; g < column.size(); g++)
+		{
+			int start = column.getStart(g);
+			int end = column.getEnd(g);
+			// get value counts
+			int maxCount = 0;
+			for (int i = start; i < end; i++)
+			{
+				int c = ++counts[column.getValueCode(i)];
+				if (c > maxCount) maxCount = c;
+			}
+			// collect all most frequent values
+			for (int i = start; i < end; i++) selected[i-start] = counts[column.getValueCode(i)] == maxCount;
+			for (int i = start; i < end; i++) counts[column.getValueCode(i)] = 0;
+			addSelected(column, g, selected, selectFirst, result, slots);
+		}
+		return result;
+	}
+	
+	@Override
+	public boolean usesPairsOnly()
+	{
+		return true;
+	}
+	
+	@Override
+	public boolean isContextFree()
+	{
+		return true;
+	}
+	
+	// Distinct values of a small group (in the order of their first occurrence) with counts, first selected pair and merged provenance, 
+	// and the pairs of the group with the index of their value
+	private static class Scratch
+	{
+		final String[] values = new String[SMALL_GROUP];
+		final int[] counts = new int[SMALL_GROUP];
+		final Pair[] selected = new Pair[SMALL_GROUP];
+		final ProvenanceSet[] provenance = new ProvenanceSet[SMALL_GROUP];
+		final Pair[] pairs = new Pair[SMALL_GROUP];
+		final int[] slots = new int[SMALL_GROUP];
+		
+		// Release the references of the last group
+		void clear(int n, int distinct)
+		{
+			Arrays.fill(values, 0, distinct, null);
+			Arrays.fill(selected, 0, distinct, null);
+			Arrays.fill(provenance, 0, distinct, null);
+			Arrays.fill(pairs, 0, n, null);
+		}
+	}
 }
@@ -0,0 +1,188 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uma.wdi.fusion.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.w3c.dom.Node;
+
+/* All (value,provenance) pairs of one attribute for a list of merged nodes, in columns
+ * Values of node (group) g are at positions getStart(g)..getEnd(g)-1; per position, there is 
+ * the code of the value (distinct values of the column get codes 0..getDictionarySize()-1) and the provenance ordinal
+ * (see ProvenanceRegistry; -1 for values with several provenance IDs, use getProvenanceSet() for those)
+ * 
+ * Used for resolving an attribute for all nodes at once (see AbstractResolutionFunction.applyStrategy(Dataset, AttributeColumn))
+ * 
+ * @author Volha
+ * */
+public class AttributeColumn 
+{
+	private final String path;
+	private int[] offsets = new int[17];
+	private int groups = 0;
+	private int maxGroupSize = 0;
+	
+	private int[] codes = new int[64];
+	private int[] provenance = new int[64];
+	private int size = 0;
+	
+	private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+	private final List<String> values = new ArrayList<String>();
+	// provenance of values with several provenance IDs, by position
+	private Map<Integer, ProvenanceSet> multiProvenance = null;
+	
+	public AttributeColumn(String path)
+	{
+		this.path = path;
+	}
+	
+	// Read the (value,provenance) pairs of path from merged nodes, one group per node
+	public static AttributeColumn read(Collection<Node> nodes, String path)
+	{
+		AttributeColumn column = new AttributeColumn(path);
+		for (Node node : nodes)
+		{
+			for (Node element : XMLUtils.getElementsWithAttribute(node, path, XMLUtils.VALUE, XMLUtils.PROV))
+			{
+				column.add(element.getTextContent(), element.getAttributes().getNamedItem(XMLUtils.PROV).getTextContent());
+			}
+			column.endGroup();
+		}
+		return column;
+	}
+	
+	// Add a value to the current group; provenance: a provenance ID or a comma-separated list of them
+	public void add(String value, String provenance)
+	{
+		if (provenance != null && !provenance.isEmpty() && provenance.indexOf(',') < 0) add(value, ProvenanceRegistry.ordinal(provenance));
+		else add(value, ProvenanceSet.parse(provenance));
+	}
+	
+	public void add(String value, ProvenanceSet provenance)
+	{
+		int o = provenance.next(0);
+		if (o >= 0 && provenance.next(o+1) < 0) add(value, o);
+		else
+		{
+			if (multiProvenance == null) multiProvenance = new HashMap<Integer, ProvenanceSet>();
+			multiProvenance.put(size, provenance);
+			add(value, -1);
+		}
+	}
+	
+	private void add(String value, int ordinal)
+	{
+		if (size == codes.length)
+		{
+			codes = Arrays.copyOf(codes, 2*size);
+			provenance = Arrays.copyOf(provenance, 2*size);
+		}
+		Integer code = dictionary.get(value);
+		if (code == null)
+		{
+			code = values.size();
+			dictionary.put(value, code);
+			values.add(value);
+		}
+		codes[size] = code;
+		provenance[size] = ordinal;
+		size++;
+	}
+	
+	// Close the current group (all values added since the last call belong to it)
+	public void endGroup()
+	{
+		if (groups+2 > offsets.length) offsets = Arrays.copyOf(offsets, 2*offsets.length);
+		groups++;
+		offsets[groups] = size;
+		maxGroupSize = Math.max(maxGroupSize, size-offsets[groups-1]);
+	}
+	
+	// Getters
+	public String getPath()
+	{
+		return path;
+	}
+	// Number of groups (nodes)
+	public int size()
+	{
+		return groups;
+	}
+	public int getStart(int group)
+	{
+		return offsets[group];
+	}
+	public int getEnd(int group)
+	{
+		return offsets[group+1];
+	}
+	public int getMaxGroupSize()
+	{
+		return maxGroupSize;
+	}
+	// Number of values in all groups
+	public int getValueCount()
+	{
+		return size;
+	}
+	// Number of distinct values
+	public int getDictionarySize()
+	{
+		return values.size();
+	}
+	public int getValueCode(int position)
+	{
+		return codes[position];
+	}
+	public String getValue(int position)
+	{
+		return values.get(codes[position]);
+	}
+	// Value of a code
+	public String decode(int code)
+	{
+		return values.get(code);
+	}
+	// Provenance ordinal of the value at position, -1 if it has several
+	public int getProvenanceOrdinal(int position)
+	{
+		return provenance[position];
+	}
+	public ProvenanceSet getProvenanceSet(int position)
+	{
+		if (provenance[position] >= 0) return new ProvenanceSet(provenance[position]);
+		return multiProvenance.get(position);
+	}
+	// Add the provenance of the value at position to set
+	public void addProvenanceTo(int position, ProvenanceSet set)
+	{
+		if (provenance[position] >= 0) set.add(provenance[position]);
+		else set.addAll(multiProvenance.get(position));
+	}
+	
+	// Get the pairs of a group (as getValueProvenancePairs() would return for the node)
+	public Set<Pair> getPairs(int group)
+	{
+		Set<Pair> result = new LinkedHashSet<Pair>();
+		for (int i = getStart(group); i < getEnd(group); i++) result.add(new Pair(getValue(i), getProvenanceSet(i)));
+		return result;
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uma.wdi.fusion.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/* SHA-256 content hashes (as hex strings) of files, byte arrays, strings and xml elements
+ * Used to detect changed input files and objects between runs (see IncrementalFusion)
+ * 
+ *  @author Volha
+ * */
+public class ContentHash 
+{
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	// Hash of the content of a file
+	public static String ofFile(String fn) throws IOException
+	{
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream in = Files.newInputStream(Paths.get(fn)))
+		{
+			int n;
+			while ((n = in.read(buffer)) > 0) digest.update(buffer, 0, n);
+		}
+		return toHex(digest.digest());
+	}
+	
+	public static String of(byte[] bytes)
+	{
+		return toHex(newDigest().digest(bytes));
+	}
+	
+	public static String of(String str)
+	{
+		return of(str.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	// Hash of an element: names, attributes and text of it and all its descendants (so it does not depend on the formatting of a file)
+	public static String of(Node node)
+	{
+		MessageDigest digest = newDigest();
+		update(digest, node);
+		return toHex(digest.digest());
+	}
+	
+	private static void update(MessageDigest digest, Node node)
+	{
+		switch (node.getNodeType())
+		{
+			case Node.ELEMENT_NODE:
+				digest.update((byte) '<');
+				update(digest, node.getNodeName());
+				NamedNodeMap attrs = node.getAttributes();
+				for (int i = 0; i < attrs.getLength(); i++)
+				{
+					digest.update((byte) '@');
+					update(digest, attrs.item(i).getNodeName());
+					update(digest, attrs.item(i).getNodeValue());
+				}
+				for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) update(digest, child);
+				digest.update((byte) '>');
+				break;
+			case Node.TEXT_NODE:
+			case Node.CDATA_SECTION_NODE:
+				digest.update((byte) '"');
+				update(digest, node.getNodeValue());
+				break;
+			default:
+				// comments, processing instructions are not content
+				break;
+		}
+	}
+	
+	// (strings are terminated with 0, so that the boundaries between them count)
+	private static void update(MessageDigest digest, String str)
+	{
+		digest.update(str.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+	
+	private static MessageDigest newDigest()
+	{
+		try 
+		{
+			return MessageDigest.getInstance("SHA-256");
+		} 
+		catch (NoSuchAlgorithmException e) 
+		{
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static String toHex(byte[] bytes)
+	{
+		char[] chars = new char[bytes.length*2];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			chars[2*i] = HEX[(bytes[i] >> 4) & 0xF];
+			chars[2*i+1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uma.wdi.fusion.utils;
+
+import java.util.Arrays;
+
+/* Disjoint-set (union-find) over dense int ordinals 0..size()-1
+ * Uses path compression and union by rank, so a sequence of n operations is near-linear
+ * 
+ *  @author Volha
+ * */
+public class DisjointSet 
+{
+	private int[] parent = new int[16];
+	private byte[] rank = new byte[16];
+	private int size = 0;
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	// Add a new singleton set; returns its ordinal
+	public int add()
+	{
+		if (size == parent.length)
+		{
+			parent = Arrays.copyOf(parent, size*2);
+			rank = Arrays.copyOf(rank, size*2);
+		}
+		parent[size] = size;
+		return size++;
+	}
+	
+	// Get the representative of the set containing x
+	public int find(int x)
+	{
+		int root = x;
+		while (parent[root] != root) root = parent[root];
+		// path compression
+		while (parent[x] != root)
+		{
+			int next = parent[x];
+			parent[x] = root;
+			x = next;
+		}
+		return root;
+	}
+	
+	// Merge the sets containing x and y; returns false if they were already the same set
+	public boolean union(int x, int y)
+	{
+		int rx = find(x);
+		int ry = find(y);
+		if (rx == ry) return false;
+		if (rank[rx] < rank[ry]) parent[rx] = ry;
+		else if (rank[rx] > rank[ry]) parent[ry] = rx;
+		else
+		{
+			parent[ry] = rx;
+			rank[rx]++;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uma.wdi.fusion.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/* Append-only store of byte fragments (e.g. serialized xml elements) in one file, addressed by Ref (offset, length)
+ * Appended fragments are buffered and written in large blocks; fragments that are not referenced any more 
+ * stay in the file until their live fragments are copied to a new store (see IncrementalFusion)
+ * 
+ *  @author Volha
+ * */
+public class FragmentStore implements Closeable
+{
+	private static final int BUFFER_SIZE = 1 << 20;
+	
+	private final FileChannel channel;
+	private long written; // bytes in the file
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream(BUFFER_SIZE);
+	
+	// Open the store in file fn (created if it does not exist); if truncate, existing fragments are dropped
+	public FragmentStore(String fn, boolean truncate) throws IOException
+	{
+		channel = truncate 
+				? FileChannel.open(Paths.get(fn), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+				: FileChannel.open(Paths.get(fn), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		written = channel.size();
+	}
+	
+	// Size of all fragments in the store, referenced or not
+	public long size()
+	{
+		return written + pending.size();
+	}
+	
+	public Ref append(byte[] fragment) throws IOException
+	{
+		Ref ref = new Ref(size(), fragment.length);
+		pending.write(fragment, 0, fragment.length);
+		if (pending.size() >= BUFFER_SIZE) flush();
+		return ref;
+	}
+	
+	public byte[] read(Ref ref) throws IOException
+	{
+		if (ref.offset + ref.length > written) flush();
+		ByteBuffer buffer = ByteBuffer.allocate(ref.length);
+		long position = ref.offset;
+		while (buffer.hasRemaining())
+		{
+			int n = channel.read(buffer, position);
+			if (n < 0) throw new IOException("fragment at " + ref.offset + " is outside of the store");
+			position += n;
+		}
+		return buffer.array();
+	}
+	
+	public void flush() throws IOException
+	{
+		if (pending.size() == 0) return;
+		ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+		while (buffer.hasRemaining()) written += channel.write(buffer, written);
+		pending.reset();
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		flush();
+		channel.close();
+	}
+	
+	// Position of a fragment in the store
+	public static class Ref
+	{
+		public final long offset;
+		public final int length;
+		
+		public Ref(long offset, int length)
+		{
+			this.offset = offset;
+			this.length = length;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return offset + "\t" + length;
+		}
+		
+		// Parse the result of toString()
+		public static Ref parse(String offset, String length)
+		{
+			return new Ref(Long.parseLong(offset), Integer.parseInt(length));
+		}
+	}
+}
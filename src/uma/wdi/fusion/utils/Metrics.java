@@ -0,0 +1,419 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uma.wdi.fusion.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Registry of counters and timers (lock-free, shared by all threads)
+ * A metric has a name and optional labels given as alternating name/value strings, e.g.
+ *   Metrics.timer("wdi_fusion_phase_seconds", "phase", "union")
+ * Getting a metric with the same name and labels again returns the same object; keep it in a field for hot paths
+ * 
+ * The registry can be written as JSON (writeJson) or in the Prometheus text exposition format (writePrometheus)
+ * 
+ *   @author Volha
+ * */
+public class Metrics 
+{
+	private static final ConcurrentMap<String, Metric> registry = new ConcurrentHashMap<String, Metric>();
+	
+	// Get (or register) a counter
+	public static Counter counter(String name, String... labels)
+	{
+		String key = key(name, labels);
+		Metric m = registry.get(key);
+		if (m == null)
+		{
+			Metric old = registry.putIfAbsent(key, new Counter(name, labels));
+			m = (old == null) ? registry.get(key) : old;
+		}
+		return (Counter) m;
+	}
+	
+	// Get (or register) a timer
+	public static Timer timer(String name, String... labels)
+	{
+		String key = key(name, labels);
+		Metric m = registry.get(key);
+		if (m == null)
+		{
+			Metric old = registry.putIfAbsent(key, new Timer(name, labels));
+			m = (old == null) ? registry.get(key) : old;
+		}
+		return (Timer) m;
+	}
+	
+	// Counters with one label, looked up by the label value (e.g. per xpath)
+	public static CounterFamily counters(String name, String label)
+	{
+		return new CounterFamily(name, label);
+	}
+	
+	// Set all metrics to zero (e.g. between runs in one JVM)
+	public static void reset()
+	{
+		for (Metric m : registry.values()) m.reset();
+	}
+	
+	// Write all metrics to file fn as JSON
+	public static boolean writeJson(String fn)
+	{
+		try (Writer out = Files.newBufferedWriter(Paths.get(fn), StandardCharsets.UTF_8))
+		{
+			out.write("{\n  \"counters\": [");
+			String sep = "\n";
+			for (Metric m : sorted())
+			{
+				if (!(m instanceof Counter)) continue;
+				out.write(sep + "    {" + jsonHead(m) + ", \"value\": " + ((Counter) m).get() + "}");
+				sep = ",\n";
+			}
+			out.write("\n  ],\n  \"timers\": [");
+			sep = "\n";
+			for (Metric m : sorted())
+			{
+				if (!(m instanceof Timer)) continue;
+				Timer t = (Timer) m;
+				out.write(sep + "    {" + jsonHead(m) + ", \"count\": " + t.getCount() + ", \"totalSeconds\": " + seconds(t.getTotalNanos()) 
+						+ ", \"maxSeconds\": " + seconds(t.getMaxNanos()) + "}");
+				sep = ",\n";
+			}
+			out.write("\n  ]\n}\n");
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.out.println("ERROR: metrics could not be written to " + fn);
+			return false;
+		}
+	}
+	
+	// Write all metrics to file fn in the Prometheus text exposition format
+	// (timers as summaries with _count and _sum, and a _max gauge)
+	public static boolean writePrometheus(String fn)
+	{
+		try (Writer out = Files.newBufferedWriter(Paths.get(fn), StandardCharsets.UTF_8))
+		{
+			String typed = null;
+			for (Metric m : sorted())
+			{
+				if (m instanceof Counter)
+				{
+					if (!m.name.equals(typed)) out.write("# TYPE " + m.name + " counter\n");
+					out.write(m.name + promLabels(m) + " " + ((Counter) m).get() + "\n");
+				}
+				else
+				{
+					Timer t = (Timer) m;
+					if (!m.name.equals(typed)) out.write("# TYPE " + m.name + " summary\n");
+					out.write(m.name + "_count" + promLabels(m) + " " + t.getCount() + "\n");
+					out.write(m.name + "_sum" + promLabels(m) + " " + seconds(t.getTotalNanos()) + "\n");
+				}
+				typed = m.name;
+			}
+			typed = null;
+			for (Metric m : sorted())
+			{
+				if (!(m instanceof Timer)) continue;
+				if (!m.name.equals(typed)) out.write("# TYPE " + m.name + "_max gauge\n");
+				out.write(m.name + "_max" + promLabels(m) + " " + seconds(((Timer) m).getMaxNanos()) + "\n");
+				typed = m.name;
+			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.out.println("ERROR: metrics could not be written to " + fn);
+			return false;
+		}
+	}
+	
+	// Metrics ordered by name and labels, so that metrics of the same name are written together
+	private static List<Metric> sorted()
+	{
+		List<Metric> result = new ArrayList<Metric>(registry.values());
+		Collections.sort(result, new Comparator<Metric>()
+		{
+			@Override
+			public int compare(Metric a, Metric b)
+			{
+				return a.key.compareTo(b.key);
+			}
+		});
+		return result;
+	}
+	
+	private static String key(String name, String[] labels)
+	{
+		if (labels.length % 2 != 0) throw new IllegalArgumentException("labels of metric " + name + " should be name/value pairs");
+		StringBuilder sb = new StringBuilder(name);
+		for (String l : labels) sb.append('\u0000').append(l);
+		return sb.toString();
+	}
+	
+	private static String seconds(long nanos)
+	{
+		return Double.toString(nanos/1e9);
+	}
+	
+	private static String jsonHead(Metric m)
+	{
+		StringBuilder sb = new StringBuilder("\"name\": \"" + json(m.name) + "\", \"labels\": {");
+		for (int i = 0; i < m.labels.length; i += 2)
+		{
+			if (i > 0) sb.append(", ");
+			sb.append('"').append(json(m.labels[i])).append("\": \"").append(json(m.labels[i+1])).append('"');
+		}
+		return sb.append('}').toString();
+	}
+	
+	private static String json(String s)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (char c : s.toCharArray())
+		{
+			if (c == '"' || c == '\\') sb.append('\\').append(c);
+			else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+			else sb.append(c);
+		}
+		return sb.toString();
+	}
+	
+	private static String promLabels(Metric m)
+	{
+		if (m.labels.length == 0) return "";
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < m.labels.length; i += 2)
+		{
+			if (i > 0) sb.append(',');
+			sb.append(m.labels[i]).append("=\"");
+			sb.append(m.labels[i+1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+		}
+		return sb.append('}').toString();
+	}
+	
+	private static abstract class Metric
+	{
+		final String name;
+		final String[] labels;
+		final String key;
+		
+		Metric(String name, String[] labels)
+		{
+			this.name = name;
+			this.labels = labels.clone();
+			this.key = key(name, labels);
+		}
+		
+		abstract void reset();
+	}
+	
+	public static class Counter extends Metric
+	{
+		private final StripedLong value = new StripedLong();
+		
+		private Counter(String name, String[] labels)
+		{
+			super(name, labels);
+		}
+		
+		public void increment()
+		{
+			value.add(1);
+		}
+		public void add(long n)
+		{
+			value.add(n);
+		}
+		public long get()
+		{
+			return value.sum();
+		}
+		@Override
+		void reset()
+		{
+			value.reset();
+		}
+	}
+	
+	// Number of timed events, total and maximum duration
+	public static class Timer extends Metric
+	{
+		private final StripedLong count = new StripedLong();
+		private final StripedLong total = new StripedLong();
+		private final AtomicLong max = new AtomicLong();
+		
+		private Timer(String name, String[] labels)
+		{
+			super(name, labels);
+		}
+		
+		// Start time for stop()
+		public static long start()
+		{
+			return System.nanoTime();
+		}
+		
+		// Record one event that started at start (from start())
+		public long stop(long start)
+		{
+			long nanos = System.nanoTime()-start;
+			record(nanos);
+			return nanos;
+		}
+		
+		// Record one event of the given duration
+		public void record(long nanos)
+		{
+			count.add(1);
+			total.add(nanos);
+			long m = max.get();
+			while (nanos > m && !max.compareAndSet(m, nanos)) m = max.get();
+		}
+		
+		// Add time without counting an event (e.g. for events timed in several parts; not taken into account for the maximum)
+		public void addTime(long nanos)
+		{
+			total.add(nanos);
+		}
+		
+		public long getCount()
+		{
+			return count.sum();
+		}
+		public long getTotalNanos()
+		{
+			return total.sum();
+		}
+		public long getMaxNanos()
+		{
+			return max.get();
+		}
+		@Override
+		void reset()
+		{
+			count.reset();
+			total.reset();
+			max.set(0);
+		}
+	}
+	
+	/* Sum updated by many threads, as java.util.concurrent.atomic.LongAdder (Java 8, not available in Java 7):
+	 * while there is no contention, values are added to one base value; once an update of it fails (another thread 
+	 * updated it at the same time), the value and all later ones are added to cells chosen by thread id instead.
+	 * The cells are CELL_PADDING longs apart, so that each is on a cache line of its own (no false sharing between threads).
+	 * sum() is not atomic with concurrent updates (as LongAdder.sum()), which is fine for metrics
+	 */
+	private static final class StripedLong
+	{
+		private static final int CELL_PADDING = 16;
+		private static final int CELLS = cellCount(Runtime.getRuntime().availableProcessors());
+		
+		private final AtomicLong base = new AtomicLong();
+		private volatile AtomicLongArray cells = null;
+		
+		void add(long n)
+		{
+			AtomicLongArray c = cells;
+			if (c == null)
+			{
+				long b = base.get();
+				if (base.compareAndSet(b, b+n)) return;
+				c = createCells();
+			}
+			c.addAndGet(cell(), n);
+		}
+		
+		long sum()
+		{
+			long sum = base.get();
+			AtomicLongArray c = cells;
+			if (c != null) 
+			{
+				for (int i = 0; i < CELLS; i++) sum += c.get(i*CELL_PADDING);
+			}
+			return sum;
+		}
+		
+		void reset()
+		{
+			base.set(0);
+			AtomicLongArray c = cells;
+			if (c != null) 
+			{
+				for (int i = 0; i < CELLS; i++) c.set(i*CELL_PADDING, 0);
+			}
+		}
+		
+		// (once per counter, on first contention)
+		private synchronized AtomicLongArray createCells()
+		{
+			if (cells == null) cells = new AtomicLongArray(CELLS*CELL_PADDING);
+			return cells;
+		}
+		
+		// Index of the cell of the current thread
+		private static int cell()
+		{
+			long id = Thread.currentThread().getId();
+			int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+			return ((h >>> 16) & (CELLS-1)) * CELL_PADDING;
+		}
+		
+		// Power of two >= 2*processors, at most 64
+		private static int cellCount(int processors)
+		{
+			int n = 2;
+			while (n < 2*processors && n < 64) n <<= 1;
+			return n;
+		}
+	}
+	
+	public static class CounterFamily
+	{
+		private final String name;
+		private final String label;
+		private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+		
+		private CounterFamily(String name, String label)
+		{
+			this.name = name;
+			this.label = label;
+		}
+		
+		public Counter get(String value)
+		{
+			Counter c = counters.get(value);
+			if (c == null)
+			{
+				counters.putIfAbsent(value, counter(name, label, value));
+				c = counters.get(value);
+			}
+			return c;
+		}
+	}
+}
@@ -25,8 +25,8 @@ import org.w3c.dom.*;
  */
 public class NodeMap 
 {
-	// Stores XML nodes by IDs ("id" tag)
-	private Map<String, Node> map = new HashMap<String, Node>();
+	// Stores XML nodes by IDs ("id" tag), in the order they were added (i.e. document order)
+	private Map<String, Node> map = new LinkedHashMap<String, Node>();
 	private String idAttribute = null;
 	private String separator = "---";
 	
@@ -59,10 +59,21 @@ public class NodeMap
 	{
 		return idAttribute;
 	}
+	public void setIDAttribute(String idAttribute)
+	{
+		this.idAttribute = idAttribute;
+	}
+	
+	// Add a node with a known ID (e.g. a node built in memory rather than loaded from file)
+	public void addNode(String id, Node node)
+	{
+		map.put(id, node);
+	}
 	
 	/* Load data from .xml file
 	 * idPath (e.g. "/movies/movie/id") is used as an entity string ID
 	 * If called several times with different files, reads all in one map 
+	 * Simple id paths (e.g. "//movie/id") are read with the streaming loader, others with xpath over the whole document
 	 */		
 	public boolean loadFromFile(String file, String idPath)
 	{
@@ -70,6 +81,9 @@ public class NodeMap
 	}
 	public boolean loadFromFile(String file, String idPath, boolean listID)
 	{
+		if (XMLStreamLoader.isStreamable(idPath))
+			return XMLStreamLoader.load(file, this, idPath, listID, null, null);
+
 	    NodeList list = XMLUtils.loadNodeList(file, idPath);
 	    if (list == null) return false;
 	    if (list.getLength() == 0)
@@ -78,18 +92,23 @@ public class NodeMap
 	    }
         for (int i = 0; i < list.getLength(); i++)
         {
-        	if (idAttribute == null) 
-        		idAttribute = list.item(i).getNodeName();
-        	String id = getID(list.item(i),listID);        	
-      	   	map.put(id,list.item(i).getParentNode()); 
+        	addNode(list.item(i), listID);
         }
         return true;
 	}	
 	
+	// Add the parent of an ID node to the map
+	void addNode(Node idNode, boolean listID)
+	{
+    	if (idAttribute == null) 
+    		idAttribute = idNode.getNodeName();
+    	String id = getID(idNode,listID);        	
+  	   	map.put(id,idNode.getParentNode()); 
+	}
+	
 	// Get either a single string ID or a concatenation of ordered IDs 
 	public String getID(Node node, boolean listID)
 	{
-		String id = null;
 		if (listID)
 		{
 			Set<String> ids = new HashSet<String>();
@@ -102,39 +121,35 @@ public class NodeMap
 					ids.add(list.item(i).getTextContent());
 				}
 			}
-			int size = ids.size();
-			for (int i = 0; i < size; i++)
-			{
-				String minID = getMinimum(ids);
-				ids.remove(minID);
-				if (id == null) id = minID;
-				else id = id + separator + minID;
-			}
+			return getCompositeID(ids);
+		}
+		return node.getTextContent();
+	}
+	
+	// Get a concatenation of ordered IDs (the ID of a merged node)
+	public String getCompositeID(Collection<String> ids)
+	{
+		List<String> sorted = new ArrayList<String>(new HashSet<String>(ids));
+		Collections.sort(sorted);
+		String id = null;
+		for (String s : sorted)
+		{
+			if (id == null) id = s;
+			else id = id + separator + s;
 		}
-		else id = node.getTextContent();
-		
 		return id;
 	}
 	
-	public int getIDSize(String id)
+	// Get the IDs a composite ID consists of
+	public List<String> getIDs(String id)
 	{
-		String[] ids = id.split(separator);
-		return ids.length;
+		return Arrays.asList(id.split(separator));
 	}
 	
-	// Get the minimum string (wrt lexicographic order)
-	private String getMinimum(Set<String> ids)
+	public int getIDSize(String id)
 	{
-		String min = null;
-		for (String s : ids)
-		{
-			if (min == null) min = s;
-			else
-			{
-				if (min.compareTo(s) > 0) min = s;
-			}			
-		}
-		return min;
+		String[] ids = id.split(separator);
+		return ids.length;
 	}
 }
 
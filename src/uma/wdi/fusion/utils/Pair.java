@@ -11,10 +11,12 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package uma.wdi.fusion.utils;
 
 /* Value-provenance ID pair
+ * Provenance is kept both as the comma-separated list of IDs (public field provenance, as written to xml) 
+ * and as a set of provenance ordinals (see ProvenanceSet, used by the resolution functions);
+ * if the field is assigned, the set is parsed again from it when it is asked for
  * 
  *  * @author Volha
  * */
@@ -22,10 +24,41 @@ public class Pair
 {
    public String value;
    public String provenance;
+   private ProvenanceSet provenanceSet;
+   private String parsedProvenance;   // the provenance provenanceSet was created from
 
+   // provenance: a provenance ID or a comma-separated list of them
    public Pair(String value, String provenance)
    {
       this.value = value;
       this.provenance = provenance;
+      this.provenanceSet = ProvenanceSet.parse(provenance);
+      this.parsedProvenance = provenance;
+   }
+
+   // provenance: the set is not copied (should not be changed any more)
+   public Pair(String value, ProvenanceSet provenanceSet)
+   {
+      this.value = value;
+      this.provenance = provenanceSet.isEmpty() ? null : provenanceSet.toString();
+      this.provenanceSet = provenanceSet;
+      this.parsedProvenance = provenance;
+   }
+
+   // Provenance as a set of ordinals (should not be changed)
+   public ProvenanceSet getProvenanceSet()
+   {
+      if (provenance != parsedProvenance)
+      {
+         provenanceSet = ProvenanceSet.parse(provenance);
+         parsedProvenance = provenance;
+      }
+      return provenanceSet;
+   }
+
+   // Provenance as a comma-separated list of IDs (null if there is no provenance)
+   public String getProvenance()
+   {
+      return provenance;
    }
-}
\ No newline at end of file
+}
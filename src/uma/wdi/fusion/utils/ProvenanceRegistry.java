@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uma.wdi.fusion.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/* Global registry of provenance IDs (e.g. "prov01")
+ * Every ID gets a dense int ordinal (0,1,2,... in the order IDs are first seen), used in ProvenanceSet;
+ * the ID strings are only needed again when values are written out
+ * Thread-safe; looking up a known ID does not lock
+ * Ordinals are valid for one run: reset() is called at the start of each run (see DataFusion), 
+ * so that IDs of earlier runs do not accumulate
+ * 
+ * @author Volha
+ * */
+public class ProvenanceRegistry 
+{
+	private static final ConcurrentMap<String, Integer> ordinals = new ConcurrentHashMap<String, Integer>();
+	private static volatile String[] ids = new String[64];
+	private static volatile int size = 0;
+	
+	// Get the ordinal of a provenance ID, registering it if it is seen for the first time
+	public static int ordinal(String id)
+	{
+		Integer ordinal = ordinals.get(id);
+		if (ordinal != null) return ordinal;
+		return register(id);
+	}
+	
+	// Get the provenance ID of an ordinal
+	public static String id(int ordinal)
+	{
+		return ids[ordinal];
+	}
+	
+	// Number of registered IDs (ordinals are 0..size()-1)
+	public static int size()
+	{
+		return size;
+	}
+	
+	// Forget all IDs; ProvenanceSets and ProvenanceIndexes created before are not valid any more
+	// (not to be called while datasets are loaded or fused)
+	public static synchronized void reset()
+	{
+		ordinals.clear();
+		ids = new String[64];
+		size = 0;
+	}
+	
+	private static synchronized int register(String id)
+	{
+		Integer ordinal = ordinals.get(id);
+		if (ordinal != null) return ordinal;
+		String[] current = ids;
+		if (size == current.length) current = ids = Arrays.copyOf(current, 2*size);
+		current[size] = id;
+		ordinals.put(id, size);
+		return size++;
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uma.wdi.fusion.utils;
+
+import java.util.Arrays;
+
+/* Set of provenance ordinals (see ProvenanceRegistry) of a value
+ * Ordinals 0..63 are kept in one long, larger ordinals in additional words (for more than 64 sources), 
+ * so adding, merging and counting provenance are bit operations
+ * toString() gives the comma-separated provenance IDs, sorted (ordinals depend on the order in which datasets were loaded), as written to xml
+ * 
+ * Not thread-safe; a set that is passed on (e.g. in a Pair) should not be changed any more
+ * 
+ * @author Volha
+ * */
+public class ProvenanceSet 
+{
+	private static final long[] NONE = new long[0];
+	
+	private long bits = 0L;			// ordinals 0..63
+	private long[] more = NONE;		// ordinals 64.., word i holds ordinals 64*(i+1)..64*(i+2)-1
+	
+	public ProvenanceSet()
+	{
+	}
+	
+	public ProvenanceSet(int ordinal)
+	{
+		add(ordinal);
+	}
+	
+	// Create a set from a comma-separated list of provenance IDs (null or empty: empty set)
+	public static ProvenanceSet parse(String ids)
+	{
+		ProvenanceSet set = new ProvenanceSet();
+		if (ids == null || ids.isEmpty()) return set;
+		int start = 0;
+		while (true)
+		{
+			int end = ids.indexOf(',', start);
+			set.add(ProvenanceRegistry.ordinal(end < 0 ? ids.substring(start) : ids.substring(start, end)));
+			if (end < 0) return set;
+			start = end+1;
+		}
+	}
+	
+	public ProvenanceSet add(int ordinal)
+	{
+		if (ordinal < 64) bits |= 1L << ordinal;
+		else
+		{
+			int word = (ordinal >>> 6) - 1;
+			if (word >= more.length) more = Arrays.copyOf(more, word+1);
+			more[word] |= 1L << ordinal;
+		}
+		return this;
+	}
+	
+	public ProvenanceSet addAll(ProvenanceSet other)
+	{
+		bits |= other.bits;
+		if (other.more.length > more.length) more = Arrays.copyOf(more, other.more.length);
+		for (int i = 0; i < other.more.length; i++) more[i] |= other.more[i];
+		return this;
+	}
+	
+	public boolean contains(int ordinal)
+	{
+		if (ordinal < 64) return (bits & (1L << ordinal)) != 0;
+		int word = (ordinal >>> 6) - 1;
+		return word < more.length && (more[word] & (1L << ordinal)) != 0;
+	}
+	
+	public boolean intersects(ProvenanceSet other)
+	{
+		if ((bits & other.bits) != 0) return true;
+		for (int i = 0; i < Math.min(more.length, other.more.length); i++)
+		{
+			if ((more[i] & other.more[i]) != 0) return true;
+		}
+		return false;
+	}
+	
+	public int cardinality()
+	{
+		int count = Long.bitCount(bits);
+		for (long w : more) count += Long.bitCount(w);
+		return count;
+	}
+	
+	public boolean isEmpty()
+	{
+		if (bits != 0) return false;
+		for (long w : more) if (w != 0) return false;
+		return true;
+	}
+	
+	// Get the smallest ordinal >= from in the set, -1 if there is none
+	// (to iterate: for (int o = set.next(0); o >= 0; o = set.next(o+1)))
+	public int next(int from)
+	{
+		if (from < 64)
+		{
+			long w = bits & (-1L << from);
+			if (w != 0) return Long.numberOfTrailingZeros(w);
+			from = 64;
+		}
+		for (int word = (from >>> 6) - 1; word < more.length; word++)
+		{
+			long w = more[word];
+			if (word == (from >>> 6) - 1) w &= -1L << from;
+			if (w != 0) return 64*(word+1) + Long.numberOfTrailingZeros(w);
+		}
+		return -1;
+	}
+	
+	public ProvenanceSet copy()
+	{
+		ProvenanceSet set = new ProvenanceSet();
+		set.bits = bits;
+		set.more = (more.length == 0) ? NONE : more.clone();
+		return set;
+	}
+	
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof ProvenanceSet)) return false;
+		ProvenanceSet other = (ProvenanceSet) o;
+		if (bits != other.bits) return false;
+		for (int i = 0; i < Math.max(more.length, other.more.length); i++)
+		{
+			long a = i < more.length ? more[i] : 0L;
+			long b = i < other.more.length ? other.more[i] : 0L;
+			if (a != b) return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		long h = bits;
+		for (int i = 0; i < more.length; i++) h ^= more[i] * (31L*(i+1));
+		return (int) (h ^ (h >>> 32));
+	}
+	
+	// Comma-separated provenance IDs in String order ("" for an empty set)
+	@Override
+	public String toString()
+	{
+		int o = next(0);
+		if (o < 0) return "";
+		int second = next(o+1);
+		if (second < 0) return ProvenanceRegistry.id(o);
+		String[] ids = new String[cardinality()];
+		int n = 0;
+		for (; o >= 0; o = next(o+1)) ids[n++] = ProvenanceRegistry.id(o);
+		Arrays.sort(ids);
+		StringBuilder sb = new StringBuilder(ids[0]);
+		for (int i = 1; i < ids.length; i++) sb.append(',').append(ids[i]);
+		return sb.toString();
+	}
+}
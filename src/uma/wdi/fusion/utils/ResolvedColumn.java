@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uma.wdi.fusion.utils;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/* Result of resolving an AttributeColumn: per group (node), the resulting (value,provenance) pairs
+ * Values of group g are at positions getStart(g)..getEnd(g)-1
+ * 
+ * @author Volha
+ * */
+public class ResolvedColumn 
+{
+	private int[] offsets;
+	private int groups = 0;
+	
+	private String[] values;
+	private ProvenanceSet[] provenance;
+	private int size = 0;
+	
+	public ResolvedColumn(int groupCapacity, int valueCapacity)
+	{
+		offsets = new int[groupCapacity+1];
+		values = new String[Math.max(valueCapacity, 16)];
+		provenance = new ProvenanceSet[values.length];
+	}
+	
+	// Add a value to the current group, returns its position
+	public int add(String value, ProvenanceSet prov)
+	{
+		if (size == values.length)
+		{
+			values = Arrays.copyOf(values, 2*size);
+			provenance = Arrays.copyOf(provenance, 2*size);
+		}
+		values[size] = value;
+		provenance[size] = prov;
+		return size++;
+	}
+	
+	// Add pairs to the current group
+	public void addAll(Set<Pair> pairs)
+	{
+		for (Pair p : pairs) add(p.value, p.getProvenanceSet());
+	}
+	
+	// Keep only the value at position (of the current group) in the current group
+	public void keepOnly(int position)
+	{
+		int start = offsets[groups];
+		values[start] = values[position];
+		provenance[start] = provenance[position];
+		for (int i = start+1; i < size; i++)
+		{
+			values[i] = null;
+			provenance[i] = null;
+		}
+		size = start+1;
+	}
+	
+	// Close the current group
+	public void endGroup()
+	{
+		if (groups+2 > offsets.length) offsets = Arrays.copyOf(offsets, 2*offsets.length);
+		groups++;
+		offsets[groups] = size;
+	}
+	
+	// Getters
+	// Number of groups (nodes)
+	public int size()
+	{
+		return groups;
+	}
+	// Start of the current group (the one values are added to)
+	public int getCurrentStart()
+	{
+		return offsets[groups];
+	}
+	// Number of values in all groups
+	public int getValueCount()
+	{
+		return size;
+	}
+	public int getStart(int group)
+	{
+		return offsets[group];
+	}
+	public int getEnd(int group)
+	{
+		return offsets[group+1];
+	}
+	public String getValue(int position)
+	{
+		return values[position];
+	}
+	public ProvenanceSet getProvenance(int position)
+	{
+		return provenance[position];
+	}
+	
+	// Get the pairs of a group (as applyStrategy() would return for the node)
+	public Set<Pair> getPairs(int group)
+	{
+		Set<Pair> result = new LinkedHashSet<Pair>();
+		for (int i = getStart(group); i < getEnd(group); i++) result.add(new Pair(values[i], provenance[i]));
+		return result;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uma.wdi.fusion.utils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.w3c.dom.Node;
+
+/* Dictionaries of the values of some attributes (e.g. "platform" or "genre"), filled while the datasets of a run are loaded 
+ * (see XMLStreamLoader, UnionSnapshot)
+ * Loaded values are replaced by the instance kept in the dictionary of their attribute: equal values of an attribute share one String 
+ * in the DOM, the pairs and the gold standard, so their hash code is computed once and comparing them (Vote, getProvenanceList, Evaluator) 
+ * is an identity check (values are not replaced by int codes: in batch mode, AttributeColumn codes the values of a column)
+ * Only the attributes given to the constructor have a dictionary, it is meant for attributes with small vocabularies; 
+ * a dictionary keeps at most MAX_SIZE values of up to MAX_VALUE_LENGTH characters, other values are kept as they are
+ * A ValueDictionary belongs to a run: it is created at its start and passed to the loaders (see DataFusion.setInternedAttributes)
+ * Thread-safe; looking up a known value does not lock
+ * 
+ * @author Volha
+ * */
+public class ValueDictionary 
+{
+	public static final int MAX_SIZE = 4096;
+	public static final int MAX_VALUE_LENGTH = 64;
+	
+	// no attribute is interned
+	public static final ValueDictionary NONE = new ValueDictionary(Collections.<String>emptySet());
+	
+	// values per attribute (the map is not changed after the constructor)
+	private final Map<String, Values> dictionaries = new HashMap<String, Values>();
+	
+	// Create empty dictionaries for the given attributes (element names), the values of other attributes are not interned
+	public ValueDictionary(Collection<String> attributes)
+	{
+		for (String attribute : attributes) dictionaries.put(attribute, new Values());
+	}
+	
+	public boolean isEmpty()
+	{
+		return dictionaries.isEmpty();
+	}
+	
+	// Intern a value of an attribute (the value itself if the attribute has no dictionary)
+	public String intern(String attribute, String text)
+	{
+		Values values = dictionaries.get(attribute);
+		return (values == null) ? text : values.intern(text);
+	}
+	
+	// Intern the text of a leaf element: an attribute of an object, or a value element of a merged node (interned for its attribute)
+	public String intern(Node element, String text)
+	{
+		if (dictionaries.isEmpty()) return text;
+		String attribute = element.getNodeName();
+		if (attribute.equals(XMLUtils.VALUE) && element.getParentNode() != null) attribute = element.getParentNode().getNodeName();
+		return intern(attribute, text);
+	}
+	
+	// The values kept for one attribute
+	private static class Values
+	{
+		final ConcurrentMap<String, String> values = new ConcurrentHashMap<String, String>();
+		final AtomicInteger size = new AtomicInteger();
+		
+		// Get the instance of value kept in the dictionary, registering it if there is room (value itself if it is not kept)
+		String intern(String value)
+		{
+			if (value == null || value.length() > MAX_VALUE_LENGTH) return value;
+			String kept = values.get(value);
+			if (kept != null) return kept;
+			// (concurrent loaders may exceed MAX_SIZE by a few values)
+			if (size.get() >= MAX_SIZE) return value;
+			kept = values.putIfAbsent(value, value);
+			if (kept != null) return kept;
+			size.incrementAndGet();
+			return value;
+		}
+	}
+}
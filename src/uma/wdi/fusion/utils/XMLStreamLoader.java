@@ -0,0 +1,418 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uma.wdi.fusion.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/*
+ * Streaming (StAX) loader for data and provenance elements
+ * Reads the input file element by element and keeps only the entity elements addressed by the id paths
+ * (e.g. <videogame> for "//videogame/id", <provenance> for "//provenance/id"), each as a compact DOM element
+ * without formatting whitespace; everything else in the file is skipped.
+ * Entities are appended to the root element of a small per-file document, so that getOwnerDocument(),
+ * getParentNode() and printing the document work as for a DOM-parsed file.
+ *
+ * Supported id paths: "//entity/id" and "/root/.../entity/id" (simple element names only);
+ * for anything else (predicates, wildcards, attributes) use the XPath-based XMLUtils.loadNodeList
+ * Data entities can be filtered by their id (IDFilter), e.g. to keep only the part of a dataset that a process works on,
+ * or passed on one by one without keeping them (stream)
+ * Repeated values of the attributes with a dictionary of the run share one String (see ValueDictionary; none by default)
+ *
+ *   @author Volha
+ * */
+public class XMLStreamLoader
+{
+	private static final XMLInputFactory factory = createFactory();
+
+	private static XMLInputFactory createFactory()
+	{
+		XMLInputFactory f = XMLInputFactory.newInstance();
+		f.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		f.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+		f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		return f;
+	}
+
+	// Decides which data entities are kept by load(), by the text of their (first) id element
+	public interface IDFilter
+	{
+		boolean accept(String id);
+	}
+
+	// Receives the entities read by stream(): the entity element and its first id element (null if it has none)
+	public interface EntityHandler
+	{
+		void entity(Element entity, Element id) throws IOException;
+	}
+
+	// Check whether an id path can be handled by the streaming loader
+	public static boolean isStreamable(String idPath)
+	{
+		return parsePath(idPath) != null;
+	}
+
+	/* Load data and provenance elements from file in one pass
+	 * provenance and idProvPath can be null (e.g. for the gold standard)
+	 * Returns false if the file could not be read or is not well-formed
+	 */
+	public static boolean load(String file, NodeMap data, String idDataPath, boolean listID, NodeMap provenance, String idProvPath)
+	{
+		return load(file, data, idDataPath, listID, provenance, idProvPath, null, ValueDictionary.NONE);
+	}
+	
+	// load() keeping only the data entities accepted by filter (all provenance elements are kept; null: all entities), 
+	// interning values in dictionary
+	// A file without accepted entities is not an error
+	public static boolean load(String file, final NodeMap data, String idDataPath, final boolean listID, 
+			final NodeMap provenance, String idProvPath, final IDFilter filter, ValueDictionary dictionary)
+	{
+		final EntityPath dataPath = parsePath(idDataPath);
+		final EntityPath provPath = (provenance == null) ? null : parsePath(idProvPath);
+		if (dataPath == null || (provenance != null && provPath == null))
+		{
+			System.out.println("ERROR: id path " + (dataPath == null ? idDataPath : idProvPath) + " cannot be used for streaming");
+			return false;
+		}
+
+		EntityHandler dataHandler = new EntityHandler()
+		{
+			@Override
+			public void entity(Element entity, Element id)
+			{
+				if (filter != null && !filter.accept(id == null ? null : id.getTextContent())) return;
+				entity.getOwnerDocument().getDocumentElement().appendChild(entity);
+				addIDs(data, entity, dataPath.idName, listID);
+			}
+		};
+		EntityHandler provHandler = (provenance == null) ? null : new EntityHandler()
+		{
+			@Override
+			public void entity(Element entity, Element id)
+			{
+				entity.getOwnerDocument().getDocumentElement().appendChild(entity);
+				addIDs(provenance, entity, provPath.idName, false);
+			}
+		};
+		if (read(file, dataPath, dataHandler, provPath, provHandler, dictionary) < 0) return false;
+
+		if (filter == null) checkIDs(data, idDataPath, file);
+		if (provenance != null) checkIDs(provenance, idProvPath, file);
+		return true;
+	}
+	
+	/* Read the data and provenance elements of a file one by one, without keeping them (e.g. to write them elsewhere, see OutOfCoreFusion)
+	 * Each element is in a document of its own per file, but not appended to it; provenance and idProvPath can be null
+	 * Returns false if the file could not be read or is not well-formed; IOExceptions of the handlers are passed on
+	 */
+	public static boolean stream(String file, String idDataPath, EntityHandler data, String idProvPath, EntityHandler provenance) throws IOException
+	{
+		return stream(file, idDataPath, data, idProvPath, provenance, ValueDictionary.NONE);
+	}
+	
+	// stream() interning values in dictionary
+	public static boolean stream(String file, String idDataPath, EntityHandler data, String idProvPath, EntityHandler provenance, 
+			ValueDictionary dictionary) throws IOException
+	{
+		EntityPath dataPath = parsePath(idDataPath);
+		EntityPath provPath = (provenance == null) ? null : parsePath(idProvPath);
+		if (dataPath == null || (provenance != null && provPath == null))
+		{
+			System.out.println("ERROR: id path " + (dataPath == null ? idDataPath : idProvPath) + " cannot be used for streaming");
+			return false;
+		}
+		try
+		{
+			int entities = read(file, dataPath, data, provPath, provenance, dictionary);
+			if (entities == 0) System.out.println("ERROR: no ids (" + idDataPath +") found in the input file " + file);
+			return entities >= 0;
+		}
+		catch (HandlerFailure e)
+		{
+			throw (IOException) e.getCause();
+		}
+	}
+
+	// Pass the data and provenance entities of a file to the handlers, in document order
+	// Returns the number of data entities, -1 (with an error message) if the file could not be read or is not well-formed
+	private static int read(String file, EntityPath dataPath, EntityHandler data, EntityPath provPath, EntityHandler provenance, 
+			ValueDictionary dictionary)
+	{
+		int entities = 0;
+		InputStream in = null;
+		XMLStreamReader reader = null;
+		try
+		{
+			in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+			reader = factory.createXMLStreamReader(in);
+
+			Document doc = null;
+			List<String> ancestors = new ArrayList<String>();
+			while (reader.hasNext())
+			{
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT)
+				{
+					String name = qName(reader);
+					if (doc == null)
+					{
+						doc = XMLUtils.createDocument(name).getOwnerDocument();
+						ancestors.add(name);
+					}
+					else if (dataPath.matches(name, ancestors))
+					{
+						handle(data, readElement(reader, doc, dictionary), dataPath.idName);
+						entities++;
+					}
+					else if (provPath != null && provPath.matches(name, ancestors))
+					{
+						handle(provenance, readElement(reader, doc, dictionary), provPath.idName);
+					}
+					else ancestors.add(name);
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT)
+				{
+					ancestors.remove(ancestors.size()-1);
+				}
+			}
+		}
+		catch (XMLStreamException e)
+		{
+			System.out.println("ERROR: your xml file " + file + " is not well-formed");
+			return -1;
+		}
+		catch (IOException e)
+		{
+			System.out.println("ERROR: input file " + file + " not found");
+			return -1;
+		}
+		finally
+		{
+			close(reader, in);
+		}
+		return entities;
+	}
+	
+	private static void handle(EntityHandler handler, Element entity, String idName)
+	{
+		try 
+		{
+			handler.entity(entity, firstID(entity, idName));
+		} 
+		catch (IOException e) 
+		{
+			throw new HandlerFailure(e);
+		}
+	}
+
+	// Read a single element (e.g. serialized with XMLStreamOutput.toBytes()) into a new element of doc, 
+	// with the same whitespace handling as load()
+	public static Element parse(byte[] fragment, Document doc) throws XMLStreamException
+	{
+		return parse(fragment, doc, ValueDictionary.NONE);
+	}
+	
+	// parse() interning values in dictionary
+	public static Element parse(byte[] fragment, Document doc, ValueDictionary dictionary) throws XMLStreamException
+	{
+		XMLStreamReader reader = factory.createXMLStreamReader(new ByteArrayInputStream(fragment));
+		try
+		{
+			while (reader.hasNext())
+			{
+				if (reader.next() == XMLStreamConstants.START_ELEMENT) return readElement(reader, doc, dictionary);
+			}
+			throw new XMLStreamException("no element found");
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	// Read the current element (reader is positioned at its START_ELEMENT) with all its content into a new element of doc
+	// Whitespace-only text is dropped from elements that have child elements (i.e. indentation), kept in leaf elements
+	// Text is interned in the dictionary of its attribute, if dictionary has one
+	private static Element readElement(XMLStreamReader reader, Document doc, ValueDictionary dictionary) throws XMLStreamException
+	{
+		Element top = startElement(reader, doc);
+		Element current = top;
+		String pendingWhitespace = null;
+		boolean hasChildElements = false;
+		List<Boolean> openHasChildren = new ArrayList<Boolean>();
+
+		while (true)
+		{
+			int event = reader.next();
+			switch (event)
+			{
+				case XMLStreamConstants.START_ELEMENT:
+					Element child = startElement(reader, doc);
+					current.appendChild(child);
+					openHasChildren.add(Boolean.TRUE);
+					current = child;
+					pendingWhitespace = null;
+					hasChildElements = false;
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					if (reader.isWhiteSpace())
+					{
+						if (!hasChildElements) pendingWhitespace = reader.getText();
+					}
+					else current.appendChild(doc.createTextNode(dictionary.intern(current, reader.getText())));
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if (!hasChildElements && pendingWhitespace != null)
+						current.appendChild(doc.createTextNode(pendingWhitespace));
+					pendingWhitespace = null;
+					if (current == top) return top;
+					current = (Element) current.getParentNode();
+					// the parent of the closed element has at least one child element
+					hasChildElements = openHasChildren.remove(openHasChildren.size()-1);
+					break;
+				default:
+					// comments, processing instructions etc. are skipped
+					break;
+			}
+		}
+	}
+
+	private static Element startElement(XMLStreamReader reader, Document doc)
+	{
+		Element element = doc.createElement(qName(reader));
+		for (int i = 0; i < reader.getAttributeCount(); i++)
+		{
+			String prefix = reader.getAttributePrefix(i);
+			String name = reader.getAttributeLocalName(i);
+			if (prefix != null && !prefix.isEmpty()) name = prefix + ":" + name;
+			element.setAttribute(name, reader.getAttributeValue(i));
+		}
+		return element;
+	}
+
+	private static String qName(XMLStreamReader reader)
+	{
+		String prefix = reader.getPrefix();
+		if (prefix == null || prefix.isEmpty()) return reader.getLocalName();
+		return prefix + ":" + reader.getLocalName();
+	}
+
+	// Add all id children of an entity to the map (the same as what the xpath "entity/id" would return)
+	private static void addIDs(NodeMap map, Element entity, String idName, boolean listID)
+	{
+		for (Node n = entity.getFirstChild(); n != null; n = n.getNextSibling())
+		{
+			if (n.getNodeType() == Node.ELEMENT_NODE && n.getNodeName().equals(idName)) map.addNode(n, listID);
+		}
+	}
+
+	// First id child of an entity (null if it has none)
+	private static Element firstID(Element entity, String idName)
+	{
+		for (Node n = entity.getFirstChild(); n != null; n = n.getNextSibling())
+		{
+			if (n.getNodeType() == Node.ELEMENT_NODE && n.getNodeName().equals(idName)) return (Element) n;
+		}
+		return null;
+	}
+
+	private static void checkIDs(NodeMap map, String idPath, String file)
+	{
+		if (map.getKeySet().isEmpty())
+	    {
+	    	System.out.println("ERROR: no ids (" + idPath +") found in the input file " + file);
+	    }
+	}
+
+	private static void close(XMLStreamReader reader, InputStream in)
+	{
+		try
+		{
+			if (reader != null) reader.close();
+			if (in != null) in.close();
+		}
+		catch (XMLStreamException | IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	// Parse an id path into (ancestor path, entity element name, id element name); null if not supported
+	private static EntityPath parsePath(String idPath)
+	{
+		if (idPath == null) return null;
+		boolean anywhere = idPath.startsWith("//");
+		if (!anywhere && !idPath.startsWith("/")) return null;
+		String[] steps = idPath.substring(anywhere ? 2 : 1).split("/");
+		if (steps.length < 2) return null;
+		for (String s : steps)
+		{
+			if (s.isEmpty() || !s.matches("[\\w.:-]+")) return null;
+		}
+		List<String> ancestors = new ArrayList<String>();
+		for (int i = 0; i < steps.length-2; i++) ancestors.add(steps[i]);
+		if (anywhere && !ancestors.isEmpty()) return null; // "//a/b/id" is not supported
+		return new EntityPath(anywhere, ancestors, steps[steps.length-2], steps[steps.length-1]);
+	}
+
+	// IOException of an EntityHandler, passed through read()
+	private static class HandlerFailure extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		HandlerFailure(IOException cause)
+		{
+			super(cause);
+		}
+	}
+
+	private static class EntityPath
+	{
+		final boolean anywhere;
+		final List<String> ancestors;
+		final String entityName;
+		final String idName;
+
+		EntityPath(boolean anywhere, List<String> ancestors, String entityName, String idName)
+		{
+			this.anywhere = anywhere;
+			this.ancestors = ancestors;
+			this.entityName = entityName;
+			this.idName = idName;
+		}
+
+		boolean matches(String name, List<String> openAncestors)
+		{
+			if (!entityName.equals(name)) return false;
+			return anywhere || ancestors.equals(openAncestors);
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uma.wdi.fusion.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/*
+ * Streaming xml output (XMLStreamWriter over a buffered file channel)
+ * Writes in the same layout as the indenting Transformer used before (2 spaces per level, leaf values inline),
+ * either a whole node at once (print) or a document element by element:
+ * startDocument(root) (or startElement(root)), writeNode(child) for each child as soon as it is ready, endDocument()
+ * Children can also be serialized on their own (toBytes) and written later as they are (writeFragment)
+ * 
+ *   @author Volha
+ * */
+public class XMLStreamOutput 
+{
+	private static final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+	private static final int BUFFER_SIZE = 1 << 20;
+	private static final String INDENT = "  ";
+	
+	private final OutputStream stream;
+	private final XMLStreamWriter writer;
+	private final boolean closeStream;
+	private String rootName = null;
+
+	// Open output to file fn (or System.out if fn is null)
+	public XMLStreamOutput(String fn) throws IOException, XMLStreamException
+	{
+		if (fn == null) 
+		{
+			stream = System.out;
+			closeStream = false;
+		}
+		else 
+		{
+			FileChannel channel = FileChannel.open(Paths.get(fn), StandardOpenOption.CREATE, 
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			stream = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+			closeStream = true;
+		}
+		writer = factory.createXMLStreamWriter(stream, "UTF-8");
+	}
+	
+	// Open output to a stream (not closed by close())
+	private XMLStreamOutput(OutputStream out) throws XMLStreamException
+	{
+		stream = out;
+		closeStream = false;
+		writer = factory.createXMLStreamWriter(stream, "UTF-8");
+	}
+	
+	// Print a node to a file (fn is a path); if fn is null, print into System.out
+	// can be called with node being the whole xml document
+	public static void print(Node node, String fn) throws IOException, XMLStreamException
+	{
+		XMLStreamOutput out = new XMLStreamOutput(fn);
+		try 
+		{
+			if (node.getNodeType() == Node.DOCUMENT_NODE)
+			{
+				out.declaration(true);
+				out.writeNode(((Document) node).getDocumentElement(), 0);
+			}
+			else 
+			{
+				out.declaration(false);
+				out.writeElement(node, 0, false);
+			}
+			out.writer.writeCharacters("\n");
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	// Start a document with the given root element (its attributes are copied, its children are not written)
+	public void startDocument(Node root) throws IOException, XMLStreamException
+	{
+		declaration(true);
+		rootName = root.getNodeName();
+		writer.writeCharacters("\n");
+		writer.writeStartElement(rootName);
+		writeAttributes(root);
+	}
+	
+	// Start a document as print() writes an element (e.g. the merged dataset, see DataUnion.writeUnionToFile):
+	// without standalone="no" and without a line break after the declaration
+	public void startElement(Node root) throws IOException, XMLStreamException
+	{
+		declaration(false);
+		rootName = root.getNodeName();
+		writer.writeStartElement(rootName);
+		writeAttributes(root);
+	}
+	
+	// Write a child of the root element, or (with depth) any node with its subtree
+	public void writeNode(Node node) throws XMLStreamException
+	{
+		writeNode(node, 1);
+	}
+	public void writeNode(Node node, int depth) throws XMLStreamException
+	{
+		switch (node.getNodeType())
+		{
+			case Node.ELEMENT_NODE:
+				writeElement(node, depth, true);
+				break;
+			case Node.TEXT_NODE:
+				writer.writeCharacters(node.getNodeValue());
+				break;
+			case Node.CDATA_SECTION_NODE:
+				writer.writeCData(node.getNodeValue());
+				break;
+			case Node.COMMENT_NODE:
+				indent(depth, true);
+				writer.writeComment(node.getNodeValue());
+				break;
+			default:
+				break;
+		}
+	}
+	
+	// Serialize a child of the root element exactly as writeNode(node) writes it (including the line break and indentation before it)
+	// (to serialize many nodes, use a FragmentWriter)
+	public static byte[] toBytes(Node node) throws XMLStreamException
+	{
+		return new FragmentWriter().toBytes(node);
+	}
+	
+	// Write a child of the root element serialized with toBytes()
+	public void writeFragment(byte[] fragment) throws IOException, XMLStreamException
+	{
+		writeFragment(fragment, 0, fragment.length);
+	}
+	// (or any part of a sequence of such fragments, e.g. read from a file block by block)
+	public void writeFragment(byte[] fragments, int offset, int length) throws IOException, XMLStreamException
+	{
+		writer.writeCharacters(""); // closes a pending start tag
+		writer.flush();
+		stream.write(fragments, offset, length);
+	}
+	
+	// Close the root element started with startDocument()
+	public void endDocument() throws XMLStreamException
+	{
+		writer.writeCharacters("\n");
+		writer.writeEndElement();
+		writer.writeCharacters("\n");
+		rootName = null;
+	}
+	
+	public void close() throws IOException, XMLStreamException
+	{
+		writer.flush();
+		writer.close();
+		if (closeStream) stream.close();
+		else stream.flush();
+	}
+	
+	// xml declaration, written directly to the stream
+	// (as the Transformer does: standalone="no" for documents, and no line break after it for elements)
+	private void declaration(boolean document) throws IOException
+	{
+		String decl = "<?xml version=\"1.0\" encoding=\"UTF-8\"" + (document ? " standalone=\"no\"" : "") + "?>";
+		stream.write(decl.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private void writeElement(Node node, int depth, boolean newLine) throws XMLStreamException
+	{
+		indent(depth, newLine);
+		if (!node.hasChildNodes())
+		{
+			writer.writeEmptyElement(node.getNodeName());
+			writeAttributes(node);
+			return;
+		}
+		writer.writeStartElement(node.getNodeName());
+		writeAttributes(node);
+		
+		boolean hasElements = false;
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+		{
+			if (child.getNodeType() == Node.ELEMENT_NODE) hasElements = true;
+		}
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+		{
+			// indentation whitespace is replaced by our own
+			if (hasElements && child.getNodeType() == Node.TEXT_NODE && child.getNodeValue().trim().isEmpty()) continue;
+			writeNode(child, depth+1);
+		}
+		if (hasElements) indent(depth, true);
+		writer.writeEndElement();
+	}
+	
+	private void writeAttributes(Node node) throws XMLStreamException
+	{
+		// (hasAttributes() first: getAttributes() creates an empty map for an element without attributes, 
+		// while the document may be read by other threads, see DataUnion.writeUnionToFileAsync)
+		if (!node.hasAttributes()) return;
+		NamedNodeMap attrs = node.getAttributes();
+		for (int i = 0; i < attrs.getLength(); i++)
+		{
+			writer.writeAttribute(attrs.item(i).getNodeName(), attrs.item(i).getNodeValue());
+		}
+	}
+	
+	private void indent(int depth, boolean newLine) throws XMLStreamException
+	{
+		if (!newLine) return;
+		StringBuilder sb = new StringBuilder("\n");
+		for (int i = 0; i < depth; i++) sb.append(INDENT);
+		writer.writeCharacters(sb.toString());
+	}
+	
+	// Serializes nodes one by one as toBytes() does, with one writer and buffer for all of them
+	public static class FragmentWriter
+	{
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		private final XMLStreamOutput out;
+		
+		public FragmentWriter() throws XMLStreamException
+		{
+			out = new XMLStreamOutput(bytes);
+		}
+		
+		public byte[] toBytes(Node node) throws XMLStreamException
+		{
+			bytes.reset();
+			out.writeNode(node);
+			out.writer.flush();
+			return bytes.toByteArray();
+		}
+	}
+}
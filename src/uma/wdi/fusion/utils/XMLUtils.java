@@ -14,27 +14,21 @@
 
 package uma.wdi.fusion.utils;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
@@ -59,8 +53,67 @@ public class XMLUtils
 	public static String VALUE = "value";
 	public static String PROV = "provenance";
 	
-	public static Integer fastGetValue = 0;
-	public static Integer slowGetValue = 0;
+	// element names separated by "/" (a name starts with a letter or "_", so "." and ".." are not simple steps)
+	private static final Pattern SIMPLE_PATH = Pattern.compile("[A-Za-z_][\\w.:-]*(/[A-Za-z_][\\w.:-]*)*");
+	
+	// getValue calls served by getNodeListFast / falling back to xpath, and xpath evaluations (getNodeList), per path
+	private static final Metrics.CounterFamily fastPathHits = Metrics.counters("wdi_fusion_getvalue_fast_total", "path");
+	private static final Metrics.CounterFamily fallbackHits = Metrics.counters("wdi_fusion_getvalue_fallback_total", "path");
+	private static final Metrics.CounterFamily xpathEvaluations = Metrics.counters("wdi_fusion_xpath_evaluations_total", "path");
+	
+	// Compiled xpath expressions and JAXP objects are not thread-safe, so they are kept per thread;
+	// factory lookup and compilation of a path happen once per thread
+	private static final ThreadLocal<XPath> xpath = new ThreadLocal<XPath>()
+	{
+		@Override
+		protected XPath initialValue()
+		{
+			return XPathFactory.newInstance().newXPath();
+		}
+	};
+	private static final ThreadLocal<Map<String, XPathExpression>> expressions = new ThreadLocal<Map<String, XPathExpression>>()
+	{
+		@Override
+		protected Map<String, XPathExpression> initialValue()
+		{
+			return new HashMap<String, XPathExpression>();
+		}
+	};
+	private static final ThreadLocal<DocumentBuilder> documentBuilder = new ThreadLocal<DocumentBuilder>()
+	{
+		@Override
+		protected DocumentBuilder initialValue()
+		{
+			try 
+			{
+				return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			} 
+			catch (ParserConfigurationException e) 
+			{
+				throw new IllegalStateException("cannot create a DOM document builder", e);
+			}
+		}
+	};
+	// Get the compiled expression for a path (cached per thread)
+	private static XPathExpression compile(String path) throws XPathExpressionException
+	{
+		Map<String, XPathExpression> cache = expressions.get();
+		XPathExpression expr = cache.get(path);
+		if (expr == null)
+		{
+			expr = xpath.get().compile(path);
+			cache.put(path, expr);
+		}
+		return expr;
+	}
+	
+	// Get a document builder of the current thread
+	public static DocumentBuilder getDocumentBuilder()
+	{
+		DocumentBuilder builder = documentBuilder.get();
+		builder.reset();
+		return builder;
+	}
 	
 	// Print a node to a file (fn is a path); if fn is null, print into System.out 
 	// can be called with node being the whole xml document
@@ -68,28 +121,13 @@ public class XMLUtils
 	{
 		try 
 		{
-			TransformerFactory tFactory = TransformerFactory.newInstance();
-			Transformer transformer;
-			transformer = tFactory.newTransformer();
-			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-			transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");       
-			DOMSource source = new DOMSource(node);
-			PrintStream out = System.out;
-			if (fn != null) out = new PrintStream(new FileOutputStream(fn));
-			StreamResult result = new StreamResult(out);
-			transformer.transform(source, result);
-			out.close();
-		} 
-		catch (TransformerConfigurationException e) 
-		{
-			e.printStackTrace();
+			XMLStreamOutput.print(node, fn);
 		} 
-		catch (TransformerException e) 
+		catch (XMLStreamException e) 
 		{
-
 			e.printStackTrace();
 		} 
-		catch (FileNotFoundException e) 
+		catch (IOException e) 
 		{
 			e.printStackTrace();
 		}
@@ -102,9 +140,6 @@ public class XMLUtils
 		// faster implementation:
 		NodeList children = node.getChildNodes();
 		
-		fastGetValue++;
-		// System.out.println("fast : " + fastGetValue + " - " + path);
-		
 		SimpleNodeList mnl = new SimpleNodeList();
         for(int i = 0; i < children.getLength(); i++) 
         {
@@ -148,14 +183,8 @@ public class XMLUtils
 	{
 		try 
 		{
-			slowGetValue++;
-			// System.out.println("slow : " + slowGetValue + " - " + path);
-
-			XPathFactory xPathFactory = XPathFactory.newInstance();
-		    XPath xpath = xPathFactory.newXPath();
-			XPathExpression expr;
-			expr = xpath.compile(path);		
-		    NodeList list = (NodeList) expr.evaluate(node, XPathConstants.NODESET);
+			xpathEvaluations.get(path).increment();
+		    NodeList list = (NodeList) compile(path).evaluate(node, XPathConstants.NODESET);
 		    
 		    return list;
 		} 
@@ -178,17 +207,10 @@ public class XMLUtils
 	{
 	    try 
 	    {
-			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		    DocumentBuilder builder;
-			builder = factory.newDocumentBuilder();
-			Document doc = builder.parse(file);
+			Document doc = getDocumentBuilder().parse(file);
 
 			return getDocNodeList(doc,path);
 		} 
-	    catch (ParserConfigurationException e) 
-	    {
-			e.printStackTrace();
-		} 
 	    catch (SAXException e) 
 		{
 	    	System.out.println("ERROR: your xml file " + file + " is not well-formed");
@@ -204,15 +226,14 @@ public class XMLUtils
 	}
 	
 	// Get a set of (element,attribute) values (e.g. value,provenance)
+	// For simple paths, elements are collected by walking the child nodes, otherwise with xpath
 	public static Set<Pair> getValueAttributePairs(Node node, String path, String elementName, String attrName)
 	{
 		Set<Pair> result = new HashSet<Pair>();		
-		NodeList list = XMLUtils.getNodeList(node, path+"/" + elementName + "[@" + attrName + "]"); // /value[@provenance]
-	
-		for (int i = 0; i < list.getLength(); i++)
+		for (Node element : getElementsWithAttribute(node, path, elementName, attrName))
 		{
-			String val = list.item(i).getTextContent();
-			String pr = list.item(i).getAttributes().getNamedItem(attrName).getTextContent();
+			String val = element.getTextContent();
+			String pr = element.getAttributes().getNamedItem(attrName).getTextContent();
 			
 			result.add(new Pair(val,pr));
 		}		
@@ -222,14 +243,72 @@ public class XMLUtils
 	// Get a number of distinct attribute value)s (e.g. provenance ids per node/attribute)
 	public static int getAttrCount(Node node, String path, String elementName, String attrName)
 	{
-		NodeList list = XMLUtils.getNodeList(node, path+"/" + elementName + "[@" + attrName + "]"); // /value[@provenance]
-		Map<String,Integer> prvc = new HashMap<String,Integer>();
-		for (int i = 0; i < list.getLength(); i++)
+		ProvenanceSet prvc = new ProvenanceSet();
+		for (Node element : getElementsWithAttribute(node, path, elementName, attrName))
 		{
-			String pr = list.item(i).getAttributes().getNamedItem(attrName).getTextContent();
-			if (!prvc.containsKey(pr)) prvc.put(pr, 1);
+			prvc.addAll(ProvenanceSet.parse(element.getAttributes().getNamedItem(attrName).getTextContent()));
 		}		
-		return prvc.size();
+		return prvc.cardinality();
+	}
+	
+	// Get elements path/elementName[@attrName] within node
+	public static List<Node> getElementsWithAttribute(Node node, String path, String elementName, String attrName)
+	{
+		List<Node> result = new ArrayList<Node>();
+		if (!isSimplePath(path))
+		{
+			NodeList list = XMLUtils.getNodeList(node, path+"/" + elementName + "[@" + attrName + "]"); // /value[@provenance]
+			for (int i = 0; i < list.getLength(); i++) result.add(list.item(i));
+			return result;
+		}
+		for (Node parent : getChildElements(node, path))
+		{
+			for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling())
+			{
+				if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals(elementName) 
+						&& ((Element) child).hasAttribute(attrName)) 
+					result.add(child);
+			}
+		}
+		return result;
+	}
+	
+	// Check whether a path consists of element names only (e.g. "title" or "director/name"), without other xpath syntax
+	public static boolean isSimplePath(String path)
+	{
+		return SIMPLE_PATH.matcher(path).matches();
+	}
+	
+	// Get all elements addressed by a simple path (see isSimplePath) within node, in document order
+	// (the same as the xpath evaluated on node would return)
+	public static List<Node> getChildElements(Node node, String path)
+	{
+		List<Node> result = new ArrayList<Node>();
+		addChildElements(node, path.split("/"), 0, result);
+		return result;
+	}
+	
+	private static void addChildElements(Node node, String[] steps, int step, List<Node> result)
+	{
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+		{
+			if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals(steps[step]))
+			{
+				if (step == steps.length-1) result.add(child);
+				else addChildElements(child, steps, step+1, result);
+			}
+		}
+	}
+	
+	// Get the first node addressed by path within node (null if there is none)
+	public static Node getFirstNode(Node node, String path)
+	{
+		if (isSimplePath(path))
+		{
+			List<Node> list = getChildElements(node, path);
+			return list.isEmpty() ? null : list.get(0);
+		}
+		return getNodeList(node, path).item(0);
 	}
 
 	// Get set of values of the attribute defined by path (path is defined within node, not the whole document) 
@@ -240,7 +319,12 @@ public class XMLUtils
 		// XXX: attempts to get value fast, if not, use xpath-based function (which is much slow)
 		// NodeList list = XMLUtils.getNodeList(node, xpath);
 		NodeList list = XMLUtils.getNodeListFast(node, xpath);
-		if (list == null) list = XMLUtils.getNodeList(node, xpath);
+		if (list == null) 
+		{
+			fallbackHits.get(xpath).increment();
+			list = XMLUtils.getNodeList(node, xpath);
+		}
+		else fastPathHits.get(xpath).increment();
 			
 		for (int i = 0; i < list.getLength(); i++) 
 			result.add(list.item(i).getTextContent());
@@ -258,24 +342,12 @@ public class XMLUtils
 	// Create a new document document; returns root node
 	public static Node createDocument(String rootElementName)
 	{
-		try 
-		{
-			DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder docBuilder;
-			docBuilder = docFactory.newDocumentBuilder();
-	
-			Document doc = docBuilder.newDocument();
-	
-			Element rootElement = doc.createElement(rootElementName);
-			doc.appendChild(rootElement);
-			
-			return rootElement;
-		} 
-		catch (ParserConfigurationException e) 
-		{
-			e.printStackTrace();
-		}		
-		return null;
+		Document doc = getDocumentBuilder().newDocument();
+
+		Element rootElement = doc.createElement(rootElementName);
+		doc.appendChild(rootElement);
+		
+		return rootElement;
 	}	
 	
 	// Create a new node and appends it to root